@@ -0,0 +1,125 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package io;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the BinaryReader and BinaryWriter primitive reads and writes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BinaryIOBenchmark {
+    private static final int FILE_SIZE = 1 << 20;
+
+    private Path readPath;
+    private Path writePath;
+    private BinaryReader reader;
+    private BinaryWriter writer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        readPath = Files.createTempFile("jndstool-read", ".bin");
+        writePath = Files.createTempFile("jndstool-write", ".bin");
+        Files.write(readPath, new byte[FILE_SIZE]);
+        reader = new BinaryReader(readPath);
+        writer = new BinaryWriter(writePath);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reader.close();
+        writer.close();
+        Files.deleteIfExists(readPath);
+        Files.deleteIfExists(writePath);
+    }
+
+    /**
+     * Rewind the streams before they run past the end of the file
+     */
+    @Setup(Level.Iteration)
+    public void rewind() throws IOException {
+        reader.seek(0);
+        writer.seek(0);
+    }
+
+    private void wrapReader(int size) throws IOException {
+        if (reader.getPosition() > FILE_SIZE - size)
+            reader.seek(0);
+    }
+
+    private void wrapWriter(int size) throws IOException {
+        if (writer.getPosition() > FILE_SIZE - size)
+            writer.seek(0);
+    }
+
+    @Benchmark
+    public int readByte() throws IOException {
+        wrapReader(1);
+        return reader.readByte();
+    }
+
+    @Benchmark
+    public int readShort() throws IOException {
+        wrapReader(2);
+        return reader.readShort();
+    }
+
+    @Benchmark
+    public int readInt() throws IOException {
+        wrapReader(4);
+        return reader.readInt();
+    }
+
+    @Benchmark
+    public long readLong() throws IOException {
+        wrapReader(8);
+        return reader.readLong();
+    }
+
+    @Benchmark
+    public void writeByte() throws IOException {
+        wrapWriter(1);
+        writer.writeByte(0x5a);
+    }
+
+    @Benchmark
+    public void writeShort() throws IOException {
+        wrapWriter(2);
+        writer.writeShort(0x5a5a);
+    }
+
+    @Benchmark
+    public void writeInt() throws IOException {
+        wrapWriter(4);
+        writer.writeInt(0x5a5a5a5a);
+    }
+
+    @Benchmark
+    public void writeLong() throws IOException {
+        wrapWriter(8);
+        writer.writeLong(0x5a5a5a5a5a5a5a5aL);
+    }
+}
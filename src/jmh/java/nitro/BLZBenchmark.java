@@ -0,0 +1,84 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the BLZ codec on code-like data. maxChain = 2147483647 finds the same matches as the exhaustive
+ * window search of the reference tool
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BLZBenchmark {
+    @Param({"262144", "1048576"})
+    public int size;
+
+    @Param({"16", "128", "2147483647"})
+    public int maxChain;
+
+    private byte[] data;
+    private byte[] compressed;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // 32 bit words drawn from a small vocabulary, with some noise, look like ARM code to an LZ compressor
+        SplittableRandom random = new SplittableRandom(0);
+        int[] vocabulary = new int[512];
+        for (int i = 0; i < vocabulary.length; i++)
+            vocabulary[i] = random.nextInt();
+        data = new byte[size];
+        for (int i = 0; i + 4 <= size; i += 4) {
+            int word = random.nextInt(8) == 0 ? random.nextInt() : vocabulary[random.nextInt(vocabulary.length)];
+            data[i] = (byte) word;
+            data[i + 1] = (byte) (word >>> 8);
+            data[i + 2] = (byte) (word >>> 16);
+            data[i + 3] = (byte) (word >>> 24);
+        }
+        compressed = BLZ.compress(data, 0, maxChain);
+        if (compressed == null)
+            throw new IOException("The benchmark data doesn't compress");
+    }
+
+    /**
+     * The compressed size over the original one, reported as a secondary metric of compress
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Ratio {
+        public double ratio;
+    }
+
+    @Benchmark
+    public byte[] compress(Ratio ratio) {
+        byte[] c = BLZ.compress(data, 0, maxChain);
+        ratio.ratio = (double) c.length / size;
+        return c;
+    }
+
+    @Benchmark
+    public byte[] decompress() throws IOException {
+        return BLZ.decompress(compressed, compressed.length);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BinaryReader;
+import io.BinaryWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the header reading, writing and checksum
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HeaderBenchmark {
+    private Path headerPath;
+    private Path outputPath;
+    private BinaryReader input;
+    private BinaryWriter output;
+    private NitroHeader header;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        headerPath = Files.createTempFile("jndstool-header", ".bin");
+        outputPath = Files.createTempFile("jndstool-header-out", ".bin");
+        byte[] raw = new byte[0x200];
+        System.arraycopy("BENCHMARK   BNCH01".getBytes(), 0, raw, 0, 18);
+        Files.write(headerPath, raw);
+        input = new BinaryReader(headerPath);
+        output = new BinaryWriter(outputPath);
+        header = NitroHeader.readHeader(input);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        input.close();
+        output.close();
+        Files.deleteIfExists(headerPath);
+        Files.deleteIfExists(outputPath);
+    }
+
+    @Benchmark
+    public NitroHeader readHeader() throws IOException {
+        input.seek(0);
+        return NitroHeader.readHeader(input);
+    }
+
+    @Benchmark
+    public void writeHeader() throws IOException {
+        output.seek(0);
+        NitroHeader.writeHeader(header, output);
+    }
+
+    @Benchmark
+    public int updateHeaderChecksum() {
+        NitroHeader.updateHeaderChecksum(header);
+        return header.getHeaderChecksum();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the LZ10/LZ11 codec on asset-like data, decompressing into a reused buffer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LZBenchmark {
+    @Param({"16384", "262144"})
+    public int size;
+
+    @Param({"16", "17"})
+    public int type;
+
+    private byte[] data;
+    private byte[] compressed;
+    private byte[] output;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // Runs of repeated pixels mixed with noise, like a tiled graphic
+        SplittableRandom random = new SplittableRandom(0);
+        data = new byte[size];
+        for (int i = 0; i < size; ) {
+            int run = 1 + random.nextInt(24);
+            byte value = (byte) random.nextInt(16);
+            for (int j = 0; j < run && i < size; j++)
+                data[i++] = value;
+        }
+        compressed = LZ.compress(data, type);
+        output = new byte[size];
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return LZ.compress(data, type);
+    }
+
+    @Benchmark
+    public byte[] decompress() throws IOException {
+        LZ.decompress(compressed, 0, compressed.length, output, 0);
+        return output;
+    }
+}
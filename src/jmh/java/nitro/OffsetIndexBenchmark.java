@@ -0,0 +1,67 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the offset lookups on the layout of a big ROM, resolving a batch of random offsets like a profiling trace
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class OffsetIndexBenchmark {
+    private static final int BATCH = 1_000_000;
+
+    @Param({"1000", "60000"})
+    public int files;
+
+    private OffsetIndex index;
+    private long[] offsets;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SplittableRandom random = new SplittableRandom(0);
+        List<ROMSection> sections = new ArrayList<>();
+        int offset = 0x4000;
+        for (int i = 0; i < files; i++) {
+            int size = 1 + random.nextInt(0x8000);
+            sections.add(new ROMSection("data/" + i, offset, size, i));
+            offset += size + ROM.addPadding(size);
+        }
+        index = new OffsetIndex(sections);
+        offsets = new long[BATCH];
+        for (int i = 0; i < BATCH; i++)
+            offsets[i] = random.nextInt(offset);
+    }
+
+    @Benchmark
+    public int lookup() {
+        int found = 0;
+        for (long o : offsets)
+            if (index.indexOf(o) >= 0)
+                found++;
+        return found;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * End to end benchmarks of ROM.extractROM and ROM.buildROM on synthetic ROMs
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class ROMBenchmark {
+    @Param({"1000", "10000"})
+    public int files;
+
+    @Param({"4096"})
+    public int fileSize;
+
+    private Path workPath;
+    private Path sourcePath; // The extracted directory the ROM is built from
+    private Path romPath; // The ROM that gets extracted
+    private Path extractPath;
+    private Path buildPath;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        workPath = Files.createTempDirectory("jndstool-bench");
+        sourcePath = workPath.resolve("source");
+        romPath = workPath.resolve("rom.nds");
+        extractPath = workPath.resolve("extracted");
+        buildPath = workPath.resolve("built.nds");
+        SyntheticTree.writeDirectory(sourcePath, files, fileSize);
+        ROM.buildROM(sourcePath, romPath);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        delete(workPath);
+    }
+
+    /**
+     * extractROM skips the files that already exist, so every extraction starts from an empty directory
+     */
+    @Setup(Level.Invocation)
+    public void clean() throws IOException {
+        delete(extractPath);
+    }
+
+    @Benchmark
+    public void extractROM() throws IOException {
+        ROM.extractROM(romPath, extractPath);
+    }
+
+    @Benchmark
+    public void buildROM() throws IOException {
+        ROM.buildROM(sourcePath, buildPath);
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (Files.notExists(path))
+            return;
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(p);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * This class builds in-memory Nitro trees for the benchmarks
+ */
+class SyntheticTree {
+    /**
+     * Build a tree with the given number of files, 64 files per directory and 16 subdirectories per directory
+     *
+     * @param files Number of files
+     * @return The root directory
+     */
+    static NitroDirectory build(int files) {
+        NitroDirectory root = new NitroDirectory("data", 0xf000, null);
+        int[] dirID = {0xf000};
+        int[] fileID = {0};
+        int[] offset = {0x4000};
+        fill(root, files, dirID, fileID, offset);
+        return root;
+    }
+
+    /**
+     * Write an extracted ROM directory with the given number of data files, ready for ROM.buildROM
+     *
+     * @param dirPath  Where to write the directory
+     * @param files    Number of data files
+     * @param fileSize Size of every data file
+     * @throws IOException If something goes wrong
+     */
+    static void writeDirectory(Path dirPath, int files, int fileSize) throws IOException {
+        Random random = new Random(files);
+        Files.createDirectories(dirPath.resolve("overlay"));
+        byte[] header = new byte[0x200];
+        System.arraycopy("BENCHMARK   BNCH01".getBytes(), 0, header, 0, 18);
+        Files.write(dirPath.resolve("header.bin"), header);
+        Files.write(dirPath.resolve("arm9.bin"), randomBytes(random, 0x40000));
+        Files.write(dirPath.resolve("arm7.bin"), randomBytes(random, 0x20000));
+        Files.write(dirPath.resolve("arm9ovltable.bin"), new byte[0]);
+        Files.write(dirPath.resolve("arm7ovltable.bin"), new byte[0]);
+        Files.write(dirPath.resolve("banner.bin"), randomBytes(random, 0x840));
+        writeFiles(build(files), dirPath.resolve("data"), random, fileSize);
+    }
+
+    private static void writeFiles(NitroDirectory dir, Path path, Random random, int fileSize) throws IOException {
+        Files.createDirectories(path);
+        for (NitroDirectory d : dir.getDirectoryList())
+            writeFiles(d, path.resolve(d.getName()), random, fileSize);
+        for (NitroFile f : dir.getFileList())
+            Files.write(path.resolve(f.getName()), randomBytes(random, fileSize));
+    }
+
+    private static byte[] randomBytes(Random random, int size) {
+        byte[] b = new byte[size];
+        random.nextBytes(b);
+        return b;
+    }
+
+    private static void fill(NitroDirectory dir, int files, int[] dirID, int[] fileID, int[] offset) {
+        // The files that don't fit here are spread among the subdirectories, which come first in the FAT
+        int here = Math.min(files, 64);
+        int rest = files - here;
+        int subdirs = Math.min(16, (rest + 63) / 64);
+        for (int i = 0; i < subdirs; i++) {
+            int share = (rest + subdirs - i - 1) / (subdirs - i);
+            dirID[0]++;
+            NitroDirectory d = new NitroDirectory(String.format("d%02d", i), dirID[0], dir);
+            dir.getDirectoryList().add(d);
+            fill(d, share, dirID, fileID, offset);
+            rest -= share;
+        }
+        for (int i = 0; i < here; i++) {
+            dir.getFileList().add(new NitroFile(String.format("f%04d.bin", i), fileID[0]++, offset[0], 0x100, dir));
+            offset[0] += 0x100;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BinaryWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the FNT and FAT writers on trees of different sizes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TablesBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int files;
+
+    private NitroDirectory root;
+    private Path outputPath;
+    private BinaryWriter output;
+    private final List<Integer> overlayStartOffsets = new ArrayList<>();
+    private final List<Integer> overlayEndOffsets = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = SyntheticTree.build(files);
+        outputPath = Files.createTempFile("jndstool-tables", ".bin");
+        output = new BinaryWriter(outputPath);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        output.close();
+        Files.deleteIfExists(outputPath);
+    }
+
+    @Benchmark
+    public void writeFNT() throws IOException {
+        output.seek(0);
+        FNT.writeFNT(output, root);
+    }
+
+    @Benchmark
+    public void writeFAT() throws IOException {
+        output.seek(0);
+        FAT.writeFAT(output, root, overlayStartOffsets, overlayEndOffsets);
+    }
+}
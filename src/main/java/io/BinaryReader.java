@@ -23,6 +23,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Path;
@@ -35,6 +36,7 @@ import java.nio.file.Path;
 public class BinaryReader {
     private final FileInputStream fileInput; // The base FileInputStream where we'll get the FileChannel
     private final FileChannel fileInputChannel; // The actual FileChannel
+    private IOStats stats; // Where the calls are counted, null if they aren't
 
     /**
      * Class constructor
@@ -55,7 +57,7 @@ public class BinaryReader {
      */
     public int readByte() throws IOException {
         ByteBuffer buffer = ByteBuffer.allocate(1).order(ByteOrder.LITTLE_ENDIAN);
-        this.fileInputChannel.read(buffer);
+        read(buffer);
         return (buffer.get(0) & 0xff);
     }
 
@@ -67,7 +69,7 @@ public class BinaryReader {
      */
     public int readShort() throws IOException {
         ByteBuffer buffer = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
-        this.fileInputChannel.read(buffer);
+        read(buffer);
         buffer.flip();
         return buffer.getShort() & 0xffff;
     }
@@ -80,7 +82,7 @@ public class BinaryReader {
      */
     public int readInt() throws IOException {
         ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
-        this.fileInputChannel.read(buffer);
+        read(buffer);
         buffer.flip();
         return buffer.getInt();
     }
@@ -93,7 +95,7 @@ public class BinaryReader {
      */
     public long readLong() throws IOException {
         ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
-        this.fileInputChannel.read(buffer);
+        read(buffer);
         buffer.flip();
         return buffer.getLong();
     }
@@ -107,7 +109,7 @@ public class BinaryReader {
      */
     public byte[] readBuffer(int len) throws IOException {
         ByteBuffer buffer = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
-        this.fileInputChannel.read(buffer);
+        read(buffer);
         buffer.flip();
         return buffer.array();
     }
@@ -121,7 +123,7 @@ public class BinaryReader {
      */
     public int[] readUnsignedBuffer(int len) throws IOException {
         ByteBuffer buffer = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
-        this.fileInputChannel.read(buffer);
+        read(buffer);
         buffer.flip();
         int[] b2 = new int[len];
         for (int i = 0; i < len; i++)
@@ -139,7 +141,7 @@ public class BinaryReader {
      */
     public String readString(int len, Charset c) throws IOException {
         ByteBuffer buffer = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
-        this.fileInputChannel.read(buffer);
+        read(buffer);
         buffer.flip();
         return new String(buffer.array(), c);
     }
@@ -153,11 +155,59 @@ public class BinaryReader {
     public byte[] readAll() throws IOException {
         this.fileInputChannel.position(0);
         ByteBuffer buffer = ByteBuffer.allocate((int) this.fileInputChannel.size()).order(ByteOrder.LITTLE_ENDIAN);
-        this.fileInputChannel.read(buffer);
+        read(buffer);
         buffer.flip();
         return buffer.array();
     }
 
+    /**
+     * Map the entire file in memory (read only)
+     *
+     * @return A little endian view of the whole file
+     * @throws IOException If there's an I/O error
+     */
+    public MappedByteBuffer map() throws IOException {
+        MappedByteBuffer buffer = this.fileInputChannel.map(FileChannel.MapMode.READ_ONLY, 0, this.fileInputChannel.size());
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * Read from the current position into the remaining space of a buffer
+     *
+     * @param buffer The buffer to fill
+     * @return Number of bytes read, -1 at the end of the file
+     * @throws IOException If there's an I/O error
+     */
+    public int read(ByteBuffer buffer) throws IOException {
+        int n = this.fileInputChannel.read(buffer);
+        if (stats != null)
+            stats.countRead(n);
+        return n;
+    }
+
+    /**
+     * Get the underlying channel, used by BinaryWriter for zero-copy transfers
+     *
+     * @return The FileChannel
+     */
+    FileChannel getChannel() {
+        return this.fileInputChannel;
+    }
+
+    public IOStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Count the calls of this stream, usually in the counters of the operation it belongs to
+     *
+     * @param stats The counters, null to stop counting
+     */
+    public void setStats(IOStats stats) {
+        this.stats = stats;
+    }
+
     /**
      * Go to the specified position (from the beginning of the file)
      *
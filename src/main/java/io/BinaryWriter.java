@@ -19,8 +19,8 @@
 package io;
 
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
@@ -32,9 +32,10 @@ import java.nio.file.Path;
  * By default, Java uses Big Endian, so we have to manually convert everything
  */
 public class BinaryWriter {
-    private final FileOutputStream fileOutput; // The base FileOutputStream where we'll get the FileChannel
+    private final RandomAccessFile fileOutput; // The base RandomAccessFile where we'll get the FileChannel
     private final FileChannel fileOutputChannel; // The actual FileChannel
     private final FileLock fileOutputChannelLock; // An exclusive lock
+    private IOStats stats; // Where the calls are counted, null if they aren't
 
     /**
      * Class constructor
@@ -43,9 +44,22 @@ public class BinaryWriter {
      * @throws FileNotFoundException If the given path doesn't exist
      */
     public BinaryWriter(Path filePath) throws IOException {
-        this.fileOutput = new FileOutputStream(filePath.toString());
+        this(filePath, true);
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param filePath The file path
+     * @param truncate True to discard the content of an existing file, false to overwrite parts of it in place
+     * @throws FileNotFoundException If the given path doesn't exist
+     */
+    public BinaryWriter(Path filePath, boolean truncate) throws IOException {
+        this.fileOutput = new RandomAccessFile(filePath.toString(), "rw");
         this.fileOutputChannel = this.fileOutput.getChannel();
         this.fileOutputChannelLock = this.fileOutputChannel.lock();
+        if (truncate)
+            this.fileOutputChannel.truncate(0);
     }
 
     /**
@@ -58,7 +72,7 @@ public class BinaryWriter {
         ByteBuffer buffer = ByteBuffer.allocate(1).order(ByteOrder.LITTLE_ENDIAN);
         buffer.put(t);
         buffer.flip();
-        this.fileOutputChannel.write(buffer);
+        write(buffer);
     }
 
     /**
@@ -71,7 +85,7 @@ public class BinaryWriter {
         ByteBuffer buffer = ByteBuffer.allocate(1).order(ByteOrder.LITTLE_ENDIAN);
         buffer.put((byte) t);
         buffer.flip();
-        this.fileOutputChannel.write(buffer);
+        write(buffer);
     }
 
     /**
@@ -84,7 +98,7 @@ public class BinaryWriter {
         ByteBuffer buffer = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
         buffer.putShort((short) t);
         buffer.flip();
-        this.fileOutputChannel.write(buffer);
+        write(buffer);
     }
 
     /**
@@ -97,7 +111,7 @@ public class BinaryWriter {
         ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
         buffer.putInt(t);
         buffer.flip();
-        this.fileOutputChannel.write(buffer);
+        write(buffer);
     }
 
     /**
@@ -110,7 +124,7 @@ public class BinaryWriter {
         ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
         buffer.putInt((int) t);
         buffer.flip();
-        this.fileOutputChannel.write(buffer);
+        write(buffer);
     }
 
     /**
@@ -123,7 +137,7 @@ public class BinaryWriter {
         ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
         buffer.putLong(t);
         buffer.flip();
-        this.fileOutputChannel.write(buffer);
+        write(buffer);
     }
 
     /**
@@ -134,7 +148,7 @@ public class BinaryWriter {
      */
     public void writeBytes(byte[] t) throws IOException {
         ByteBuffer buffer = ByteBuffer.wrap(t);
-        this.fileOutputChannel.write(buffer);
+        write(buffer);
     }
 
     /**
@@ -147,7 +161,7 @@ public class BinaryWriter {
     public void writeBytes(byte[] t, int n) throws IOException {
         if (n <= t.length) {
             ByteBuffer buffer = ByteBuffer.wrap(t, 0, n);
-            this.fileOutputChannel.write(buffer);
+            write(buffer);
         } else
             throw new IndexOutOfBoundsException();
     }
@@ -163,7 +177,7 @@ public class BinaryWriter {
         for (int i = 0; i < t.length; i++)
             d[i] = (byte) t[i];
         ByteBuffer buffer = ByteBuffer.wrap(d);
-        this.fileOutputChannel.write(buffer);
+        write(buffer);
     }
 
     /**
@@ -179,11 +193,55 @@ public class BinaryWriter {
             for (int i = 0; i < n; i++)
                 d[i] = (byte) t[i];
             ByteBuffer buffer = ByteBuffer.wrap(d);
-            this.fileOutputChannel.write(buffer);
+            write(buffer);
         } else
             throw new IndexOutOfBoundsException();
     }
 
+    /**
+     * Write the remaining bytes of a buffer in the current position
+     *
+     * @param t Buffer to write (position and limit delimit the bytes)
+     * @throws IOException If there's an I/O error
+     */
+    public void writeBytes(ByteBuffer t) throws IOException {
+        while (t.hasRemaining())
+            write(t);
+    }
+
+    /**
+     * Write to the channel in the current position, counting the call
+     *
+     * @param buffer The buffer to write
+     * @throws IOException If there's an I/O error
+     */
+    private void write(ByteBuffer buffer) throws IOException {
+        int n = this.fileOutputChannel.write(buffer);
+        if (stats != null)
+            stats.countWrite(n);
+    }
+
+    /**
+     * Copy a section of another file in the current position, without passing through the Java heap
+     *
+     * @param source   The file to copy from
+     * @param position Absolute offset of the section in the source
+     * @param count    Size of the section
+     * @throws IOException If there's an I/O error or the source is too short
+     */
+    public void copyFrom(BinaryReader source, long position, long count) throws IOException {
+        FileChannel in = source.getChannel();
+        while (count > 0) {
+            long n = in.transferTo(position, count, this.fileOutputChannel);
+            if (n <= 0)
+                throw new IOException("Unexpected end of file at offset " + position);
+            if (stats != null)
+                stats.countWrite(n);
+            position += n;
+            count -= n;
+        }
+    }
+
     /**
      * Write n bytes in the current position
      *
@@ -192,7 +250,7 @@ public class BinaryWriter {
      */
     public void writeString(String s) throws IOException {
         ByteBuffer buffer = ByteBuffer.wrap(s.getBytes());
-        this.fileOutputChannel.write(buffer);
+        write(buffer);
     }
 
     /**
@@ -213,7 +271,20 @@ public class BinaryWriter {
         }
         buffer.put(st);
         buffer.flip();
-        this.fileOutputChannel.write(buffer);
+        write(buffer);
+    }
+
+    public IOStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Count the calls of this stream, usually in the counters of the operation it belongs to
+     *
+     * @param stats The counters, null to stop counting
+     */
+    public void setStats(IOStats stats) {
+        this.stats = stats;
     }
 
     /**
@@ -265,7 +336,6 @@ public class BinaryWriter {
      * @throws IOException If there's an I/O error
      */
     public void sync() throws IOException {
-        this.fileOutput.flush();
         this.fileOutput.getFD().sync();
     }
 }
\ No newline at end of file
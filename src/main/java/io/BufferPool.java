@@ -0,0 +1,93 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package io;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This is a pool of direct buffers of the same size, used for bounding the memory of copies.
+ * Buffers are allocated lazily, and acquire blocks once all of them are in use
+ */
+public class BufferPool {
+    private final int bufferSize; // Size of every buffer
+    private final int maxBuffers; // Maximum number of buffers ever allocated
+    private final BlockingQueue<ByteBuffer> free; // The buffers ready to be used
+    private final AtomicInteger allocated = new AtomicInteger(); // Number of buffers allocated so far
+
+    /**
+     * Class constructor
+     *
+     * @param bufferSize Size in bytes of every buffer
+     * @param maxBuffers Maximum number of buffers
+     */
+    public BufferPool(int bufferSize, int maxBuffers) {
+        if (bufferSize <= 0 || maxBuffers <= 0)
+            throw new IllegalArgumentException("Buffer size and number must be positive");
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+        this.free = new ArrayBlockingQueue<>(maxBuffers);
+    }
+
+    /**
+     * Get a cleared buffer, waiting for one to be released if the pool is exhausted
+     *
+     * @return A little endian direct buffer
+     * @throws InterruptedIOException If the thread is interrupted while waiting
+     */
+    public ByteBuffer acquire() throws InterruptedIOException {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            if (allocated.incrementAndGet() <= maxBuffers)
+                buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+            else {
+                allocated.decrementAndGet();
+                try {
+                    buffer = free.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a buffer");
+                }
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool
+     *
+     * @param buffer A buffer obtained from acquire
+     */
+    public void release(ByteBuffer buffer) {
+        free.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getMaxBuffers() {
+        return maxBuffers;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package io;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class counts the read and write calls issued by BinaryReader and BinaryWriter, together with the bytes moved.
+ * Every operation owns its counters and hands them to its streams, so operations running at the same time don't mix
+ * their calls. The counters can be shared by the threads of an operation
+ */
+public final class IOStats {
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+
+    public void countRead(long bytes) {
+        reads.increment();
+        if (bytes > 0)
+            bytesRead.add(bytes);
+    }
+
+    public void countWrite(long bytes) {
+        writes.increment();
+        if (bytes > 0)
+            bytesWritten.add(bytes);
+    }
+
+    public long getReads() {
+        return reads.sum();
+    }
+
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+}
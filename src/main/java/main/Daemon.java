@@ -0,0 +1,346 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package main;
+
+import io.BinaryReader;
+import io.BufferPool;
+import nitro.BuildOptions;
+import nitro.ExtractOptions;
+import nitro.NitroHeader;
+import nitro.PatchApplier;
+import nitro.ROM;
+import nitro.ROMPatch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class runs many jobs in the same JVM, so they don't pay the startup and warm-up time.
+ * Jobs are read from a stream as JSON objects, one per line, and run concurrently by a fixed pool of workers:
+ * <pre>
+ * {"id": "1", "op": "extract", "rom": "foo.nds", "dir": "foo"}
+ * {"id": "2", "op": "build", "dir": "foo", "rom": "foo_new.nds"}
+ * {"id": "3", "op": "patch", "rom": "foo.nds", "patch": "foo.bps", "out": "foo_patched.nds"}
+ * {"id": "4", "op": "info", "rom": "foo.nds"}
+ * </pre>
+ * The result of every job is written as soon as it ends, as a JSON line with the same id. The daemon stops once the
+ * input is closed and every job has ended. Jobs copy through a pool of buffers shared by all of them, which bounds
+ * the memory of the daemon
+ */
+public class Daemon {
+    private static final int BUFFER_SIZE = 0x10000;
+    private static final int BUFFERS_PER_WORKER = 16; // As many as the requests in flight of an extraction
+
+    private final ExecutorService workers; // The pool running the jobs
+    private final BufferPool pool; // The buffers shared by all the jobs
+    private final PrintStream out; // Where results are written
+
+    /**
+     * Class constructor
+     *
+     * @param workers Number of jobs running at the same time
+     * @param out     Where results are written
+     */
+    public Daemon(int workers, PrintStream out) {
+        this.workers = Executors.newFixedThreadPool(workers);
+        this.pool = new BufferPool(BUFFER_SIZE, workers * BUFFERS_PER_WORKER);
+        this.out = out;
+    }
+
+    /**
+     * Read and run jobs until the input is closed, then wait for the running jobs
+     *
+     * @param in The stream of jobs
+     * @throws IOException If the input can't be read
+     */
+    public void run(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty())
+                continue;
+            Map<String, String> job;
+            try {
+                job = parseObject(line);
+            } catch (IllegalArgumentException e) {
+                reply(null, "\"ok\":false,\"error\":" + quote("Malformed job: " + e.getMessage()));
+                continue;
+            }
+            workers.execute(() -> runJob(job));
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Run a single job and write its result
+     *
+     * @param job The fields of the job
+     */
+    private void runJob(Map<String, String> job) {
+        long start = System.nanoTime();
+        try {
+            String result = execute(job);
+            reply(job.get("id"), "\"ok\":true,\"nanos\":" + (System.nanoTime() - start) + ",\"result\":" + result);
+        } catch (IOException | RuntimeException e) {
+            reply(job.get("id"), "\"ok\":false,\"nanos\":" + (System.nanoTime() - start) + ",\"error\":" + quote(String.valueOf(e.getMessage())));
+        }
+    }
+
+    /**
+     * Execute a job
+     *
+     * @param job The fields of the job
+     * @return The result in JSON format
+     * @throws IOException If the job is invalid or fails
+     */
+    private String execute(Map<String, String> job) throws IOException {
+        String op = job.get("op");
+        if (op == null)
+            throw new IOException("Missing op");
+        switch (op) {
+            case "extract":
+                ExtractOptions extractOptions = new ExtractOptions();
+                if (job.get("requests") != null)
+                    extractOptions.setAsyncRequests(Integer.parseInt(job.get("requests")));
+                extractOptions.setDecompressBinaries("true".equals(job.get("blz")));
+                extractOptions.setDecompressFiles("true".equals(job.get("lz")));
+                extractOptions.setExpandArchives("true".equals(job.get("narc")));
+                if (job.get("include") != null)
+                    extractOptions.setIncludes(Arrays.asList(job.get("include").split(File.pathSeparator)));
+                if (job.get("exclude") != null)
+                    extractOptions.setExcludes(Arrays.asList(job.get("exclude").split(File.pathSeparator)));
+                if (job.get("ids") != null)
+                    extractOptions.setFileIDs(job.get("ids"));
+                extractOptions.setBufferPool(pool);
+                return ROM.extractROM(getPath(job, "rom"), getPath(job, "dir"), extractOptions).toJSON();
+            case "build":
+                BuildOptions options = new BuildOptions();
+                options.setBufferPool(pool);
+                if (job.get("readAhead") != null)
+                    options.setReadAheadThreads(Integer.parseInt(job.get("readAhead")));
+                options.setCompressBinaries("true".equals(job.get("blz")));
+                if (job.get("layers") != null) {
+                    List<Path> layers = new ArrayList<>();
+                    layers.add(getPath(job, "dir"));
+                    for (String layer : job.get("layers").split(File.pathSeparator))
+                        layers.add(Paths.get(layer));
+                    return ROM.buildROM(layers, getPath(job, "rom"), options).toJSON();
+                }
+                return ROM.buildROM(getPath(job, "dir"), getPath(job, "rom"), options).toJSON();
+            case "patch":
+                return patch(getPath(job, "rom"), getPath(job, "patch"), getPath(job, "out"));
+            case "info":
+                return info(getPath(job, "rom"));
+            default:
+                throw new IOException("Unknown op " + op);
+        }
+    }
+
+    /**
+     * Apply a patch, either created with --make-patch or IPS/BPS
+     */
+    private String patch(Path source, Path patch, Path target) throws IOException {
+        byte[] magic = new byte[4];
+        try (InputStream in = Files.newInputStream(patch)) {
+            if (in.readNBytes(magic, 0, 4) < 4)
+                throw new IOException(patch + " is too small to be a patch!");
+        }
+        if (new String(magic, StandardCharsets.US_ASCII).equals("NDPT"))
+            ROMPatch.applyPatch(source, patch, target);
+        else
+            PatchApplier.applyPatch(source, patch, target, pool);
+        return "{\"size\":" + Files.size(target) + "}";
+    }
+
+    /**
+     * Read the main information of a ROM from its header
+     */
+    private String info(Path romPath) throws IOException {
+        BinaryReader rom = new BinaryReader(romPath);
+        NitroHeader header = NitroHeader.readHeader(rom);
+        rom.close();
+        int overlays = (header.getArm9OverlaySize() + header.getArm7OverlaySize()) / 0x20;
+        return "{\"title\":" + quote(header.getGameTitle()) + ",\"code\":" + quote(header.getGameCode())
+                + ",\"maker\":" + quote(header.getMakerCode()) + ",\"version\":" + header.getRomVersion()
+                + ",\"size\":" + Files.size(romPath) + ",\"files\":" + (header.getFatSize() / 8 - overlays)
+                + ",\"overlays\":" + overlays + "}";
+    }
+
+    private static Path getPath(Map<String, String> job, String key) throws IOException {
+        String value = job.get(key);
+        if (value == null)
+            throw new IOException("Missing " + key);
+        return Paths.get(value);
+    }
+
+    /**
+     * Write a result line, results of concurrent jobs never mix
+     */
+    private void reply(String id, String fields) {
+        synchronized (out) {
+            out.println("{\"id\":" + (id == null ? "null" : quote(id)) + "," + fields + "}");
+            out.flush();
+        }
+    }
+
+    /**
+     * Parse a flat JSON object, values are kept as strings (numbers and booleans as written)
+     *
+     * @param json The JSON text
+     * @return The fields of the object
+     * @throws IllegalArgumentException If the text isn't a flat JSON object
+     */
+    static Map<String, String> parseObject(String json) {
+        Map<String, String> fields = new HashMap<>();
+        int[] pos = {skipSpaces(json, 0)};
+        expect(json, pos, '{');
+        if (peek(json, pos) == '}') {
+            pos[0]++;
+            return fields;
+        }
+        while (true) {
+            String key = parseString(json, pos);
+            expect(json, pos, ':');
+            String value;
+            char first = peek(json, pos);
+            if (first == '"')
+                value = parseString(json, pos);
+            else if (first == '{' || first == '[')
+                throw new IllegalArgumentException("nested value for " + key);
+            else {
+                int start = pos[0];
+                while (pos[0] < json.length() && ",} \t".indexOf(json.charAt(pos[0])) < 0)
+                    pos[0]++;
+                value = json.substring(start, pos[0]);
+                if (value.equals("null"))
+                    value = null;
+            }
+            fields.put(key, value);
+            char c = peek(json, pos);
+            pos[0]++;
+            if (c == '}')
+                break;
+            if (c != ',')
+                throw new IllegalArgumentException("expected , or } at " + (pos[0] - 1));
+        }
+        if (skipSpaces(json, pos[0]) != json.length())
+            throw new IllegalArgumentException("trailing characters at " + pos[0]);
+        return fields;
+    }
+
+    private static String parseString(String json, int[] pos) {
+        expect(json, pos, '"');
+        StringBuilder s = new StringBuilder();
+        while (true) {
+            if (pos[0] >= json.length())
+                throw new IllegalArgumentException("unterminated string");
+            char c = json.charAt(pos[0]++);
+            if (c == '"')
+                return s.toString();
+            if (c != '\\') {
+                s.append(c);
+                continue;
+            }
+            if (pos[0] >= json.length())
+                throw new IllegalArgumentException("unterminated string");
+            char e = json.charAt(pos[0]++);
+            switch (e) {
+                case 'n':
+                    s.append('\n');
+                    break;
+                case 't':
+                    s.append('\t');
+                    break;
+                case 'r':
+                    s.append('\r');
+                    break;
+                case 'b':
+                    s.append('\b');
+                    break;
+                case 'f':
+                    s.append('\f');
+                    break;
+                case 'u':
+                    if (pos[0] + 4 > json.length())
+                        throw new IllegalArgumentException("truncated escape");
+                    s.append((char) Integer.parseInt(json.substring(pos[0], pos[0] + 4), 16));
+                    pos[0] += 4;
+                    break;
+                default:
+                    s.append(e);
+            }
+        }
+    }
+
+    private static void expect(String json, int[] pos, char c) {
+        if (peek(json, pos) != c)
+            throw new IllegalArgumentException("expected " + c + " at " + pos[0]);
+        pos[0]++;
+    }
+
+    private static char peek(String json, int[] pos) {
+        pos[0] = skipSpaces(json, pos[0]);
+        if (pos[0] >= json.length())
+            throw new IllegalArgumentException("unexpected end");
+        return json.charAt(pos[0]);
+    }
+
+    private static int skipSpaces(String json, int pos) {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos)))
+            pos++;
+        return pos;
+    }
+
+    /**
+     * Quote a string for JSON
+     */
+    private static String quote(String s) {
+        StringBuilder q = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\')
+                q.append('\\').append(c);
+            else if (c < 0x20)
+                q.append(String.format("\\u%04x", (int) c));
+            else
+                q.append(c);
+        }
+        return q.append('"').toString();
+    }
+}
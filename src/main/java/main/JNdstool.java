@@ -22,14 +22,37 @@
 package main;
 
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.MutuallyExclusiveGroup;
 import net.sourceforge.argparse4j.inf.Namespace;
+import nitro.BuildOptions;
+import nitro.DiffReport;
+import nitro.ExtractOptions;
+import nitro.MerkleTree;
+import nitro.OffsetIndex;
+import nitro.PatchApplier;
+import nitro.Progress;
+import nitro.ProgressListener;
 import nitro.ROM;
+import nitro.ROMDiff;
+import nitro.ROMListing;
+import nitro.ROMPatch;
+import nitro.ROMStats;
+import nitro.ROMVerifier;
+import nitro.ROMWatcher;
+import nitro.SyntheticROM;
+import nitro.VerifyReport;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 public class JNdstool {
     public static void main(String[] args) {
@@ -37,15 +60,169 @@ public class JNdstool {
         MutuallyExclusiveGroup createOrExtract = parser.addMutuallyExclusiveGroup();
         createOrExtract.addArgument("-x", "--extract").help("Exctract the given NDS ROM");
         createOrExtract.addArgument("-c", "--create").help("Create a ROM based on a directory");
+        createOrExtract.addArgument("--verify").metavar("ROM").help("Check the internal consistency of the given NDS ROM");
+        createOrExtract.addArgument("--diff").metavar("ROM").nargs(2).help("Compare two NDS ROMs file by file");
+        createOrExtract.addArgument("--ls").metavar("ROM").help("List the sections of the given NDS ROM with their file IDs, offsets and sizes, without extracting it");
+        createOrExtract.addArgument("--whois").metavar("ARG").nargs("+").help("Find the sections of a ROM owning some offsets (ROM OFFSET..., 0x for hex), read from the standard input when none are given");
+        createOrExtract.addArgument("--merkle-diff").metavar("PATH").nargs(2).help("Compare two NDS ROMs, extracted directories or .merkle files through their hash trees");
+        createOrExtract.addArgument("--make-patch").metavar("ROM").nargs(3).help("Create a patch from a source ROM to a target ROM (SOURCE TARGET PATCH)");
+        createOrExtract.addArgument("--apply").metavar("FILE").nargs(3).help("Apply a patch created with --make-patch (SOURCE PATCH OUTPUT)");
+        createOrExtract.addArgument("--apply-patch").metavar("FILE").nargs(3).help("Apply an IPS or BPS patch to a ROM (SOURCE PATCH OUTPUT)");
+        createOrExtract.addArgument("--generate").metavar("ROM").help("Generate a synthetic ROM from the --gen-* parameters");
+        createOrExtract.addArgument("--daemon").action(Arguments.storeTrue()).help("Run the jobs read from the standard input as JSON lines, writing their results on the standard output");
         createOrExtract.required(true);
-        parser.addArgument("-d", "--directory").help("Directory where to extract the ROM or to create from").required(true);
+        parser.addArgument("-d", "--directory").help("Directory where to extract the ROM or to create from");
+        parser.addArgument("--layer").metavar("DIR").action(Arguments.append()).help("Stack a directory over -d when building with -c, its files shadow the ones below (repeatable, .wh.NAME files hide NAME)");
+        parser.addArgument("--include").metavar("GLOB").action(Arguments.append()).help("Extract with -x only the paths matching the glob, e.g. 'data/a/0/2/*' (repeatable)");
+        parser.addArgument("--exclude").metavar("GLOB").action(Arguments.append()).help("Don't extract with -x the paths matching the glob (repeatable)");
+        parser.addArgument("--ids").metavar("LIST").help("Extract with -x only the files and overlays with the given FAT IDs, e.g. 12,40-45");
+        parser.addArgument("--hash").nargs("?").setConst("crc32").choices("crc32", "md5", "sha1", "sha256").help("Add the hash of every section to --ls");
+        parser.addArgument("--json").action(Arguments.storeTrue()).help("Print --ls as JSON lines");
+        parser.addArgument("--watch").action(Arguments.storeTrue()).help("Keep the ROM built with -c up to date with the directory, until interrupted (not with --layer)");
+        parser.addArgument("--check").action(Arguments.storeTrue()).help("Verify the patched ROM after --apply-patch");
+        parser.addArgument("--merkle").action(Arguments.storeTrue()).help("Also store the hash tree of the files in a .merkle sidecar");
+        parser.addArgument("--stats").nargs("?").setConst("text").choices("text", "json").help("Print the timing and throughput of every phase of -x, -c or --generate");
+        parser.addArgument("--progress").action(Arguments.storeTrue()).help("Show the progress of -x, -c or --generate");
+        parser.addArgument("--buffer-budget").metavar("SIZE").help("Bound the memory used by -c for copying files, which are then copied in chunks (e.g. 16m)");
+        parser.addArgument("--buffer-size").metavar("SIZE").setDefault("64k").help("Size of the chunks copied by -x, or by -c with --buffer-budget or --read-ahead");
+        parser.addArgument("--async-requests").metavar("N").type(Integer.class).setDefault(16).help("Number of reads and writes -x keeps in flight, 0 for blocking I/O");
+        parser.addArgument("--read-ahead").metavar("THREADS").type(Integer.class).setDefault(0).help("Number of threads reading the files ahead while -c writes the ROM");
+        parser.addArgument("--blz").action(Arguments.storeTrue()).help("Decompress the ARM9 and the compressed overlays with -x, compress them again with -c");
+        parser.addArgument("--lz").action(Arguments.storeTrue()).help("Decompress the LZ10/LZ11 files of data with -x, -c compresses the files listed in data.lz again");
+        parser.addArgument("--narc").action(Arguments.storeTrue()).help("Expand the NARC archives of data into directories with -x, -c always packs expanded archives back");
+        parser.addArgument("--workers").type(Integer.class).setDefault(Runtime.getRuntime().availableProcessors()).help("Number of jobs the daemon runs at the same time");
+        parser.addArgument("--gen-files").type(Integer.class).setDefault(1000).help("Number of files of the generated ROM");
+        parser.addArgument("--gen-depth").type(Integer.class).setDefault(2).help("Depth of the generated directory tree");
+        parser.addArgument("--gen-fan-out").type(Integer.class).setDefault(4).help("Subdirectories of every generated directory");
+        parser.addArgument("--gen-min-size").type(Integer.class).setDefault(0).help("Minimum size of the generated files");
+        parser.addArgument("--gen-max-size").type(Integer.class).setDefault(0x10000).help("Maximum size of the generated files");
+        parser.addArgument("--gen-size-dist").type(SyntheticROM.SizeDistribution.class).setDefault(SyntheticROM.SizeDistribution.LOG_UNIFORM).help("Distribution of the generated file sizes");
+        parser.addArgument("--gen-overlays").type(Integer.class).setDefault(0).help("Number of ARM9 overlays of the generated ROM");
+        parser.addArgument("--gen-min-name").type(Integer.class).setDefault(4).help("Minimum length of the generated names");
+        parser.addArgument("--gen-max-name").type(Integer.class).setDefault(12).help("Maximum length of the generated names");
+        parser.addArgument("--gen-duplicates").type(Double.class).setDefault(0.0).help("Fraction of generated files sharing the content of another file");
+        parser.addArgument("--seed").type(Long.class).setDefault(0L).help("Seed of the generated ROM");
         Namespace res;
         try {
             res = parser.parseArgs(args);
+            if (res.getBoolean("daemon")) {
+                new Daemon(res.getInt("workers"), System.out).run(System.in);
+                return;
+            }
+            if (res.get("verify") != null) {
+                System.exit(verify(Paths.get(res.getString("verify"))) ? 0 : 1);
+            }
+            if (res.get("ls") != null) {
+                String hash = res.getString("hash");
+                if (hash != null && hash.startsWith("sha"))
+                    hash = "SHA-" + hash.substring(3);
+                StringBuilder listing = new StringBuilder();
+                for (ROMListing.Entry e : ROMListing.list(Paths.get(res.getString("ls")), hash))
+                    listing.append(res.getBoolean("json") ? e.toJSON() : e.toString()).append(System.lineSeparator());
+                System.out.print(listing);
+                return;
+            }
+            if (res.get("whois") != null) {
+                List<String> whois = res.getList("whois");
+                whois(OffsetIndex.build(Paths.get(whois.get(0))), whois.subList(1, whois.size()), parser);
+                return;
+            }
+            if (res.get("diff") != null) {
+                List<String> roms = res.getList("diff");
+                System.exit(printDiff(ROMDiff.diffROM(Paths.get(roms.get(0)), Paths.get(roms.get(1)))) ? 0 : 1);
+            }
+            if (res.get("merkle_diff") != null) {
+                List<String> trees = res.getList("merkle_diff");
+                System.exit(printDiff(MerkleTree.compare(Paths.get(trees.get(0)), Paths.get(trees.get(1)))) ? 0 : 1);
+            }
+            if (res.get("make_patch") != null) {
+                List<String> roms = res.getList("make_patch");
+                ROMPatch.createPatch(Paths.get(roms.get(0)), Paths.get(roms.get(1)), Paths.get(roms.get(2)));
+                return;
+            }
+            if (res.get("apply") != null) {
+                List<String> files = res.getList("apply");
+                ROMPatch.applyPatch(Paths.get(files.get(0)), Paths.get(files.get(1)), Paths.get(files.get(2)));
+                return;
+            }
+            if (res.get("apply_patch") != null) {
+                List<String> files = res.getList("apply_patch");
+                PatchApplier.applyPatch(Paths.get(files.get(0)), Paths.get(files.get(1)), Paths.get(files.get(2)));
+                if (res.getBoolean("check"))
+                    System.exit(verify(Paths.get(files.get(2))) ? 0 : 1);
+                return;
+            }
+            ProgressListener listener = res.getBoolean("progress") ? new ConsoleProgress() : null;
+            if (res.get("generate") != null) {
+                SyntheticROM generator = new SyntheticROM();
+                generator.setFiles(res.getInt("gen_files"));
+                generator.setDepth(res.getInt("gen_depth"));
+                generator.setFanOut(res.getInt("gen_fan_out"));
+                generator.setMinFileSize(res.getInt("gen_min_size"));
+                generator.setMaxFileSize(res.getInt("gen_max_size"));
+                generator.setSizeDistribution(res.get("gen_size_dist"));
+                generator.setOverlays(res.getInt("gen_overlays"));
+                generator.setMinNameLength(res.getInt("gen_min_name"));
+                generator.setMaxNameLength(res.getInt("gen_max_name"));
+                generator.setDuplicateRatio(res.getDouble("gen_duplicates"));
+                generator.setSeed(res.getLong("seed"));
+                printStats(generator.generate(Paths.get(res.getString("generate")), listener), res.getString("stats"));
+                if (res.getBoolean("merkle"))
+                    MerkleTree.writeROMSidecar(Paths.get(res.getString("generate")));
+                return;
+            }
+            if (res.get("directory") == null)
+                throw new ArgumentParserException("argument -d/--directory is required", parser);
             if (res.get("extract") != null) {
-                ROM.extractROM(Paths.get(res.getString("extract")), Paths.get(res.getString("directory")));
+                ExtractOptions options = new ExtractOptions();
+                options.setProgressListener(listener);
+                options.setAsyncRequests(res.getInt("async_requests"));
+                options.setDecompressBinaries(res.getBoolean("blz"));
+                options.setDecompressFiles(res.getBoolean("lz"));
+                options.setExpandArchives(res.getBoolean("narc"));
+                if (res.get("include") != null)
+                    options.setIncludes(res.getList("include"));
+                if (res.get("exclude") != null)
+                    options.setExcludes(res.getList("exclude"));
+                if (res.get("ids") != null)
+                    try {
+                        options.setFileIDs(res.getString("ids"));
+                    } catch (NumberFormatException e) {
+                        throw new ArgumentParserException("invalid file IDs " + res.getString("ids"), parser);
+                    }
+                options.setBufferSize((int) Math.min(parseSize(res.getString("buffer_size"), parser), 1 << 30));
+                printStats(ROM.extractROM(Paths.get(res.getString("extract")), Paths.get(res.getString("directory")), options), res.getString("stats"));
+                if (res.getBoolean("merkle")) {
+                    // decompressed files and expanded archives differ from the ROM files, so the extracted tree is hashed
+                    if (options.isDecompressFiles() || options.isExpandArchives())
+                        MerkleTree.writeDirectorySidecar(Paths.get(res.getString("directory")));
+                    else
+                        MerkleTree.writeDirectorySidecar(Paths.get(res.getString("extract")), Paths.get(res.getString("directory")));
+                }
             } else {
-                ROM.buildROM(Paths.get(res.getString("directory")), Paths.get(res.getString("create")));
+                BuildOptions options = new BuildOptions();
+                options.setProgressListener(listener);
+                if (res.get("buffer_budget") != null)
+                    options.setBufferBudget(parseSize(res.getString("buffer_budget"), parser));
+                options.setBufferSize((int) Math.min(parseSize(res.getString("buffer_size"), parser), 1 << 30));
+                options.setReadAheadThreads(res.getInt("read_ahead"));
+                options.setCompressBinaries(res.getBoolean("blz"));
+                if (res.getBoolean("watch")) {
+                    if (res.get("layer") != null)
+                        throw new ArgumentParserException("argument --watch: not allowed with argument --layer", parser);
+                    if (listener == null)
+                        options.setProgressListener(new ConsoleUpdates());
+                    new ROMWatcher(Paths.get(res.getString("directory")), Paths.get(res.getString("create")), options).watch();
+                } else if (res.get("layer") != null) {
+                    List<Path> layers = new ArrayList<>();
+                    layers.add(Paths.get(res.getString("directory")));
+                    for (Object layer : res.getList("layer"))
+                        layers.add(Paths.get(layer.toString()));
+                    printStats(ROM.buildROM(layers, Paths.get(res.getString("create")), options), res.getString("stats"));
+                } else
+                    printStats(ROM.buildROM(Paths.get(res.getString("directory")), Paths.get(res.getString("create")), options), res.getString("stats"));
+                if (res.getBoolean("merkle"))
+                    MerkleTree.writeROMSidecar(Paths.get(res.getString("create")));
             }
         } catch (ArgumentParserException e) {
             parser.handleError(e);
@@ -55,4 +232,147 @@ public class JNdstool {
             System.exit(1);
         }
     }
+
+    /**
+     * Print the updates of a watched ROM on the standard output
+     */
+    private static class ConsoleUpdates implements ProgressListener {
+        @Override
+        public void updated(String result) {
+            System.out.println(result);
+        }
+
+        @Override
+        public void updateFailed(IOException e) {
+            System.out.println("WARNING! The ROM couldn't be updated: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Show the progress on the standard error, overwriting the line of the current phase
+     */
+    private static class ConsoleProgress extends ConsoleUpdates {
+        @Override
+        public void progress(Progress progress) {
+            System.err.print(String.format("\r%-79s", progress));
+        }
+
+        @Override
+        public void phaseEnded(Progress progress) {
+            System.err.println(String.format("\r%-79s", progress));
+        }
+    }
+
+    /**
+     * Parse a size in bytes, optionally followed by k, m or g
+     *
+     * @param size   The size
+     * @param parser The parser, for reporting errors
+     * @return The size in bytes
+     * @throws ArgumentParserException If the size isn't valid
+     */
+    private static long parseSize(String size, ArgumentParser parser) throws ArgumentParserException {
+        String s = size.trim().toLowerCase();
+        int shift = 0;
+        if (s.endsWith("k"))
+            shift = 10;
+        else if (s.endsWith("m"))
+            shift = 20;
+        else if (s.endsWith("g"))
+            shift = 30;
+        try {
+            long n = Long.parseLong(shift == 0 ? s : s.substring(0, s.length() - 1)) << shift;
+            if (n <= 0)
+                throw new NumberFormatException();
+            return n;
+        } catch (NumberFormatException e) {
+            throw new ArgumentParserException("invalid size " + size, parser);
+        }
+    }
+
+    /**
+     * Print the section owning every offset, the offsets are read from the standard input if none are given
+     *
+     * @param index   The index of the ROM
+     * @param offsets The offsets, decimal or hexadecimal with 0x
+     * @param parser  The parser, for reporting errors
+     * @throws IOException If the standard input can't be read
+     */
+    private static void whois(OffsetIndex index, List<String> offsets, ArgumentParser parser) throws IOException, ArgumentParserException {
+        BufferedReader in = offsets.isEmpty() ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)) : null;
+        StringBuilder out = new StringBuilder();
+        int next = 0;
+        for (String line; (line = in == null ? (next < offsets.size() ? offsets.get(next++) : null) : in.readLine()) != null; ) {
+            if (line.trim().isEmpty())
+                continue;
+            long offset;
+            try {
+                offset = Long.decode(line.trim());
+            } catch (NumberFormatException e) {
+                throw new ArgumentParserException("invalid offset " + line, parser);
+            }
+            OffsetIndex.Match match = index.whois(offset);
+            out.append(String.format("0x%08x  %s", offset, match == null ? "-" : match)).append(System.lineSeparator());
+            if (out.length() > 0x10000) {
+                System.out.print(out);
+                out.setLength(0);
+            }
+        }
+        System.out.print(out);
+    }
+
+    /**
+     * Print the statistics of an extraction or build, if requested
+     *
+     * @param stats  The statistics
+     * @param format "text", "json" or null if they weren't requested
+     */
+    private static void printStats(ROMStats stats, String format) {
+        if ("json".equals(format))
+            System.out.println(stats.toJSON());
+        else if (format != null)
+            System.out.print(stats);
+    }
+
+    /**
+     * Verify a ROM and print the problems found
+     *
+     * @param romPath The path of the .nds file
+     * @return True if the ROM is valid
+     * @throws IOException If the ROM can't be read
+     */
+    private static boolean verify(Path romPath) throws IOException {
+        VerifyReport report = ROMVerifier.verifyROM(romPath);
+        for (String w : report.getWarnings())
+            System.out.println("WARNING: " + w);
+        for (String e : report.getErrors())
+            System.out.println("ERROR: " + e);
+        System.out.println(romPath + ": " + (report.isValid() ? "OK" : report.getErrors().size() + " errors")
+                + " (" + report.getFileCount() + " files checked)");
+        return report.isValid();
+    }
+
+    /**
+     * Print the differences between two ROMs
+     *
+     * @param report The differences
+     * @return True if the ROMs have the same content
+     */
+    private static boolean printDiff(DiffReport report) {
+        for (String h : report.getHeaderChanges())
+            System.out.println("H " + h);
+        for (String b : report.getBinaryChanges())
+            System.out.println("B " + b);
+        for (String o : report.getOverlayChanges())
+            System.out.println("O " + o);
+        for (String a : report.getAdded())
+            System.out.println("A " + a);
+        for (String r : report.getRemoved())
+            System.out.println("D " + r);
+        for (String m : report.getModified())
+            System.out.println("M " + m);
+        for (String[] m : report.getMoved())
+            System.out.println("R " + m[0] + " -> " + m[1]);
+        return report.isIdentical();
+    }
 }
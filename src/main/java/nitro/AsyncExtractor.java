@@ -0,0 +1,274 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BufferPool;
+import io.IOStats;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class extracts ROM sections through asynchronous channels, keeping many reads and writes in flight at once.
+ * The sections are split in chunks of the pool buffer size; every chunk is read from the ROM and then written to its
+ * file by completion handlers, while the calling thread issues the following chunks in offset order. A semaphore caps
+ * the chunks in flight, and each of them owns a pooled buffer until its write completes. Every file is written to a
+ * temporary sibling, moved into place once its last chunk is written, so a failure never leaves a truncated file
+ */
+class AsyncExtractor {
+    private final AsynchronousFileChannel rom;
+    private final BufferPool pool;
+    private final IOStats io; // The counters of the operation
+    private final Semaphore inFlight; // A permit for every chunk being read or written
+    private final Queue<ROMSection> done = new ConcurrentLinkedQueue<>(); // Extracted sections not reported yet
+    private final AtomicReference<Throwable> failure = new AtomicReference<>(); // The first error of a request
+
+    /**
+     * A section being extracted
+     */
+    private static class Target {
+        private final ROMSection section;
+        private final Path path; // Where the file goes once complete
+        private final Path temp; // Where the file is written
+        private final AsynchronousFileChannel out;
+        private final AtomicInteger pending; // Chunks not written yet
+        private volatile boolean failed; // A chunk failed or wasn't issued
+
+        private Target(ROMSection section, Path path, Path temp, AsynchronousFileChannel out, int chunks) {
+            this.section = section;
+            this.path = path;
+            this.temp = temp;
+            this.out = out;
+            this.pending = new AtomicInteger(chunks);
+        }
+    }
+
+    /**
+     * A chunk of a section, owning its buffer while it's read and then written
+     */
+    private static class Chunk {
+        private final Target target;
+        private final ByteBuffer buffer;
+        private final long position; // Position of the chunk in the section
+
+        private Chunk(Target target, ByteBuffer buffer, long position) {
+            this.target = target;
+            this.buffer = buffer;
+            this.position = position;
+        }
+    }
+
+    private final CompletionHandler<Integer, Chunk> readHandler = new CompletionHandler<Integer, Chunk>() {
+        @Override
+        public void completed(Integer n, Chunk c) {
+            if (n < 0) {
+                failed(new EOFException("The ROM ends before " + c.target.section.getName()), c);
+                return;
+            }
+            io.countRead(n);
+            if (c.buffer.hasRemaining())
+                rom.read(c.buffer, c.target.section.getOffset() + c.position + c.buffer.position(), c, this);
+            else {
+                c.buffer.flip();
+                c.target.out.write(c.buffer, c.position, c, writeHandler);
+            }
+        }
+
+        @Override
+        public void failed(Throwable e, Chunk c) {
+            finish(c, e);
+        }
+    };
+
+    private final CompletionHandler<Integer, Chunk> writeHandler = new CompletionHandler<Integer, Chunk>() {
+        @Override
+        public void completed(Integer n, Chunk c) {
+            io.countWrite(n);
+            if (c.buffer.hasRemaining())
+                c.target.out.write(c.buffer, c.position + c.buffer.position(), c, this);
+            else
+                finish(c, null);
+        }
+
+        @Override
+        public void failed(Throwable e, Chunk c) {
+            finish(c, e);
+        }
+    };
+
+    private AsyncExtractor(AsynchronousFileChannel rom, int requests, BufferPool pool, IOStats io) {
+        this.rom = rom;
+        this.pool = pool;
+        this.io = io;
+        this.inFlight = new Semaphore(requests);
+    }
+
+    /**
+     * Extract the given sections which don't exist yet, issuing the reads in the order of the list
+     *
+     * @param romPath    The path of the .nds file
+     * @param dirPath    The path where to extract the sections, with the directories already created
+     * @param sections   The sections to extract, named after their relative path
+     * @param stats      The statistics of the extraction, advanced for every section
+     * @param requests Maximum number of chunks in flight
+     * @param pool     The buffers of the chunks, which are as big as them
+     * @throws IOException If something goes wrong, InterruptedIOException if the listener cancelled the extraction
+     */
+    static void extract(Path romPath, Path dirPath, List<ROMSection> sections, ROMStats stats, int requests, BufferPool pool) throws IOException {
+        if (requests <= 0)
+            throw new IOException("The number of requests must be positive!");
+        AsynchronousFileChannel rom = AsynchronousFileChannel.open(romPath, StandardOpenOption.READ);
+        AsyncExtractor extractor = new AsyncExtractor(rom, requests, pool, stats.getIOStats());
+        try {
+            for (ROMSection s : sections) {
+                extractor.issue(dirPath.resolve(s.getName()), s, stats);
+                extractor.report(stats);
+            }
+        } finally {
+            extractor.inFlight.acquireUninterruptibly(requests); // wait for everything in flight
+            rom.close();
+        }
+        extractor.report(stats);
+    }
+
+    /**
+     * Issue the chunks of a section, waiting for a free request slot before each of them
+     */
+    private void issue(Path path, ROMSection section, ROMStats stats) throws IOException {
+        if (Files.exists(path)) {
+            stats.advance(1, section.getSize());
+            return;
+        }
+        int chunks = (int) ((section.getSize() + (long) pool.getBufferSize() - 1) / pool.getBufferSize());
+        if (chunks == 0) {
+            Files.createFile(path);
+            stats.advance(1, 0);
+            return;
+        }
+        // Files.createTempFile would make the file private, so a new sibling is created with the default permissions
+        Path temp;
+        AsynchronousFileChannel out;
+        for (int n = 0; ; n++) {
+            temp = path.resolveSibling("." + path.getFileName() + "." + n + ".tmp");
+            try {
+                out = AsynchronousFileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                break;
+            } catch (FileAlreadyExistsException e) {
+                // left by an interrupted extraction, or a file of the ROM with that name
+            }
+        }
+        Target target = new Target(section, path, temp, out, chunks);
+        for (int i = 0; i < chunks; i++) {
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abandon(target, chunks - i);
+                throw new InterruptedIOException("Interrupted while waiting for a request slot");
+            }
+            ByteBuffer buffer;
+            try {
+                buffer = pool.acquire(); // waits only if the pool is shared with other operations
+            } catch (IOException e) {
+                inFlight.release();
+                abandon(target, chunks - i);
+                throw e;
+            }
+            long position = (long) i * pool.getBufferSize();
+            buffer.limit((int) Math.min(pool.getBufferSize(), section.getSize() - position));
+            Chunk c = new Chunk(target, buffer, position);
+            try {
+                rom.read(buffer, section.getOffset() + position, c, readHandler);
+            } catch (RuntimeException e) {
+                finish(c, e);
+            }
+        }
+    }
+
+    /**
+     * Give up the chunks of a section which will never be issued, so the file is discarded once the others are done
+     */
+    private void abandon(Target target, int chunks) {
+        target.failed = true;
+        if (target.pending.addAndGet(-chunks) == 0)
+            complete(target);
+    }
+
+    /**
+     * Release the resources of a completed or failed chunk, completing its file after the last one
+     */
+    private void finish(Chunk c, Throwable error) {
+        if (error != null) {
+            failure.compareAndSet(null, error);
+            c.target.failed = true;
+        }
+        pool.release(c.buffer);
+        if (c.target.pending.decrementAndGet() == 0)
+            complete(c.target);
+        inFlight.release();
+    }
+
+    /**
+     * Close the file of a section whose chunks are all done, then move it into place or delete it if anything failed
+     */
+    private void complete(Target target) {
+        try {
+            target.out.close();
+            if (target.failed)
+                Files.deleteIfExists(target.temp);
+            else {
+                Files.move(target.temp, target.path, StandardCopyOption.REPLACE_EXISTING);
+                done.add(target.section);
+            }
+        } catch (IOException e) {
+            failure.compareAndSet(null, e);
+            try {
+                Files.deleteIfExists(target.temp);
+            } catch (IOException ignored) {
+                // The first error is the one reported
+            }
+        }
+    }
+
+    /**
+     * Report the sections extracted so far, or throw the first error
+     */
+    private void report(ROMStats stats) throws IOException {
+        Throwable e = failure.get();
+        if (e != null)
+            throw e instanceof IOException ? new IOException(e.getMessage(), e) : new IOException(e);
+        for (ROMSection s = done.poll(); s != null; s = done.poll())
+            stats.advance(1, s.getSize());
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * This class implements the bottom LZ (BLZ) compression used for the ARM9 binary and the overlays.
+ * A BLZ file keeps an uncompressed prefix, followed by LZ data meant to be decoded from the end towards the beginning,
+ * so that the ARM9 can decompress it in place, and by a footer:
+ * - 24 bits: size of the compressed data plus the footer (and its padding)
+ * - 8 bits: size of the footer with its padding
+ * - 32 bits: how much bigger the decompressed file is, minus the footer size
+ * The LZ data, read backwards, is made of flag bytes (MSB first, one bit per token) each followed by up to 8 tokens,
+ * a literal byte or a 2 bytes match of 3-18 bytes at a distance of 3-4098 bytes
+ */
+public class BLZ {
+    public static final int DEFAULT_MAX_CHAIN = 128; // Match candidates tried at every position by default
+    public static final int ARM9_SECURE_AREA = 0x4000; // The beginning of the ARM9 is never compressed
+
+    private static final int MIN_MATCH = 3;
+    private static final int MAX_MATCH = 18;
+    private static final int MIN_DISTANCE = 3;
+    private static final int MAX_DISTANCE = 0x1002;
+    private static final int HASH_BITS = 15;
+
+    /**
+     * Check if the data ends with a plausible BLZ footer
+     *
+     * @param data   The data
+     * @param length Length of the data, the footer is at its end
+     * @return True if the footer is consistent with the length
+     */
+    public static boolean hasFooter(byte[] data, int length) {
+        if (length < 8)
+            return false;
+        int headerLength = data[length - 5] & 0xff;
+        int encodedLength = readInt(data, length - 8) & 0xffffff;
+        int increase = readInt(data, length - 4);
+        return increase != 0 && headerLength >= 8 && headerLength <= 0xb && encodedLength >= headerLength && encodedLength <= length;
+    }
+
+    /**
+     * Decompress BLZ data
+     *
+     * @param data   The compressed data
+     * @param length Length of the compressed data, the footer is at its end
+     * @return The decompressed data
+     * @throws IOException If the data is corrupted
+     */
+    public static byte[] decompress(byte[] data, int length) throws IOException {
+        if (length < 8)
+            throw new IOException("BLZ data too short!");
+        int increase = readInt(data, length - 4);
+        // Stored without compression, nothing to decode. Unlike the reference tool, which drops the 4-byte footer, the
+        // data is returned whole, so its size still matches the overlay record and the build keeps it as it is
+        if (increase == 0)
+            return Arrays.copyOf(data, length);
+        if (!hasFooter(data, length))
+            throw new IOException("Invalid BLZ footer!");
+        int headerLength = data[length - 5] & 0xff;
+        int encodedLength = readInt(data, length - 8) & 0xffffff;
+        int prefix = length - encodedLength; // uncompressed bytes at the beginning
+        long rawLength = (long) length + increase;
+        if (increase < 0 || rawLength > Integer.MAX_VALUE - 8)
+            throw new IOException("Invalid BLZ decompressed size!");
+        byte[] raw = new byte[(int) rawLength];
+        System.arraycopy(data, 0, raw, 0, prefix);
+
+        // Both the input and the output are walked backwards
+        int in = prefix + encodedLength - headerLength;
+        int out = raw.length;
+        int flags = 0;
+        int mask = 0;
+        while (out > prefix) {
+            if ((mask >>>= 1) == 0) {
+                if (in == prefix)
+                    break;
+                flags = data[--in] & 0xff;
+                mask = 0x80;
+            }
+            if ((flags & mask) == 0) {
+                if (in == prefix)
+                    break;
+                raw[--out] = data[--in];
+            } else {
+                if (in - 2 < prefix)
+                    throw new IOException("Truncated BLZ match!");
+                int token = (data[--in] & 0xff) << 8;
+                token |= data[--in] & 0xff;
+                int count = Math.min((token >>> 12) + MIN_MATCH, out - prefix);
+                int distance = (token & 0xfff) + MIN_DISTANCE;
+                if (out + distance > raw.length)
+                    throw new IOException("BLZ match out of bounds!");
+                for (int i = 0; i < count; i++, out--)
+                    raw[out - 1] = raw[out - 1 + distance];
+            }
+        }
+        if (out != prefix)
+            throw new IOException("Truncated BLZ data!");
+        return raw;
+    }
+
+    /**
+     * Compress data with BLZ, trying DEFAULT_MAX_CHAIN candidates for every match
+     *
+     * @param data The data
+     * @param keep Bytes at the beginning which must stay uncompressed
+     * @return The compressed data, or null if compression doesn't make it smaller
+     */
+    public static byte[] compress(byte[] data, int keep) {
+        return compress(data, keep, DEFAULT_MAX_CHAIN);
+    }
+
+    /**
+     * Compress data with BLZ. The matches are found through hash chains of the 3 bytes at every position, following
+     * at most maxChain links; Integer.MAX_VALUE gives the same matches as an exhaustive search of the window.
+     * The split between the uncompressed prefix and the compressed part is chosen as in the reference tool, so that
+     * decompressing in place never overwrites data not read yet
+     *
+     * @param data     The data
+     * @param keep     Bytes at the beginning which must stay uncompressed
+     * @param maxChain Maximum number of candidates tried for every match
+     * @return The compressed data, or null if compression doesn't make it smaller
+     */
+    public static byte[] compress(byte[] data, int keep, int maxChain) {
+        int length = data.length;
+        keep = Math.max(0, Math.min(keep, length));
+        // The data is compressed from the end, so work on it reversed
+        byte[] src = reverse(data, 0, length);
+        int end = length - keep; // the reversed kept prefix must not be compressed
+
+        byte[] out = new byte[end + (end + 7) / 8 + 1];
+        int[] head = new int[1 << HASH_BITS];
+        int[] prev = new int[Math.max(end, 1)];
+        Arrays.fill(head, -1);
+        int o = 0;
+        int flagPos = 0;
+        int mask = 0;
+        int bestOut = 0; // Compressed bytes of the best split
+        int bestIn = 0; // Input bytes they encode
+        int inserted = 0; // Positions added to the hash chains
+
+        int pos = 0;
+        while (pos < end) {
+            if ((mask >>>= 1) == 0) {
+                flagPos = o;
+                out[o++] = 0;
+                mask = 0x80;
+            }
+            // Find the longest match, not overlapping its source as the reference tool does
+            int bestLength = MIN_MATCH - 1;
+            int bestDistance = 0;
+            int limit = Math.min(MAX_MATCH, end - pos);
+            if (limit >= MIN_MATCH) {
+                for (; inserted <= pos - MIN_DISTANCE; inserted++)
+                    insert(src, head, prev, inserted);
+                int candidate = head[hash(src, pos)];
+                for (int chain = 0; candidate >= 0 && pos - candidate <= MAX_DISTANCE && chain < maxChain; chain++) {
+                    int distance = pos - candidate;
+                    int max = Math.min(limit, distance);
+                    if (max > bestLength && src[candidate + bestLength] == src[pos + bestLength]) {
+                        int n = 0;
+                        while (n < max && src[candidate + n] == src[pos + n])
+                            n++;
+                        if (n > bestLength) {
+                            bestLength = n;
+                            bestDistance = distance;
+                            if (n == limit)
+                                break;
+                        }
+                    }
+                    candidate = prev[candidate];
+                }
+            }
+            if (bestLength >= MIN_MATCH) {
+                out[flagPos] |= mask;
+                int token = (bestLength - MIN_MATCH) << 12 | (bestDistance - MIN_DISTANCE);
+                out[o++] = (byte) (token >>> 8);
+                out[o++] = (byte) token;
+                pos += bestLength;
+            } else
+                out[o++] = src[pos++];
+            // Keep the split where the compressed part plus the uncompressed rest is the smallest
+            if (o + length - pos < bestOut + length - bestIn) {
+                bestOut = o;
+                bestIn = pos;
+            }
+        }
+
+        int prefix = length - bestIn;
+        int padding = (4 - (prefix + bestOut) % 4) % 4;
+        int total = prefix + bestOut + padding + 8;
+        if (bestOut == 0 || total >= length)
+            return null;
+        byte[] result = new byte[total];
+        System.arraycopy(data, 0, result, 0, prefix);
+        for (int i = 0; i < bestOut; i++)
+            result[prefix + i] = out[bestOut - 1 - i];
+        Arrays.fill(result, prefix + bestOut, prefix + bestOut + padding, (byte) 0xff);
+        int headerLength = 8 + padding;
+        writeInt(result, total - 8, (bestOut + headerLength) | headerLength << 24);
+        writeInt(result, total - 4, bestIn - bestOut - headerLength);
+        return result;
+    }
+
+    /**
+     * Decompress an ARM9 binary, if its module parameters say that it's compressed.
+     * The compressed end in the module parameters is cleared, so the result can be used as is
+     *
+     * @param arm9       The ARM9 binary
+     * @param ramAddress The RAM address the ARM9 is loaded at
+     * @return The decompressed binary, or null if it isn't compressed
+     * @throws IOException If the compressed data is corrupted
+     */
+    public static byte[] decompressArm9(byte[] arm9, int ramAddress) throws IOException {
+        int params = findModuleParams(arm9);
+        if (params < 0 || readInt(arm9, params + 0x14) == 0)
+            return null;
+        int end = readInt(arm9, params + 0x14) - ramAddress;
+        if (end <= 0 || end > arm9.length)
+            throw new IOException("The ARM9 compressed end is outside the binary!");
+        byte[] raw = decompress(arm9, end);
+        byte[] result = Arrays.copyOf(raw, raw.length + arm9.length - end);
+        System.arraycopy(arm9, end, result, raw.length, arm9.length - end);
+        params = findModuleParams(result);
+        if (params >= 0)
+            writeInt(result, params + 0x14, 0);
+        return result;
+    }
+
+    /**
+     * Compress an ARM9 binary whose module parameters say that it's not compressed, setting its compressed end.
+     * The secure area and the module parameters stay uncompressed
+     *
+     * @param arm9       The ARM9 binary
+     * @param ramAddress The RAM address the ARM9 is loaded at
+     * @param maxChain   Maximum number of candidates tried for every match
+     * @return The compressed binary, or null if it has no module parameters, is already compressed or doesn't shrink
+     */
+    public static byte[] compressArm9(byte[] arm9, int ramAddress, int maxChain) {
+        int params = findModuleParams(arm9);
+        if (params < 0 || readInt(arm9, params + 0x14) != 0)
+            return null;
+        byte[] compressed = compress(arm9, Math.max(ARM9_SECURE_AREA, params + 0x24), maxChain);
+        if (compressed != null)
+            writeInt(compressed, params + 0x14, ramAddress + compressed.length);
+        return compressed;
+    }
+
+    /**
+     * Find the module parameters of an ARM9 binary through the two nitrocode words at their end
+     *
+     * @param arm9 The ARM9 binary
+     * @return The offset of the module parameters, or -1 if they're missing
+     */
+    static int findModuleParams(byte[] arm9) {
+        for (int i = 0x1c; i + 8 <= arm9.length; i += 4)
+            if (readInt(arm9, i) == 0xdec00621 && readInt(arm9, i + 4) == 0x2106c0de)
+                return i - 0x1c;
+        return -1;
+    }
+
+    private static void insert(byte[] src, int[] head, int[] prev, int pos) {
+        if (pos + MIN_MATCH > src.length)
+            return;
+        int h = hash(src, pos);
+        prev[pos] = head[h];
+        head[h] = pos;
+    }
+
+    private static int hash(byte[] src, int pos) {
+        int v = (src[pos] & 0xff) | (src[pos + 1] & 0xff) << 8 | (src[pos + 2] & 0xff) << 16;
+        return (v * 0x9e3779b1) >>> (32 - HASH_BITS);
+    }
+
+    private static byte[] reverse(byte[] data, int offset, int length) {
+        byte[] r = new byte[length];
+        for (int i = 0; i < length; i++)
+            r[i] = data[offset + length - 1 - i];
+        return r;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8 | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >>> 8);
+        data[offset + 2] = (byte) (value >>> 16);
+        data[offset + 3] = (byte) (value >>> 24);
+    }
+}
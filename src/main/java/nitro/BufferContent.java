@@ -0,0 +1,60 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BinaryWriter;
+import io.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class represents a ROM section whose content is already in memory, like generated tables or recompressed
+ * binaries
+ */
+class BufferContent implements ROMContent {
+    private final ByteBuffer data;
+
+    public BufferContent(ByteBuffer data) {
+        this.data = data;
+    }
+
+    public BufferContent(byte[] data) {
+        this(ByteBuffer.wrap(data));
+    }
+
+    @Override
+    public int getSize() {
+        return data.capacity();
+    }
+
+    @Override
+    public void writeTo(BinaryWriter rom, BufferPool pool) throws IOException {
+        rom.writeBytes(data.duplicate());
+    }
+
+    @Override
+    public byte[] readAll() {
+        byte[] bytes = new byte[data.capacity()];
+        ByteBuffer d = data.duplicate();
+        d.clear();
+        d.get(bytes);
+        return bytes;
+    }
+}
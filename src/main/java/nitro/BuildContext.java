@@ -0,0 +1,89 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class holds the counters used while laying out the Nitro file system of a ROM being built: the next
+ * directory ID, the next file ID and the offset of the next file. It also collects the expanded NARC archives met
+ * while loading a host directory.
+ * Every build has its own context, so any number of builds can run at the same time
+ */
+class BuildContext {
+    private int nextDirID; // ID of the last directory created
+    private int nextFileID;
+    private int nextOffset; // Always 4-byte aligned
+    private final List<NitroFile> archives = new ArrayList<>();
+
+    /**
+     * Class constructor
+     *
+     * @param rootDirID   ID of the root directory, the following directories get the next IDs
+     * @param firstFileID ID of the first file (the overlays come before the files)
+     * @param firstOffset Offset of the first file, aligned to 4 bytes if needed
+     */
+    public BuildContext(int rootDirID, int firstFileID, int firstOffset) {
+        this.nextDirID = rootDirID;
+        this.nextFileID = firstFileID;
+        this.nextOffset = firstOffset + ROM.addPadding(firstOffset);
+    }
+
+    /**
+     * Get the ID of a new directory
+     *
+     * @return The directory ID
+     */
+    public int nextDirectoryID() {
+        return ++nextDirID;
+    }
+
+    /**
+     * Assign the next file ID and offset to a file, according to its size
+     *
+     * @param file The file to place
+     */
+    public void place(NitroFile file) {
+        file.setId(nextFileID++);
+        file.setOffset(nextOffset);
+        nextOffset += file.getSize() + ROM.addPadding(file.getSize());
+    }
+
+    /**
+     * Remember a file which is an expanded NARC archive in the host file system
+     *
+     * @param file The file
+     */
+    public void addArchive(NitroFile file) {
+        archives.add(file);
+    }
+
+    public List<NitroFile> getArchives() {
+        return archives;
+    }
+
+    public int getNextFileID() {
+        return nextFileID;
+    }
+
+    public int getNextOffset() {
+        return nextOffset;
+    }
+}
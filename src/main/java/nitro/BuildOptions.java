@@ -0,0 +1,110 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BufferPool;
+
+/**
+ * This class holds the options of a ROM build
+ */
+public class BuildOptions {
+    public static final int DEFAULT_READ_AHEAD_BUFFERS = 64; // Chunks read ahead when there's no budget
+
+    private int bufferSize = 0x10000; // Size of the chunks used when copying through pooled buffers
+    private long bufferBudget = 0; // Memory reserved for pooled buffers, 0 to read every input in one go
+    private int readAheadThreads = 0; // Threads reading the files ahead of the writer, 0 to read them in turn
+    private boolean compressBinaries = false; // Compress the ARM9 and the decompressed overlays with BLZ
+    private BufferPool bufferPool; // Buffers shared with other operations, null to allocate them for the build
+    private ProgressListener progressListener; // Null if nobody is interested in the progress
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public long getBufferBudget() {
+        return bufferBudget;
+    }
+
+    /**
+     * Bound the memory used for copying the inputs. With a budget, every input is copied in chunks of bufferSize bytes
+     * through pooled direct buffers, and no more than budget / bufferSize buffers (at least one) are ever allocated.
+     * Without it, every input is read whole in the heap
+     *
+     * @param bufferBudget The budget in bytes, 0 for no budget
+     */
+    public void setBufferBudget(long bufferBudget) {
+        this.bufferBudget = bufferBudget;
+    }
+
+    public int getReadAheadThreads() {
+        return readAheadThreads;
+    }
+
+    /**
+     * Read the files ahead of the writer. The given number of threads reads the following files in chunks of
+     * bufferSize bytes, while the ROM is written sequentially; the chunks waiting to be written are bounded by the
+     * budget, or by DEFAULT_READ_AHEAD_BUFFERS without it
+     *
+     * @param readAheadThreads The number of reader threads, 0 to read every file when it's written
+     */
+    public void setReadAheadThreads(int readAheadThreads) {
+        this.readAheadThreads = readAheadThreads;
+    }
+
+    public boolean isCompressBinaries() {
+        return compressBinaries;
+    }
+
+    /**
+     * Compress with BLZ an ARM9 whose module parameters say it's not compressed, and the overlays flagged as
+     * compressed whose size shows they've been decompressed. Without it such overlays are stored uncompressed and
+     * their flag is cleared
+     *
+     * @param compressBinaries True to compress them
+     */
+    public void setCompressBinaries(boolean compressBinaries) {
+        this.compressBinaries = compressBinaries;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Copy the inputs through the buffers of a pool shared with other operations, in chunks as big as its buffers.
+     * The pool then bounds the memory instead of the budget, and the buffer size is ignored
+     *
+     * @param bufferPool The shared pool, null to allocate the buffers for the build
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public ProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+}
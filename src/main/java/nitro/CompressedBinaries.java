@@ -0,0 +1,194 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BinaryReader;
+import io.BinaryWriter;
+import io.IOStats;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * This class handles the BLZ compression of the ARM9 and of the overlays flagged as compressed in their table.
+ * Extraction can write them decompressed; building then recompresses the ones which aren't compressed anymore, or
+ * stores them uncompressed clearing their flag, so the ROM is always consistent
+ */
+class CompressedBinaries {
+    /**
+     * Extract the ARM9 and the compressed overlays decompressed, the overlays in parallel.
+     * Files which already exist are skipped
+     *
+     * @param rom      BinaryReader stream of the .nds ROM
+     * @param dirPath  The path where to extract them
+     * @param header   The header of the ROM
+     * @param overlays The ARM9 and then the ARM7 overlays, with their offsets
+     * @param names    The names of the binaries to extract, among the ones returned by getNames
+     * @param stats    The statistics of the extraction, advanced for every binary
+     * @return The compressed sizes of the binaries extracted
+     * @throws IOException If something goes wrong or a binary is corrupted
+     */
+    static List<Integer> extract(BinaryReader rom, Path dirPath, NitroHeader header, List<NitroOverlay> overlays, Collection<String> names, ROMStats stats) throws IOException {
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        Path arm9Path = dirPath.resolve("arm9.bin");
+        if (names.contains("arm9.bin") && Files.notExists(arm9Path)) {
+            rom.seek(header.getArm9RomOffset());
+            byte[] arm9 = rom.readBuffer(header.getArm9Size());
+            tasks.add(() -> {
+                byte[] raw = BLZ.decompressArm9(arm9, header.getArm9RamAddress());
+                write(arm9Path, raw == null ? arm9 : raw, stats.getIOStats());
+                return arm9.length;
+            });
+        }
+        for (int i = 0; i < overlays.size(); i++) {
+            NitroOverlay o = overlays.get(i);
+            Path path = dirPath.resolve("overlay").resolve(String.format("overlay_%04d.bin", i));
+            if (!names.contains(String.format("overlay/overlay_%04d.bin", i)) || Files.exists(path))
+                continue;
+            rom.seek(o.getStartOffset());
+            byte[] data = rom.readBuffer(o.getEndOffset() - o.getStartOffset());
+            tasks.add(() -> {
+                write(path, BLZ.decompress(data, data.length), stats.getIOStats());
+                return data.length;
+            });
+        }
+        List<Integer> sizes = invokeAll(tasks);
+        for (int bytes : sizes)
+            stats.advance(1, bytes);
+        return sizes;
+    }
+
+    /**
+     * Get the names of the files written by extract, which the plain extraction must leave alone
+     *
+     * @param overlays The ARM9 and then the ARM7 overlays
+     * @return The names, relative to the extraction directory
+     */
+    static List<String> getNames(List<NitroOverlay> overlays) {
+        List<String> names = new ArrayList<>();
+        names.add("arm9.bin");
+        for (int i = 0; i < overlays.size(); i++)
+            if (overlays.get(i).isCompressed())
+                names.add(String.format("overlay/overlay_%04d.bin", i));
+        return names;
+    }
+
+    /**
+     * Prepare the ARM9 for the build, compressing it if requested and if it isn't already
+     *
+     * @param arm9       The ARM9 content
+     * @param ramAddress The RAM address the ARM9 is loaded at
+     * @param compress   True to compress it
+     * @return The content to write
+     * @throws IOException If the ARM9 can't be read
+     */
+    static ROMContent prepareArm9(ROMContent arm9, int ramAddress, boolean compress) throws IOException {
+        if (!compress)
+            return arm9;
+        byte[] compressed = BLZ.compressArm9(arm9.readAll(), ramAddress, BLZ.DEFAULT_MAX_CHAIN);
+        return compressed == null ? arm9 : new BufferContent(compressed);
+    }
+
+    /**
+     * Prepare the overlays for the build. A flagged overlay whose size matches the compressed size of its record is
+     * still compressed and is kept as is; otherwise it has been decompressed, so it's compressed again in parallel if
+     * requested, or its flag is cleared
+     *
+     * @param overlays The overlays content, ARM9 ones first
+     * @param records  The records of both tables, in the same order, updated when a flag is cleared
+     * @param compress True to compress the decompressed overlays
+     * @return The overlays content to write
+     * @throws IOException If an overlay can't be read
+     */
+    static List<ROMContent> prepareOverlays(List<ROMContent> overlays, List<NitroOverlay> records, boolean compress) throws IOException {
+        List<ROMContent> prepared = new ArrayList<>(overlays);
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < records.size(); i++) {
+            NitroOverlay o = records.get(i);
+            ROMContent content = overlays.get(i);
+            if (!o.isCompressed() || content.getSize() == o.getCompressedSize())
+                continue;
+            if (!compress) {
+                o.setCompressed(false);
+                continue;
+            }
+            int index = i;
+            tasks.add(() -> {
+                byte[] compressed = BLZ.compress(content.readAll(), 0);
+                if (compressed == null) // it doesn't shrink, so it's stored uncompressed
+                    o.setCompressed(false);
+                else
+                    prepared.set(index, new BufferContent(compressed));
+                return index;
+            });
+        }
+        invokeAll(tasks);
+        return prepared;
+    }
+
+    private static void write(Path path, byte[] data, IOStats io) throws IOException {
+        BinaryWriter w = new BinaryWriter(path);
+        w.setStats(io);
+        w.writeBytes(data);
+        w.close();
+    }
+
+    /**
+     * Run the tasks on the common pool, waiting for all of them
+     *
+     * @param tasks The tasks
+     * @return Their results, in the same order
+     * @throws IOException The first error of a task
+     */
+    static <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>();
+        for (Future<T> f : ForkJoinPool.commonPool().invokeAll(tasks))
+            results.add(get(f));
+        return results;
+    }
+
+    /**
+     * Wait for the result of a task
+     *
+     * @param future The task
+     * @return Its result
+     * @throws IOException The error of the task
+     */
+    static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the compression");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+}
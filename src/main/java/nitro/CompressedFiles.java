@@ -0,0 +1,176 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BinaryReader;
+import io.BinaryWriter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * This class handles the LZ10/LZ11 compressed files of the Nitro file system.
+ * Extraction can write them decompressed, marking them in a list stored in the extracted directory (data.lz, a line
+ * with the type in hex and the path for every file); building compresses the marked files again, in parallel
+ */
+class CompressedFiles {
+    public static final String MARKS_FILE = "data.lz";
+
+    /**
+     * Extract the given files, decompressing the ones which are complete LZ streams. The ROM is read sequentially
+     * while the files are decompressed and written in parallel. Files which already exist are skipped, keeping
+     * their marks
+     *
+     * @param rom     BinaryReader stream of the .nds ROM
+     * @param dirPath The path where to extract the files
+     * @param files   The sections of the files, in offset order, named data/...
+     * @param stats   The statistics of the extraction, advanced for every file
+     * @return The number of files decompressed
+     * @throws IOException If something goes wrong
+     */
+    static int extract(BinaryReader rom, Path dirPath, List<ROMSection> files, ROMStats stats) throws IOException {
+        Map<String, Integer> marks = new ConcurrentHashMap<>(readMarks(dirPath));
+        int threads = Runtime.getRuntime().availableProcessors();
+        Semaphore inFlight = new Semaphore(threads * 2); // bounds the files held in memory
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Boolean>> results = new ArrayList<>();
+        try {
+            for (ROMSection s : files) {
+                Path path = dirPath.resolve(s.getName());
+                String name = s.getName().substring("data/".length());
+                if (Files.exists(path)) {
+                    stats.advance(1, s.getSize());
+                    continue;
+                }
+                marks.remove(name);
+                rom.seek(s.getOffset());
+                byte[] data = rom.readBuffer(s.getSize());
+                try {
+                    inFlight.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the decompression");
+                }
+                results.add(pool.submit(() -> {
+                    try {
+                        byte[] raw = LZ.tryDecompress(data);
+                        BinaryWriter w = new BinaryWriter(path);
+                        w.setStats(stats.getIOStats());
+                        w.writeBytes(raw == null ? data : raw);
+                        w.close();
+                        if (raw != null)
+                            marks.put(name, LZ.getType(data, 0, data.length));
+                        return raw != null;
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+                stats.advance(1, s.getSize());
+            }
+            int decompressed = 0;
+            for (Future<Boolean> f : results)
+                if (CompressedBinaries.get(f))
+                    decompressed++;
+            writeMarks(dirPath, marks);
+            return decompressed;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Read the marks of the files extracted decompressed
+     *
+     * @param dirPath The extracted directory
+     * @return The LZ type of every marked file, by path relative to data, empty if there's no list
+     * @throws IOException If the list is corrupted
+     */
+    static Map<String, Integer> readMarks(Path dirPath) throws IOException {
+        Map<String, Integer> marks = new TreeMap<>();
+        Path list = dirPath.resolve(MARKS_FILE);
+        if (Files.notExists(list))
+            return marks;
+        for (String line : Files.readAllLines(list, StandardCharsets.UTF_8)) {
+            if (line.isEmpty())
+                continue;
+            int space = line.indexOf(' ');
+            if (space < 0)
+                throw new IOException("Invalid line in " + MARKS_FILE + ": " + line);
+            int type = Integer.parseInt(line.substring(0, space), 16);
+            if (type != LZ.LZ10 && type != LZ.LZ11)
+                throw new IOException("Unknown LZ type in " + MARKS_FILE + ": " + line);
+            marks.put(line.substring(space + 1), type);
+        }
+        return marks;
+    }
+
+    private static void writeMarks(Path dirPath, Map<String, Integer> marks) throws IOException {
+        Path list = dirPath.resolve(MARKS_FILE);
+        if (marks.isEmpty()) {
+            Files.deleteIfExists(list);
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Integer> e : new TreeMap<>(marks).entrySet())
+            lines.add(Integer.toHexString(e.getValue()) + " " + e.getKey());
+        Files.write(list, lines, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compress the marked files of the tree in parallel, updating their sizes
+     *
+     * @param source The source of the files
+     * @param root   The root of the tree, before the layout
+     * @param marks  The LZ type of every marked file, by path relative to data
+     * @return The compressed content of every marked file
+     * @throws IOException If a marked file is missing or can't be read
+     */
+    static Map<NitroFile, ROMContent> compress(ROMSource source, NitroDirectory root, Map<String, Integer> marks) throws IOException {
+        List<NitroFile> marked = new ArrayList<>();
+        for (NitroFile f : NitroDirectory.listFiles(root))
+            if (marks.containsKey(f.getPath()))
+                marked.add(f);
+        if (marked.size() != marks.size())
+            throw new IOException((marks.size() - marked.size()) + " files marked in " + MARKS_FILE + " don't exist!");
+        List<Callable<byte[]>> tasks = new ArrayList<>();
+        for (NitroFile f : marked)
+            tasks.add(() -> LZ.compress(source.getFile(f).readAll(), marks.get(f.getPath())));
+        List<byte[]> compressed = CompressedBinaries.invokeAll(tasks);
+        Map<NitroFile, ROMContent> contents = new IdentityHashMap<>();
+        for (int i = 0; i < marked.size(); i++) {
+            marked.get(i).setSize(compressed.get(i).length);
+            contents.put(marked.get(i), new BufferContent(compressed.get(i)));
+        }
+        return contents;
+    }
+}
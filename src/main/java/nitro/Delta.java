@@ -0,0 +1,170 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class computes binary deltas with a rolling hash matcher (rsync style).
+ * The source is indexed by blocks, then the target is scanned byte by byte looking for blocks in common.
+ * A delta is a sequence of operations, each one encoded as a tag followed by varints:
+ * COPY (source offset, length) and INSERT (length, literal bytes)
+ */
+class Delta {
+    static final int COPY = 0;
+    static final int INSERT = 1;
+
+    private static final int BLOCK_SIZE = 32; // The minimum length of a match
+    private static final int MAX_CHAIN = 16; // How many candidates with the same hash we check
+    private static final int PRIME = 0x01000193;
+    private static final int PRIME_POW; // PRIME^(BLOCK_SIZE - 1), used for rolling the oldest byte out
+
+    static {
+        int p = 1;
+        for (int i = 0; i < BLOCK_SIZE - 1; i++)
+            p *= PRIME;
+        PRIME_POW = p;
+    }
+
+    /**
+     * Encode the target as a delta against the source
+     *
+     * @param source The source data (position and limit delimit it)
+     * @param target The target data (position and limit delimit it)
+     * @param out    Where to write the operations
+     * @return The number of operations written
+     */
+    public static int encode(ByteBuffer source, ByteBuffer target, ByteArrayOutputStream out) {
+        ByteBuffer s = source.slice();
+        ByteBuffer t = target.slice();
+        int sl = s.remaining();
+        int tl = t.remaining();
+        if (sl < BLOCK_SIZE || tl < BLOCK_SIZE)
+            return insert(t, 0, tl, out);
+
+        // Index the source blocks: head holds the last block for every hash bucket, next chains the previous ones
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(sl / BLOCK_SIZE, 1));
+        int[] head = new int[1 << bits];
+        int[] next = new int[sl / BLOCK_SIZE];
+        Arrays.fill(head, -1);
+        for (int b = 0; b < next.length; b++) {
+            int bucket = bucket(hash(s, b * BLOCK_SIZE), bits);
+            next[b] = head[bucket];
+            head[bucket] = b;
+        }
+
+        int ops = 0;
+        int literalStart = 0;
+        int i = 0;
+        int h = hash(t, 0);
+        while (i + BLOCK_SIZE <= tl) {
+            int bestSource = -1;
+            int bestLength = 0;
+            int chain = 0;
+            for (int b = head[bucket(h, bits)]; b != -1 && chain < MAX_CHAIN; b = next[b], chain++) {
+                int length = matchLength(s, b * BLOCK_SIZE, t, i);
+                if (length > bestLength) {
+                    bestLength = length;
+                    bestSource = b * BLOCK_SIZE;
+                }
+            }
+            if (bestLength >= BLOCK_SIZE) {
+                // Extend the match backwards into the pending literal
+                int back = 0;
+                while (i - back > literalStart && bestSource - back > 0
+                        && s.get(bestSource - back - 1) == t.get(i - back - 1))
+                    back++;
+                if (i - back > literalStart)
+                    ops += insert(t, literalStart, i - back - literalStart, out);
+                out.write(COPY);
+                writeVarInt(out, bestSource - back);
+                writeVarInt(out, bestLength + back);
+                ops++;
+                i += bestLength;
+                literalStart = i;
+                if (i + BLOCK_SIZE <= tl)
+                    h = hash(t, i);
+            } else {
+                if (i + BLOCK_SIZE < tl)
+                    h = (h - (t.get(i) & 0xff) * PRIME_POW) * PRIME + (t.get(i + BLOCK_SIZE) & 0xff);
+                i++;
+            }
+        }
+        if (literalStart < tl)
+            ops += insert(t, literalStart, tl - literalStart, out);
+        return ops;
+    }
+
+    private static int insert(ByteBuffer t, int offset, int length, ByteArrayOutputStream out) {
+        if (length == 0)
+            return 0;
+        out.write(INSERT);
+        writeVarInt(out, length);
+        for (int i = 0; i < length; i++)
+            out.write(t.get(offset + i));
+        return 1;
+    }
+
+    private static int matchLength(ByteBuffer s, int sourceOffset, ByteBuffer t, int targetOffset) {
+        int max = Math.min(s.remaining() - sourceOffset, t.remaining() - targetOffset);
+        int n = 0;
+        while (n < max && s.get(sourceOffset + n) == t.get(targetOffset + n))
+            n++;
+        return n;
+    }
+
+    private static int hash(ByteBuffer b, int offset) {
+        int h = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++)
+            h = h * PRIME + (b.get(offset + i) & 0xff);
+        return h;
+    }
+
+    private static int bucket(int hash, int bits) {
+        return (hash * 0x9e3779b1) >>> (32 - bits);
+    }
+
+    /**
+     * Write an unsigned LEB128 number
+     */
+    static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Read an unsigned LEB128 number
+     */
+    static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.get() & 0xff;
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
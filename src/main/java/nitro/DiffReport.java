@@ -0,0 +1,83 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class holds the differences between two ROMs.
+ * Files are identified by their Nitro path (for example a/0/0/0)
+ */
+public class DiffReport {
+    private final List<String> added = new ArrayList<>(); // Paths only present in the second ROM
+    private final List<String> removed = new ArrayList<>(); // Paths only present in the first ROM
+    private final List<String> modified = new ArrayList<>(); // Paths present in both ROMs with different content
+    private final List<String[]> moved = new ArrayList<>(); // Pairs of old and new paths with the same content
+    private final List<String> headerChanges = new ArrayList<>(); // Changed header fields
+    private final List<String> overlayChanges = new ArrayList<>(); // Changed overlay records or contents
+    private final List<String> binaryChanges = new ArrayList<>(); // Changed ARM binaries and banner
+
+    void addMoved(String oldPath, String newPath) {
+        moved.add(new String[]{oldPath, newPath});
+    }
+
+    public List<String> getAdded() {
+        return added;
+    }
+
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    public List<String> getModified() {
+        return modified;
+    }
+
+    /**
+     * Get the moved files
+     *
+     * @return A list of {old path, new path} pairs
+     */
+    public List<String[]> getMoved() {
+        return moved;
+    }
+
+    public List<String> getHeaderChanges() {
+        return headerChanges;
+    }
+
+    public List<String> getOverlayChanges() {
+        return overlayChanges;
+    }
+
+    public List<String> getBinaryChanges() {
+        return binaryChanges;
+    }
+
+    /**
+     * Check if the two ROMs have the same content
+     *
+     * @return True if no difference was found
+     */
+    public boolean isIdentical() {
+        return added.isEmpty() && removed.isEmpty() && modified.isEmpty() && moved.isEmpty()
+                && headerChanges.isEmpty() && overlayChanges.isEmpty() && binaryChanges.isEmpty();
+    }
+}
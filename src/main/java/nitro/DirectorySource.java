@@ -0,0 +1,119 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BinaryReader;
+import io.IOStats;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * This class provides the content of a ROM from a directory created by ROM.extractROM
+ */
+class DirectorySource implements ROMSource {
+    private final Path dirPath;
+    private Map<NitroFile, NARCBuilder> archives = new IdentityHashMap<>(); // The expanded NARC archives of the last tree
+
+    public DirectorySource(Path dirPath) {
+        this.dirPath = dirPath;
+    }
+
+    @Override
+    public NitroHeader getHeader(IOStats io) throws IOException {
+        BinaryReader reader = new BinaryReader(dirPath.resolve("header.bin"));
+        reader.setStats(io);
+        NitroHeader header = NitroHeader.readHeader(reader);
+        reader.close();
+        return header;
+    }
+
+    @Override
+    public ROMContent getArm9() {
+        return new PathContent(dirPath.resolve("arm9.bin"));
+    }
+
+    @Override
+    public List<NitroOverlay> getArm9Overlays() throws IOException {
+        return NitroOverlay.readOverlayTable(ByteBuffer.wrap(Files.readAllBytes(dirPath.resolve("arm9ovltable.bin"))));
+    }
+
+    @Override
+    public ROMContent getArm7() {
+        return new PathContent(dirPath.resolve("arm7.bin"));
+    }
+
+    @Override
+    public List<NitroOverlay> getArm7Overlays() throws IOException {
+        return NitroOverlay.readOverlayTable(ByteBuffer.wrap(Files.readAllBytes(dirPath.resolve("arm7ovltable.bin"))));
+    }
+
+    @Override
+    public ROMContent getBanner() {
+        return new PathContent(dirPath.resolve("banner.bin"));
+    }
+
+    @Override
+    public List<ROMContent> getOverlays() {
+        File[] overlays = Objects.requireNonNull(dirPath.resolve("overlay").toFile().listFiles());
+        Arrays.sort(overlays);
+        List<ROMContent> contents = new ArrayList<>();
+        for (File overlay : overlays)
+            contents.add(new PathContent(overlay.toPath()));
+        return contents;
+    }
+
+    /**
+     * Load the tree of the data folder. The expanded NARC archives are files whose size is the one of the archive
+     * packed again, their entries are compared with the original archives in parallel
+     */
+    @Override
+    public NitroDirectory getRoot() throws IOException {
+        NitroDirectory root = new NitroDirectory("data", 0xf000, null);
+        BuildContext context = new BuildContext(0xf000, 0, 0);
+        NitroDirectory.loadDir(dirPath.resolve("data").toFile(), root, context);
+        Map<NitroFile, List<Path>> expanded = new IdentityHashMap<>();
+        for (NitroFile f : context.getArchives())
+            expanded.put(f, Collections.singletonList(dirPath.resolve("data").resolve(f.getPath())));
+        archives = NARCBuilder.open(expanded);
+        return root;
+    }
+
+    @Override
+    public ROMContent getFile(NitroFile file) {
+        if (archives.containsKey(file))
+            return archives.get(file);
+        return new PathContent(dirPath.resolve("data").resolve(file.getPath()));
+    }
+
+    @Override
+    public Map<String, Integer> getMarkedFiles() throws IOException {
+        return CompressedFiles.readMarks(dirPath);
+    }
+}
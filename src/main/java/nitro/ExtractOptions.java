@@ -0,0 +1,198 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BufferPool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class holds the options of a ROM extraction
+ */
+public class ExtractOptions {
+    private int asyncRequests = 16; // Chunks read or written at the same time, 0 for the blocking streams
+    private int bufferSize = 0x10000; // Size of the chunks of the asynchronous extraction
+    private boolean decompressBinaries = false; // Extract the ARM9 and the compressed overlays decompressed
+    private boolean decompressFiles = false; // Extract the LZ compressed files of the file system decompressed
+    private boolean expandArchives = false; // Expand the NARC archives of the file system into directories
+    private List<String> includes = new ArrayList<>(); // Globs of the paths to extract, every path when empty
+    private List<String> excludes = new ArrayList<>(); // Globs of the paths to leave out
+    private List<Integer> fileIDs = new ArrayList<>(); // FAT IDs of the files and overlays to extract
+    private BufferPool bufferPool; // Buffers shared with other operations, null to allocate them for the extraction
+    private ProgressListener progressListener; // Null if nobody is interested in the progress
+
+    public int getAsyncRequests() {
+        return asyncRequests;
+    }
+
+    /**
+     * Extract through asynchronous channels, keeping many requests in flight. Every request owns a buffer of
+     * bufferSize bytes, so they also bound the memory used. Without them every section is read whole and written
+     * through a blocking stream
+     *
+     * @param asyncRequests Maximum number of requests in flight, 0 for the blocking streams
+     */
+    public void setAsyncRequests(int asyncRequests) {
+        this.asyncRequests = asyncRequests;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Take the buffers of the asynchronous requests from a pool shared with other operations. The chunks are then as
+     * big as its buffers, and the requests may wait for the other operations to release some
+     *
+     * @param bufferPool The shared pool, null to allocate the buffers for the extraction
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public boolean isDecompressBinaries() {
+        return decompressBinaries;
+    }
+
+    /**
+     * Extract the ARM9 and the overlays flagged as compressed decompressed from BLZ. The ARM9 module parameters are
+     * updated, while the overlay tables are extracted as they are: the build recognizes the decompressed overlays
+     * from their size
+     *
+     * @param decompressBinaries True to decompress them
+     */
+    public void setDecompressBinaries(boolean decompressBinaries) {
+        this.decompressBinaries = decompressBinaries;
+    }
+
+    public boolean isDecompressFiles() {
+        return decompressFiles;
+    }
+
+    /**
+     * Extract the files of the file system which are complete LZ10 or LZ11 streams decompressed, in parallel, and mark
+     * them in data.lz so that the build compresses them again. The files are read in a blocking forward sweep
+     *
+     * @param decompressFiles True to decompress them
+     */
+    public void setDecompressFiles(boolean decompressFiles) {
+        this.decompressFiles = decompressFiles;
+    }
+
+    public boolean isExpandArchives() {
+        return expandArchives;
+    }
+
+    /**
+     * Expand the NARC archives of the file system, in parallel: every archive becomes a directory holding the
+     * original archive (.narc) and its entries. The build packs the directory back into the archive
+     *
+     * @param expandArchives True to expand them
+     */
+    public void setExpandArchives(boolean expandArchives) {
+        this.expandArchives = expandArchives;
+    }
+
+    /**
+     * Check if only some sections are extracted
+     *
+     * @return True if there are include or exclude globs or file IDs
+     */
+    public boolean isSelective() {
+        return !includes.isEmpty() || !excludes.isEmpty() || !fileIDs.isEmpty();
+    }
+
+    public List<String> getIncludes() {
+        return includes;
+    }
+
+    /**
+     * Extract only the sections whose path, relative to the extraction directory (e.g. data/a/0/2/*, arm9.bin,
+     * overlay/overlay_0001.bin), matches one of the globs or whose file ID is listed. Only the directories holding the
+     * selected sections are created
+     *
+     * @param includes The globs, ** matches across directories
+     */
+    public void setIncludes(List<String> includes) {
+        this.includes = includes;
+    }
+
+    public List<String> getExcludes() {
+        return excludes;
+    }
+
+    /**
+     * Leave out the sections whose path matches one of the globs, even if they're included
+     *
+     * @param excludes The globs
+     */
+    public void setExcludes(List<String> excludes) {
+        this.excludes = excludes;
+    }
+
+    public List<Integer> getFileIDs() {
+        return fileIDs;
+    }
+
+    /**
+     * Extract the files and overlays with the given FAT IDs, together with the sections matching the include globs
+     *
+     * @param fileIDs The IDs
+     */
+    public void setFileIDs(List<Integer> fileIDs) {
+        this.fileIDs = fileIDs;
+    }
+
+    /**
+     * Extract the files and overlays with the given FAT IDs
+     *
+     * @param fileIDs The IDs and ranges of IDs, separated by commas (e.g. 12,40-45)
+     * @throws NumberFormatException If the list is invalid
+     */
+    public void setFileIDs(String fileIDs) {
+        List<Integer> ids = new ArrayList<>();
+        for (String item : fileIDs.split(",")) {
+            int dash = item.indexOf('-', 1);
+            int first = Integer.parseInt(item.substring(0, dash < 0 ? item.length() : dash).trim());
+            int last = dash < 0 ? first : Integer.parseInt(item.substring(dash + 1).trim());
+            if (first < 0 || last < first || last - first > 0xffff)
+                throw new NumberFormatException("Invalid file ID range " + item);
+            for (int id = first; id <= last; id++)
+                ids.add(id);
+        }
+        this.fileIDs = ids;
+    }
+
+    public ProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+}
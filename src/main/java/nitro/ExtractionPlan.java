@@ -0,0 +1,180 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BinaryReader;
+import io.BinaryWriter;
+import io.BufferPool;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * This class plans the extraction of a ROM as a single forward sweep.
+ * Every section to extract (header, ARM binaries, overlay tables, banner, overlays and files) is sorted by its offset,
+ * so the ROM is read from the beginning to the end whatever the order of the FAT and of the directory tree
+ */
+class ExtractionPlan {
+    private final List<ROMSection> sections = new ArrayList<>();
+    private final List<String> directories = new ArrayList<>(); // Directories to create, parents first
+
+    /**
+     * Plan the extraction of a ROM
+     *
+     * @param header   The header of the ROM
+     * @param root     The root of the Nitro file system
+     * @param overlays The ARM9 and then the ARM7 overlays, with their offsets
+     */
+    public ExtractionPlan(NitroHeader header, NitroDirectory root, List<NitroOverlay> overlays) {
+        sections.add(new ROMSection("header.bin", 0, 0x200, -1));
+        sections.add(new ROMSection("arm9.bin", header.getArm9RomOffset(), header.getArm9Size(), -1));
+        sections.add(new ROMSection("arm9ovltable.bin", header.getArm9OverlayOffset(), header.getArm9OverlaySize(), -1));
+        sections.add(new ROMSection("arm7.bin", header.getArm7RomOffset(), header.getArm7Size(), -1));
+        sections.add(new ROMSection("arm7ovltable.bin", header.getArm7OverlayOffset(), header.getArm7OverlaySize(), -1));
+        sections.add(new ROMSection("banner.bin", header.getIconOffset(), 0x840, -1));
+
+        directories.add("overlay");
+        // Overlays are numbered in table order, ARM9 ones first, and located through their FAT file ID
+        for (int i = 0; i < overlays.size(); i++) {
+            NitroOverlay o = overlays.get(i);
+            sections.add(new ROMSection(String.format("overlay/overlay_%04d.bin", i), o.getStartOffset(),
+                    o.getEndOffset() - o.getStartOffset(), o.getFileID()));
+        }
+
+        directories.add("data");
+        addDirectories(root, "data/");
+        for (NitroFile f : NitroDirectory.listFiles(root))
+            sections.add(new ROMSection("data/" + f.getPath(), f.getOffset(), f.getSize(), f.getId()));
+
+        Collections.sort(sections); // stable, so sections at the same offset keep the order above
+    }
+
+    private void addDirectories(NitroDirectory dir, String path) {
+        for (NitroDirectory d : dir.getDirectoryList()) {
+            directories.add(path + d.getName());
+            addDirectories(d, path + d.getName() + "/");
+        }
+    }
+
+    /**
+     * Create the directories of the extraction which don't exist yet
+     *
+     * @param dirPath The path where to extract the sections
+     * @throws IOException If a directory can't be created
+     */
+    public void createDirectories(Path dirPath) throws IOException {
+        for (String d : directories)
+            if (Files.notExists(dirPath.resolve(d)))
+                Files.createDirectory(dirPath.resolve(d));
+    }
+
+    /**
+     * Extract the planned sections which don't exist yet, in offset order, through blocking streams
+     *
+     * @param rom     BinaryReader stream of the .nds ROM
+     * @param dirPath The path where to extract the sections
+     * @param stats   The statistics of the extraction, advanced for every section
+     * @throws IOException If something goes wrong
+     */
+    public void extract(BinaryReader rom, Path dirPath, ROMStats stats) throws IOException {
+        createDirectories(dirPath);
+        for (ROMSection s : sections) {
+            Path path = dirPath.resolve(s.getName());
+            if (Files.notExists(path)) {
+                BinaryWriter w = new BinaryWriter(path);
+                w.setStats(stats.getIOStats());
+                rom.seek(s.getOffset());
+                w.writeBytes(rom.readBuffer(s.getSize()));
+                w.close();
+            }
+            stats.advance(1, s.getSize());
+        }
+    }
+
+    /**
+     * Extract the planned sections which don't exist yet, issuing them in offset order through asynchronous channels
+     *
+     * @param romPath    The path of the .nds file
+     * @param dirPath    The path where to extract the sections
+     * @param stats      The statistics of the extraction, advanced for every section
+     * @param requests Maximum number of requests in flight
+     * @param pool     The buffers of the requests, chunks are as big as them
+     * @throws IOException If something goes wrong
+     */
+    public void extract(Path romPath, Path dirPath, ROMStats stats, int requests, BufferPool pool) throws IOException {
+        createDirectories(dirPath);
+        AsyncExtractor.extract(romPath, dirPath, sections, stats, requests, pool);
+    }
+
+    /**
+     * Keep only the selected sections in the plan, and only the directories holding them
+     *
+     * @param filter Selects the sections to extract
+     */
+    public void select(Predicate<ROMSection> filter) {
+        sections.removeIf(s -> !filter.test(s));
+        Set<String> parents = new HashSet<>();
+        for (ROMSection s : sections)
+            for (int i = s.getName().lastIndexOf('/'); i > 0 && parents.add(s.getName().substring(0, i)); )
+                i = s.getName().lastIndexOf('/', i - 1);
+        directories.removeIf(d -> !parents.contains(d));
+    }
+
+    /**
+     * Leave some sections out of the plan, because they're extracted in another way
+     *
+     * @param names The names of the sections
+     */
+    public void exclude(Collection<String> names) {
+        sections.removeIf(s -> names.contains(s.getName()));
+    }
+
+    /**
+     * Take the files of the file system out of the plan, to extract them in another way
+     *
+     * @return Their sections, in offset order
+     */
+    public List<ROMSection> takeFiles() {
+        List<ROMSection> files = new ArrayList<>();
+        for (ROMSection s : sections)
+            if (s.getName().startsWith("data/"))
+                files.add(s);
+        sections.removeAll(files);
+        return files;
+    }
+
+    public List<ROMSection> getSections() {
+        return sections;
+    }
+
+    public long getBytes() {
+        long bytes = 0;
+        for (ROMSection s : sections)
+            bytes += s.getSize();
+        return bytes;
+    }
+}
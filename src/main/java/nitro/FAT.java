@@ -1,9 +1,12 @@
 package nitro;
 
+import io.BinaryReader;
 import io.BinaryWriter;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.List;
 import java.util.Objects;
 
@@ -11,6 +14,37 @@ import java.util.Objects;
  * This class represents the File Name Table
  */
 public class FAT {
+    /**
+     * Read the FAT section of the ROM
+     *
+     * @param rom         ROM binary stream
+     * @param header      Header of the ROM
+     * @param startOffset Array where to store the files start offsets (one entry for every file ID)
+     * @param endOffset   Array where to store the files end offsets (one entry for every file ID)
+     * @throws IOException If the FAT doesn't fit in the given arrays
+     */
+    public static void readFAT(BinaryReader rom, NitroHeader header, int[] startOffset, int[] endOffset) throws IOException {
+        int n = getFileCount(header);
+        if (startOffset.length < n || endOffset.length < n)
+            throw new IOException("FAT has " + n + " entries but only " + Math.min(startOffset.length, endOffset.length) + " fit!");
+        rom.seek(header.getFatOffset());
+        ByteBuffer fat = ByteBuffer.wrap(rom.readBuffer(n * 8)).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < n; i++) {
+            startOffset[i] = fat.getInt();
+            endOffset[i] = fat.getInt();
+        }
+    }
+
+    /**
+     * Get the number of files (overlays included) described by the FAT
+     *
+     * @param header Header of the ROM
+     * @return Number of FAT entries
+     */
+    public static int getFileCount(NitroHeader header) {
+        return header.getFatSize() / 8;
+    }
+
     /**
      * Write the FNT section in the ROM
      *
@@ -58,4 +92,17 @@ public class FAT {
             n += calculateFATSize(t);
         return n;
     }
+
+    /**
+     * Calculate the size of the FAT section of a directory tree (overlays are excluded from calculation)
+     *
+     * @param root Root nitro directory of the ROM
+     * @return Size in bytes of the FAT section
+     */
+    public static int calculateFATSize(NitroDirectory root) {
+        int n = root.getFileList().size() * 8;
+        for (NitroDirectory d : root.getDirectoryList())
+            n += calculateFATSize(d);
+        return n;
+    }
 }
\ No newline at end of file
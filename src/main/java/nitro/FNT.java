@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -45,10 +46,11 @@ class FNT {
 
             // Write the first main table entry
             fntMainTable.putInt(fntMainTable.limit()); // Relative offset to the first sub table item
-            fntMainTable.putShort((short) getFirstFileID(root)); // The first file ID we'll encounter
+            fntMainTable.putShort((short) 0); // The first file ID we'll encounter, known once the tree is written
             fntMainTable.putShort((short) (getDirectoryNumber(root) + 1)); // Total number of directories (root included)
 
-            writeFNT(root, fntMainTable, fntSubTable);
+            int[] nextFileID = {getFirstFileID(root)};
+            fntMainTable.putShort(4, (short) writeFNT(root, fntMainTable, fntSubTable, nextFileID));
             rom.writeBytes(fntMainTable.array());
             rom.writeBytes(fntSubTable.array());
         } else
@@ -65,13 +67,25 @@ class FNT {
         return (getDirectoryNumber(path) + 1) * 8 + getSubTableSize(path);
     }
 
+    /**
+     * Calculate the size of the FNT section of a directory tree
+     *
+     * @param root Root nitro directory of the ROM
+     * @return Size in bytes of the FNT section
+     */
+    public static int calculateFNTSize(NitroDirectory root) {
+        return (getDirectoryNumber(root) + 1) * 8 + getSubTableSize(root);
+    }
+
     /**
      * Recursively write FNT sections
      *
      * @param currentDir Current sub-directory
+     * @param nextFileID The ID of the file following the ones written so far, in FAT order
+     * @return The first file ID of the directory, for its main table entry
      * @throws IOException
      */
-    private static void writeFNT(NitroDirectory currentDir, ByteBuffer fntMainTable, ByteBuffer fntSubTable) throws IOException {
+    private static int writeFNT(NitroDirectory currentDir, ByteBuffer fntMainTable, ByteBuffer fntSubTable, int[] nextFileID) throws IOException {
         for (NitroDirectory d : currentDir.getDirectoryList()) {
             fntSubTable.put((byte) (128 + d.getName().length()));
             fntSubTable.put(d.getName().getBytes());
@@ -82,12 +96,25 @@ class FNT {
             fntSubTable.put(f.getName().getBytes());
         }
         fntSubTable.put((byte) 0);
+        int firstFileID = -1;
         for (NitroDirectory d : currentDir.getDirectoryList()) {
             fntMainTable.putInt(fntMainTable.limit() + fntSubTable.position());
-            fntMainTable.putShort((short) getFirstFileID(d));
+            int entry = fntMainTable.position();
+            fntMainTable.putShort((short) 0); // patched once the subdirectory is written
             fntMainTable.putShort((short) d.getParent().getId());
-            writeFNT(d, fntMainTable, fntSubTable);
+            int id = writeFNT(d, fntMainTable, fntSubTable, nextFileID);
+            fntMainTable.putShort(entry, (short) id);
+            if (firstFileID < 0)
+                firstFileID = id;
         }
+        // the directory's own files if any, else the first subdirectory's, else the next file (for empty directories)
+        List<NitroFile> files = currentDir.getFileList();
+        if (!files.isEmpty()) {
+            firstFileID = files.get(0).getId();
+            nextFileID[0] = files.get(files.size() - 1).getId() + 1;
+        } else if (firstFileID < 0)
+            firstFileID = nextFileID[0];
+        return firstFileID;
     }
 
     /**
@@ -117,16 +144,25 @@ class FNT {
     }
 
     /**
-     * Find the ID of the first file in the directory tree
+     * Find the ID of the first file of the directory tree in FAT order (subdirectories first)
      *
      * @param d The root directory where to start searching
-     * @return ID of the first file found
+     * @return ID of the first file found, 0 if the tree has no files
      */
     private static int getFirstFileID(NitroDirectory d) {
+        for (NitroDirectory t : d.getDirectoryList())
+            if (getFileNumber(t) > 0)
+                return getFirstFileID(t);
         if (d.getFileList().size() > 0)
             return d.getFileList().get(0).getId();
-        else
-            return getFirstFileID(d.getDirectoryList().get(0));
+        return 0;
+    }
+
+    private static int getFileNumber(NitroDirectory d) {
+        int n = d.getFileList().size();
+        for (NitroDirectory t : d.getDirectoryList())
+            n += getFileNumber(t);
+        return n;
     }
 
     /**
@@ -0,0 +1,308 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * This class implements the LZ10 and LZ11 compressions used for many files of the Nitro file system.
+ * Compressed data starts with a 32 bits header holding the type (0x10 or 0x11) and, in the upper 24 bits, the
+ * decompressed size; when those bits are 0 the size follows in another 32 bits word. Then come flag bytes (MSB first,
+ * one bit per token) each followed by up to 8 tokens, a literal byte or a match of previous output:
+ * - LZ10: 2 bytes, 3-18 bytes at a distance of 1-4096
+ * - LZ11: 2, 3 or 4 bytes, 1-65808 bytes at a distance of 1-4096
+ * The encoder never uses a distance of 1, so its output can also be decompressed straight to VRAM
+ */
+public class LZ {
+    public static final int LZ10 = 0x10;
+    public static final int LZ11 = 0x11;
+    public static final int DEFAULT_MAX_CHAIN = 64; // Match candidates tried at every position by default
+    public static final int MAX_SIZE = 0x4000000; // Bigger decompressed sizes are considered corrupted
+
+    private static final int MIN_MATCH = 3;
+    private static final int MIN_DISTANCE = 2;
+    private static final int MAX_DISTANCE = 0x1000;
+    private static final int HASH_BITS = 15;
+
+    /**
+     * Get the compression type from the header of the data
+     *
+     * @param data   The data
+     * @param offset Offset of the data
+     * @param length Length of the data
+     * @return LZ10 or LZ11, or 0 if the data doesn't start like an LZ header
+     */
+    public static int getType(byte[] data, int offset, int length) {
+        if (length < 4)
+            return 0;
+        int type = data[offset] & 0xff;
+        return type == LZ10 || type == LZ11 ? type : 0;
+    }
+
+    /**
+     * Get the decompressed size from the header of the data
+     *
+     * @param data   The compressed data
+     * @param offset Offset of the data
+     * @param length Length of the data
+     * @return The decompressed size
+     * @throws IOException If the header is invalid
+     */
+    public static int getDecompressedSize(byte[] data, int offset, int length) throws IOException {
+        if (getType(data, offset, length) == 0)
+            throw new IOException("Invalid LZ header!");
+        int size = readInt(data, offset) >>> 8;
+        if (size == 0 && length >= 8)
+            size = readInt(data, offset + 4);
+        if (size < 0 || size > MAX_SIZE)
+            throw new IOException("Invalid LZ decompressed size!");
+        return size;
+    }
+
+    /**
+     * Decompress LZ10 or LZ11 data in the given buffer, without allocating anything
+     *
+     * @param src       The compressed data
+     * @param offset    Offset of the compressed data
+     * @param length    Length of the compressed data
+     * @param dst       The buffer for the decompressed data, at least getDecompressedSize bytes from dstOffset
+     * @param dstOffset Where to write the decompressed data
+     * @return The number of compressed bytes consumed
+     * @throws IOException If the data is corrupted
+     */
+    public static int decompress(byte[] src, int offset, int length, byte[] dst, int dstOffset) throws IOException {
+        int type = getType(src, offset, length);
+        int size = getDecompressedSize(src, offset, length);
+        int in = offset + (readInt(src, offset) >>> 8 == 0 && length >= 8 ? 8 : 4);
+        int inEnd = offset + length;
+        int out = dstOffset;
+        int outEnd = dstOffset + size;
+        if (outEnd > dst.length)
+            throw new IOException("The LZ output buffer is too small!");
+        int flags = 0;
+        int mask = 0;
+        while (out < outEnd) {
+            if ((mask >>>= 1) == 0) {
+                if (in >= inEnd)
+                    throw new IOException("Truncated LZ data!");
+                flags = src[in++] & 0xff;
+                mask = 0x80;
+            }
+            if ((flags & mask) == 0) {
+                if (in >= inEnd)
+                    throw new IOException("Truncated LZ data!");
+                dst[out++] = src[in++];
+                continue;
+            }
+            if (in + 1 >= inEnd)
+                throw new IOException("Truncated LZ data!");
+            int b0 = src[in++] & 0xff;
+            int count;
+            int distance;
+            if (type == LZ10) {
+                count = (b0 >>> 4) + 3;
+                distance = ((b0 & 0xf) << 8 | src[in++] & 0xff) + 1;
+            } else if (b0 >>> 4 == 0) {
+                if (in + 1 >= inEnd)
+                    throw new IOException("Truncated LZ data!");
+                int b1 = src[in++] & 0xff;
+                count = ((b0 & 0xf) << 4 | b1 >>> 4) + 0x11;
+                distance = ((b1 & 0xf) << 8 | src[in++] & 0xff) + 1;
+            } else if (b0 >>> 4 == 1) {
+                if (in + 2 >= inEnd)
+                    throw new IOException("Truncated LZ data!");
+                int b1 = src[in++] & 0xff;
+                int b2 = src[in++] & 0xff;
+                count = ((b0 & 0xf) << 12 | b1 << 4 | b2 >>> 4) + 0x111;
+                distance = ((b2 & 0xf) << 8 | src[in++] & 0xff) + 1;
+            } else {
+                count = (b0 >>> 4) + 1;
+                distance = ((b0 & 0xf) << 8 | src[in++] & 0xff) + 1;
+            }
+            if (out - distance < dstOffset)
+                throw new IOException("LZ match out of bounds!");
+            count = Math.min(count, outEnd - out);
+            for (int i = 0; i < count; i++, out++)
+                dst[out] = dst[out - distance];
+        }
+        return in - offset;
+    }
+
+    /**
+     * Decompress LZ10 or LZ11 data
+     *
+     * @param data The compressed data
+     * @return The decompressed data
+     * @throws IOException If the data is corrupted
+     */
+    public static byte[] decompress(byte[] data) throws IOException {
+        byte[] raw = new byte[getDecompressedSize(data, 0, data.length)];
+        decompress(data, 0, data.length, raw, 0);
+        return raw;
+    }
+
+    /**
+     * Check if the data is an LZ10 or LZ11 stream and nothing more: it must decompress without errors to something
+     * not empty, and use all the data but the zeros padding it to 4 bytes
+     *
+     * @param data The data
+     * @return The decompressed data, or null if it's not a complete LZ stream
+     */
+    public static byte[] tryDecompress(byte[] data) {
+        if (getType(data, 0, data.length) == 0)
+            return null;
+        try {
+            int size = getDecompressedSize(data, 0, data.length);
+            if (size == 0)
+                return null;
+            byte[] raw = new byte[size];
+            int used = decompress(data, 0, data.length, raw, 0);
+            if (used != data.length && (data.length % 4 != 0 || data.length - used >= 4))
+                return null;
+            for (int i = used; i < data.length; i++)
+                if (data[i] != 0)
+                    return null;
+            return raw;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compress data, trying DEFAULT_MAX_CHAIN candidates for every match
+     *
+     * @param data The data
+     * @param type LZ10 or LZ11
+     * @return The compressed data, padded to 4 bytes
+     */
+    public static byte[] compress(byte[] data, int type) {
+        return compress(data, type, DEFAULT_MAX_CHAIN);
+    }
+
+    /**
+     * Compress data with greedy matches found through hash chains of the 3 bytes at every position
+     *
+     * @param data     The data
+     * @param type     LZ10 or LZ11
+     * @param maxChain Maximum number of candidates tried for every match
+     * @return The compressed data, padded to 4 bytes
+     */
+    public static byte[] compress(byte[] data, int type, int maxChain) {
+        if (type != LZ10 && type != LZ11)
+            throw new IllegalArgumentException("Unknown LZ type " + type);
+        int length = data.length;
+        int maxMatch = type == LZ10 ? 18 : 0x10110;
+        byte[] out = new byte[8 + length + (length + 7) / 8 + 3];
+        int o;
+        if (length > 0 && length <= 0xffffff) {
+            writeInt(out, 0, type | length << 8);
+            o = 4;
+        } else {
+            writeInt(out, 0, type);
+            writeInt(out, 4, length);
+            o = 8;
+        }
+
+        int[] head = new int[1 << HASH_BITS];
+        int[] prev = new int[Math.max(length, 1)];
+        Arrays.fill(head, -1);
+        int inserted = 0;
+        int flagPos = 0;
+        int mask = 0;
+        int pos = 0;
+        while (pos < length) {
+            if ((mask >>>= 1) == 0) {
+                flagPos = o;
+                out[o++] = 0;
+                mask = 0x80;
+            }
+            int bestLength = MIN_MATCH - 1;
+            int bestDistance = 0;
+            int limit = Math.min(maxMatch, length - pos);
+            if (limit >= MIN_MATCH) {
+                for (; inserted <= pos - MIN_DISTANCE; inserted++)
+                    insert(data, head, prev, inserted);
+                int candidate = head[hash(data, pos)];
+                for (int chain = 0; candidate >= 0 && pos - candidate <= MAX_DISTANCE && chain < maxChain; chain++) {
+                    if (data[candidate + bestLength] == data[pos + bestLength]) {
+                        int n = 0;
+                        while (n < limit && data[candidate + n] == data[pos + n])
+                            n++;
+                        if (n > bestLength) {
+                            bestLength = n;
+                            bestDistance = pos - candidate;
+                            if (n == limit)
+                                break;
+                        }
+                    }
+                    candidate = prev[candidate];
+                }
+            }
+            if (bestLength < MIN_MATCH) {
+                out[o++] = data[pos++];
+                continue;
+            }
+            out[flagPos] |= mask;
+            int d = bestDistance - 1;
+            int n = bestLength;
+            if (type == LZ10)
+                out[o++] = (byte) ((n - 3) << 4 | d >>> 8);
+            else if (n <= 0x10) {
+                out[o++] = (byte) ((n - 1) << 4 | d >>> 8);
+            } else if (n <= 0x110) {
+                n -= 0x11;
+                out[o++] = (byte) (n >>> 4);
+                out[o++] = (byte) ((n & 0xf) << 4 | d >>> 8);
+            } else {
+                n -= 0x111;
+                out[o++] = (byte) (0x10 | n >>> 12);
+                out[o++] = (byte) (n >>> 4);
+                out[o++] = (byte) ((n & 0xf) << 4 | d >>> 8);
+            }
+            out[o++] = (byte) d;
+            pos += bestLength;
+        }
+        return Arrays.copyOf(out, o + 3 & ~3);
+    }
+
+    private static void insert(byte[] data, int[] head, int[] prev, int pos) {
+        if (pos + MIN_MATCH > data.length)
+            return;
+        int h = hash(data, pos);
+        prev[pos] = head[h];
+        head[h] = pos;
+    }
+
+    private static int hash(byte[] data, int pos) {
+        int v = (data[pos] & 0xff) | (data[pos + 1] & 0xff) << 8 | (data[pos + 2] & 0xff) << 16;
+        return (v * 0x9e3779b1) >>> (32 - HASH_BITS);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8 | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >>> 8);
+        data[offset + 2] = (byte) (value >>> 16);
+        data[offset + 3] = (byte) (value >>> 24);
+    }
+}
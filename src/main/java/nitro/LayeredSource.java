@@ -0,0 +1,238 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BinaryReader;
+import io.IOStats;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * This class provides the content of a ROM from a stack of directories laid out like the ones created by
+ * ROM.extractROM, without merging them on disk. The first layer is the bottom one: every file of an upper layer
+ * shadows the file with the same path in the lower ones, while the directories are merged. A plain directory over
+ * an expanded NARC archive supplies some of its entries. An empty file named .wh.NAME (a whiteout) hides NAME, file
+ * or directory, of the lower layers.
+ * Every file is read straight from the layer supplying it
+ */
+class LayeredSource implements ROMSource {
+    public static final String WHITEOUT_PREFIX = ".wh.";
+
+    private final List<Path> layers; // The bottom layer first
+    private final Map<NitroFile, Path> files = new IdentityHashMap<>(); // The host file of every file of the last tree
+    private Map<NitroFile, NARCBuilder> archives = new IdentityHashMap<>(); // The expanded NARC archives of the last tree
+    private NitroDirectory root; // The last tree
+
+    public LayeredSource(List<Path> layers) {
+        this.layers = new ArrayList<>(layers);
+    }
+
+    /**
+     * Find the layer supplying a file outside of the data folder
+     *
+     * @param name The path of the file, relative to the layers
+     * @return The file in the topmost layer holding it
+     * @throws IOException If no layer holds it
+     */
+    public Path resolve(String name) throws IOException {
+        for (int i = layers.size() - 1; i >= 0; i--)
+            if (Files.exists(layers.get(i).resolve(name)))
+                return layers.get(i).resolve(name);
+        throw new IOException(name + " not found in any layer! Please check the given directories!");
+    }
+
+    @Override
+    public NitroHeader getHeader(IOStats io) throws IOException {
+        BinaryReader reader = new BinaryReader(resolve("header.bin"));
+        reader.setStats(io);
+        NitroHeader header = NitroHeader.readHeader(reader);
+        reader.close();
+        return header;
+    }
+
+    @Override
+    public ROMContent getArm9() throws IOException {
+        return new PathContent(resolve("arm9.bin"));
+    }
+
+    @Override
+    public List<NitroOverlay> getArm9Overlays() throws IOException {
+        return NitroOverlay.readOverlayTable(ByteBuffer.wrap(Files.readAllBytes(resolve("arm9ovltable.bin"))));
+    }
+
+    @Override
+    public ROMContent getArm7() throws IOException {
+        return new PathContent(resolve("arm7.bin"));
+    }
+
+    @Override
+    public List<NitroOverlay> getArm7Overlays() throws IOException {
+        return NitroOverlay.readOverlayTable(ByteBuffer.wrap(Files.readAllBytes(resolve("arm7ovltable.bin"))));
+    }
+
+    @Override
+    public ROMContent getBanner() throws IOException {
+        return new PathContent(resolve("banner.bin"));
+    }
+
+    @Override
+    public List<ROMContent> getOverlays() {
+        Map<String, List<File>> overlays = new TreeMap<>(union(getLayers("overlay")));
+        List<ROMContent> contents = new ArrayList<>();
+        for (List<File> overlay : overlays.values())
+            contents.add(new PathContent(overlay.get(overlay.size() - 1).toPath()));
+        return contents;
+    }
+
+    @Override
+    public NitroDirectory getRoot() throws IOException {
+        NitroDirectory r = new NitroDirectory("data", 0xf000, null);
+        Map<NitroFile, List<Path>> expanded = new IdentityHashMap<>();
+        files.clear();
+        loadDir(getLayers("data"), r, new BuildContext(0xf000, 0, 0), expanded);
+        archives = NARCBuilder.open(expanded);
+        root = r;
+        return r;
+    }
+
+    @Override
+    public ROMContent getFile(NitroFile file) {
+        if (archives.containsKey(file))
+            return archives.get(file);
+        return new PathContent(files.get(file));
+    }
+
+    /**
+     * Merge the marks of every layer, the upper ones override the lower ones. The marks of the files which aren't
+     * in the union are dropped
+     */
+    @Override
+    public Map<String, Integer> getMarkedFiles() throws IOException {
+        Map<String, Integer> marks = new TreeMap<>();
+        for (Path layer : layers)
+            marks.putAll(CompressedFiles.readMarks(layer));
+        if (root == null)
+            getRoot();
+        Set<String> paths = new HashSet<>();
+        for (NitroFile f : NitroDirectory.listFiles(root))
+            paths.add(f.getPath());
+        marks.keySet().retainAll(paths);
+        return marks;
+    }
+
+    private List<File> getLayers(String directory) {
+        List<File> dirs = new ArrayList<>();
+        for (Path layer : layers)
+            dirs.add(layer.resolve(directory).toFile());
+        return dirs;
+    }
+
+    /**
+     * List the union of some layers of a directory, applying their whiteouts
+     *
+     * @param dirs The directory in every layer, the bottom one first (missing ones are skipped)
+     * @return The host files of every name: the file of the topmost layer, or the directory (or expanded archive
+     * followed by the directories) in every layer supplying it since the last one shadowing it
+     */
+    private static Map<String, List<File>> union(List<File> dirs) {
+        Map<String, List<File>> entries = new HashMap<>();
+        for (File dir : dirs) {
+            File[] children = dir.listFiles();
+            if (children == null)
+                continue;
+            for (File child : children) // the whiteouts hide the lower layers only
+                if (child.getName().startsWith(WHITEOUT_PREFIX))
+                    entries.remove(child.getName().substring(WHITEOUT_PREFIX.length()));
+            for (File child : children) {
+                if (child.getName().startsWith(WHITEOUT_PREFIX))
+                    continue;
+                List<File> below = entries.get(child.getName());
+                if (below != null && isDirectory(child) && (isDirectory(below.get(below.size() - 1)) || NitroDirectory.isExpandedArchive(below.get(0))))
+                    below.add(child); // a directory over an expanded archive supplies some of its entries
+                else {
+                    List<File> entry = new ArrayList<>();
+                    entry.add(child);
+                    entries.put(child.getName(), entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Check if a host file is a directory of the Nitro file system, expanded NARC archives are files
+     */
+    private static boolean isDirectory(File file) {
+        return file.isDirectory() && !NitroDirectory.isExpandedArchive(file);
+    }
+
+    /**
+     * Recursively construct the NitroDirectory structure of the union, like NitroDirectory.loadDir does for a single
+     * directory
+     *
+     * @param dirs     The directory in every layer, the bottom one first
+     * @param parent   The current parent directory
+     * @param context  The counters of the build the directory belongs to
+     * @param expanded Collects the expanded NARC archives
+     */
+    private void loadDir(List<File> dirs, NitroDirectory parent, BuildContext context, Map<NitroFile, List<Path>> expanded) {
+        Map<String, List<File>> entries = union(dirs);
+        List<String> dirList = new ArrayList<>();
+        List<String> fileList = new ArrayList<>();
+        for (Map.Entry<String, List<File>> e : entries.entrySet())
+            (isDirectory(e.getValue().get(0)) ? dirList : fileList).add(e.getKey());
+
+        // it's important to sort the lists alphabetically
+        dirList.sort(Comparator.comparing(String::toLowerCase));
+        for (String name : dirList) {
+            NitroDirectory newDirectory = new NitroDirectory(name, context.nextDirectoryID(), parent);
+            parent.getDirectoryList().add(newDirectory);
+            loadDir(entries.get(name), newDirectory, context, expanded);
+        }
+        fileList.sort(Comparator.comparing(String::toLowerCase));
+        for (String name : fileList) {
+            File file = entries.get(name).get(0);
+            boolean archive = NitroDirectory.isExpandedArchive(file);
+            long size = archive ? new File(file, NARC.ARCHIVE_FILE).length() : file.length();
+            NitroFile f = new NitroFile(name, 0, 0, (int) size, parent);
+            context.place(f);
+            parent.getFileList().add(f);
+            files.put(f, file.toPath());
+            if (archive) {
+                List<Path> layers = new ArrayList<>();
+                for (File layer : entries.get(name))
+                    layers.add(layer.toPath());
+                expanded.put(f, layers);
+            }
+        }
+    }
+}
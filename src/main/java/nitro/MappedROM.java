@@ -0,0 +1,260 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BinaryReader;
+import io.IOStats;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * This class represents a ROM mapped in memory, together with its decoded tables.
+ * The tables are small, so they're read through a BinaryReader, while the file data is accessed through the mapping
+ */
+class MappedROM implements Closeable {
+    private final BinaryReader reader; // The stream used for reading the tables
+    private final ByteBuffer data; // The whole ROM, mapped in memory
+    private final NitroHeader header;
+    private int[] startOffset; // The ROM's files start offsets
+    private int[] endOffset; // The ROM's files end offsets
+    private List<NitroOverlay> arm9Overlays;
+    private List<NitroOverlay> arm7Overlays;
+    private NitroDirectory root; // Loaded on demand, as the FNT may be corrupted
+
+    private MappedROM(BinaryReader reader) throws IOException {
+        this.reader = reader;
+        this.data = reader.map();
+        if (this.data.capacity() < 0x200)
+            throw new IOException("The ROM is too small to contain a header!");
+        this.header = NitroHeader.readHeader(reader);
+    }
+
+    /**
+     * Map the given ROM and decode its header, FAT and overlay tables
+     *
+     * @param romPath The path of the .nds file
+     * @return The mapped ROM
+     * @throws IOException If something goes wrong or the tables are corrupted
+     */
+    public static MappedROM open(Path romPath) throws IOException {
+        return open(romPath, null);
+    }
+
+    /**
+     * Map the given ROM and decode its header, FAT and overlay tables, counting the reads of the header
+     *
+     * @param romPath The path of the .nds file
+     * @param io      The counters of the operation, null if the reads aren't counted
+     * @return The mapped ROM
+     * @throws IOException If something goes wrong or the tables are corrupted
+     */
+    static MappedROM open(Path romPath, IOStats io) throws IOException {
+        MappedROM rom = map(romPath, io);
+        try {
+            rom.decodeTables();
+            return rom;
+        } catch (IOException | RuntimeException e) {
+            rom.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Map the given ROM and decode only its header, the tables must be decoded with {@link #decodeTables()} before
+     * accessing the files
+     *
+     * @param romPath The path of the .nds file
+     * @param io      The counters of the operation, null if the reads aren't counted
+     * @return The mapped ROM
+     * @throws IOException If something goes wrong
+     */
+    static MappedROM map(Path romPath, IOStats io) throws IOException {
+        BinaryReader reader = new BinaryReader(romPath);
+        reader.setStats(io);
+        try {
+            return new MappedROM(reader);
+        } catch (IOException | RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Decode the FAT and the overlay tables, after checking that the header describes them inside the ROM
+     *
+     * @throws IOException If the tables are corrupted
+     */
+    void decodeTables() throws IOException {
+        if (header.getFatSize() % 8 != 0)
+            throw new IOException("FAT size " + Integer.toUnsignedString(header.getFatSize()) + " is not a multiple of 8!");
+        checkTable("FAT", header.getFatOffset(), header.getFatSize());
+        checkTable("ARM9 overlay table", header.getArm9OverlayOffset(), header.getArm9OverlaySize());
+        checkTable("ARM7 overlay table", header.getArm7OverlayOffset(), header.getArm7OverlaySize());
+        int[] start = new int[FAT.getFileCount(header)];
+        int[] end = new int[FAT.getFileCount(header)];
+        FAT.readFAT(reader, header, start, end);
+        arm9Overlays = NitroOverlay.readOverlayTable(reader, header.getArm9OverlayOffset(), header.getArm9OverlaySize(), start, end);
+        arm7Overlays = NitroOverlay.readOverlayTable(reader, header.getArm7OverlayOffset(), header.getArm7OverlaySize(), start, end);
+        startOffset = start;
+        endOffset = end;
+    }
+
+    private void checkTable(String name, int offset, int size) throws IOException {
+        if (!contains(offset & 0xffffffffL, size & 0xffffffffL))
+            throw new IOException(String.format("%s (0x%08x-0x%08x) lies outside the ROM!",
+                    name, offset, (offset & 0xffffffffL) + (size & 0xffffffffL)));
+    }
+
+    /**
+     * Get the root of the Nitro file system, decoding the FNT the first time
+     *
+     * @return The root directory
+     * @throws IOException If the FNT is corrupted
+     */
+    public synchronized NitroDirectory getRoot() throws IOException {
+        if (root == null) {
+            NitroDirectory r = new NitroDirectory("data", 0xf000, null);
+            NitroDirectory.loadDir(r, reader, header.getFntOffset(), startOffset, endOffset);
+            root = r;
+        }
+        return root;
+    }
+
+    /**
+     * List every section of the ROM, named after the path it gets when extracted. The banner is left out when the ROM
+     * has none, and the FAT entries neither an overlay nor the FNT refers to are named fat/NNNN after their file ID
+     *
+     * @return The sections, in no particular order
+     * @throws IOException If the FNT is corrupted
+     */
+    public List<ROMSection> getSections() throws IOException {
+        List<ROMSection> sections = new ArrayList<>();
+        sections.add(new ROMSection("header.bin", 0, 0x200, -1));
+        sections.add(new ROMSection("arm9.bin", header.getArm9RomOffset(), header.getArm9Size(), -1));
+        sections.add(new ROMSection("arm9ovltable.bin", header.getArm9OverlayOffset(), header.getArm9OverlaySize(), -1));
+        sections.add(new ROMSection("arm7.bin", header.getArm7RomOffset(), header.getArm7Size(), -1));
+        sections.add(new ROMSection("arm7ovltable.bin", header.getArm7OverlayOffset(), header.getArm7OverlaySize(), -1));
+        sections.add(new ROMSection("fnt.bin", header.getFntOffset(), header.getFntSize(), -1));
+        sections.add(new ROMSection("fat.bin", header.getFatOffset(), header.getFatSize(), -1));
+        if (header.getIconOffset() != 0)
+            sections.add(new ROMSection("banner.bin", header.getIconOffset(), 0x840, -1));
+        BitSet referenced = new BitSet(startOffset.length);
+        List<NitroOverlay> overlays = new ArrayList<>(arm9Overlays);
+        overlays.addAll(arm7Overlays);
+        for (int i = 0; i < overlays.size(); i++) {
+            NitroOverlay o = overlays.get(i);
+            sections.add(new ROMSection(String.format("overlay/overlay_%04d.bin", i), o.getStartOffset(),
+                    o.getEndOffset() - o.getStartOffset(), o.getFileID()));
+            if (o.getFileID() >= 0)
+                referenced.set(o.getFileID());
+        }
+        for (NitroFile f : NitroDirectory.listFiles(getRoot())) {
+            sections.add(new ROMSection("data/" + f.getPath(), f.getOffset(), f.getSize(), f.getId()));
+            referenced.set(f.getId());
+        }
+        for (int i = referenced.nextClearBit(0); i < startOffset.length; i = referenced.nextClearBit(i + 1))
+            if (startOffset[i] >= 0 && startOffset[i] <= endOffset[i])
+                sections.add(new ROMSection(String.format("fat/%04d", i), startOffset[i], endOffset[i] - startOffset[i], i));
+        return sections;
+    }
+
+    /**
+     * Get a view of a section of the ROM, without copying it
+     *
+     * @param offset Absolute offset of the section
+     * @param size   Size of the section
+     * @return A little endian buffer holding the section
+     */
+    public ByteBuffer slice(int offset, int size) {
+        ByteBuffer d = data.duplicate();
+        d.limit(offset + size);
+        d.position(offset);
+        return d.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Check if a section lies inside the ROM
+     *
+     * @param offset Absolute offset of the section
+     * @param size   Size of the section
+     * @return True if the section is entirely inside the ROM
+     */
+    public boolean contains(long offset, long size) {
+        return offset >= 0 && size >= 0 && offset + size <= data.capacity();
+    }
+
+    /**
+     * Calculate the CRC32 of a section of the ROM
+     *
+     * @param offset Absolute offset of the section
+     * @param size   Size of the section
+     * @return The CRC32 value
+     */
+    public long crc32(int offset, int size) {
+        CRC32 crc = new CRC32();
+        crc.update(slice(offset, size));
+        return crc.getValue();
+    }
+
+    public NitroHeader getHeader() {
+        return header;
+    }
+
+    public int getSize() {
+        return data.capacity();
+    }
+
+    public int getFileCount() {
+        return startOffset.length;
+    }
+
+    public int getStartOffset(int fileID) {
+        return startOffset[fileID];
+    }
+
+    public int getEndOffset(int fileID) {
+        return endOffset[fileID];
+    }
+
+    public List<NitroOverlay> getArm9Overlays() {
+        return arm9Overlays;
+    }
+
+    public List<NitroOverlay> getArm7Overlays() {
+        return arm7Overlays;
+    }
+
+    /**
+     * Close the underlying stream (the mapping is released by the garbage collector)
+     *
+     * @throws IOException If there's an I/O error
+     */
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
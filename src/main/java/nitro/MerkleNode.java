@@ -0,0 +1,115 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class represents a node of a Merkle tree built over the Nitro file system.
+ * A file node holds the hash of the file content, a directory node holds the hash of its children names and hashes
+ */
+class MerkleNode {
+    static final int HASH_SIZE = 20; // SHA-1, we only need to detect changes
+
+    private final String name;
+    private final boolean directory;
+    private final List<MerkleNode> directoryList; // Subdirectories, in FNT order
+    private final List<MerkleNode> fileList; // Files, in FNT order
+    private byte[] hash;
+
+    MerkleNode(String name, boolean directory, byte[] hash) {
+        this.name = name;
+        this.directory = directory;
+        this.hash = hash;
+        this.directoryList = new ArrayList<>();
+        this.fileList = new ArrayList<>();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public byte[] getHash() {
+        return hash;
+    }
+
+    public List<MerkleNode> getDirectoryList() {
+        return directoryList;
+    }
+
+    public List<MerkleNode> getFileList() {
+        return fileList;
+    }
+
+    /**
+     * Set the hash of a file node from a digest already fed with its content
+     *
+     * @param md A digest obtained from newFileDigest
+     */
+    void hashWith(MessageDigest md) {
+        hash = md.digest();
+    }
+
+    /**
+     * Compute the hash of a directory node from its children, which must already be hashed
+     */
+    void updateHash() {
+        MessageDigest md = newDigest();
+        md.update((byte) 1); // Directories and files never share a hash
+        for (MerkleNode d : directoryList)
+            addChild(md, d);
+        for (MerkleNode f : fileList)
+            addChild(md, f);
+        hash = md.digest();
+    }
+
+    private static void addChild(MessageDigest md, MerkleNode child) {
+        byte[] n = child.name.getBytes(StandardCharsets.US_ASCII);
+        md.update((byte) n.length);
+        md.update(n);
+        md.update(child.hash);
+    }
+
+    /**
+     * Create a digest for hashing file contents, the caller has to feed it with the content
+     *
+     * @return A digest already primed for a file node
+     */
+    static MessageDigest newFileDigest() {
+        MessageDigest md = newDigest();
+        md.update((byte) 0);
+        return md;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM must provide SHA-1
+        }
+    }
+}
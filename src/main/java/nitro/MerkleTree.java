@@ -0,0 +1,382 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BinaryReader;
+import io.BinaryWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * This class computes Merkle hash trees over the Nitro file system, and stores them in compact sidecar files.
+ * Comparing two trees only descends into the subtrees whose hashes differ
+ */
+public class MerkleTree {
+    public static final String SIDECAR_EXTENSION = ".merkle";
+    private static final byte[] MAGIC = {'N', 'M', 'R', 'K'};
+    private static final int VERSION = 1;
+
+    /**
+     * Hash the file system of a ROM and store the tree next to it (foo.nds.merkle)
+     *
+     * @param romPath The path of the .nds file
+     * @throws IOException If something goes wrong
+     */
+    public static void writeROMSidecar(Path romPath) throws IOException {
+        try (MappedROM rom = MappedROM.open(romPath)) {
+            writeSidecar(fromROM(rom), Paths.get(romPath + SIDECAR_EXTENSION));
+        }
+    }
+
+    /**
+     * Hash the data folder of an extracted ROM and store the tree in the extracted directory (data.merkle)
+     *
+     * @param dirPath The path of the extracted ROM directory
+     * @throws IOException If something goes wrong
+     */
+    public static void writeDirectorySidecar(Path dirPath) throws IOException {
+        writeSidecar(fromDirectory(dirPath.resolve("data")), dirPath.resolve("data" + SIDECAR_EXTENSION));
+    }
+
+    /**
+     * Store the tree of a ROM in the directory where it was extracted (data.merkle), without reading the extracted files
+     *
+     * @param romPath The path of the .nds file
+     * @param dirPath The path of the extracted ROM directory
+     * @throws IOException If something goes wrong
+     */
+    public static void writeDirectorySidecar(Path romPath, Path dirPath) throws IOException {
+        try (MappedROM rom = MappedROM.open(romPath)) {
+            writeSidecar(fromROM(rom), dirPath.resolve("data" + SIDECAR_EXTENSION));
+        }
+    }
+
+    /**
+     * Compare the file systems of two ROMs, extracted directories or sidecar files.
+     * A ROM with an up to date sidecar next to it isn't read at all
+     *
+     * @param oldPath The first .nds file, extracted directory or sidecar
+     * @param newPath The second .nds file, extracted directory or sidecar
+     * @return The added, removed, modified and moved files
+     * @throws IOException If something goes wrong
+     */
+    public static DiffReport compare(Path oldPath, Path newPath) throws IOException {
+        DiffReport report = new DiffReport();
+        Map<String, byte[]> removed = new LinkedHashMap<>();
+        Map<String, byte[]> added = new LinkedHashMap<>();
+        compare(load(oldPath), load(newPath), "", report, removed, added);
+
+        // A removed file and an added file with the same hash are a move
+        Map<ByteBuffer, Deque<String>> removedByHash = new HashMap<>();
+        for (Map.Entry<String, byte[]> e : removed.entrySet())
+            removedByHash.computeIfAbsent(ByteBuffer.wrap(e.getValue()), h -> new ArrayDeque<>()).add(e.getKey());
+        for (Map.Entry<String, byte[]> e : added.entrySet()) {
+            Deque<String> candidates = removedByHash.get(ByteBuffer.wrap(e.getValue()));
+            if (candidates != null && !candidates.isEmpty()) {
+                String oldFile = candidates.poll();
+                removed.remove(oldFile);
+                report.addMoved(oldFile, e.getKey());
+            } else
+                report.getAdded().add(e.getKey());
+        }
+        report.getRemoved().addAll(removed.keySet());
+        return report;
+    }
+
+    /**
+     * Recursively compare two nodes, skipping the subtrees with the same hash
+     */
+    private static void compare(MerkleNode a, MerkleNode b, String path, DiffReport report, Map<String, byte[]> removed, Map<String, byte[]> added) {
+        if (Arrays.equals(a.getHash(), b.getHash()))
+            return;
+        Map<String, MerkleNode> dirs = byName(b.getDirectoryList());
+        for (MerkleNode d : a.getDirectoryList()) {
+            MerkleNode other = dirs.remove(d.getName());
+            if (other != null)
+                compare(d, other, path + d.getName() + "/", report, removed, added);
+            else
+                collectFiles(d, path + d.getName() + "/", removed);
+        }
+        for (MerkleNode d : dirs.values())
+            collectFiles(d, path + d.getName() + "/", added);
+
+        Map<String, MerkleNode> files = byName(b.getFileList());
+        for (MerkleNode f : a.getFileList()) {
+            MerkleNode other = files.remove(f.getName());
+            if (other == null)
+                removed.put(path + f.getName(), f.getHash());
+            else if (!Arrays.equals(f.getHash(), other.getHash()))
+                report.getModified().add(path + f.getName());
+        }
+        for (MerkleNode f : files.values())
+            added.put(path + f.getName(), f.getHash());
+    }
+
+    private static Map<String, MerkleNode> byName(List<MerkleNode> nodes) {
+        Map<String, MerkleNode> map = new LinkedHashMap<>();
+        for (MerkleNode n : nodes)
+            map.put(n.getName(), n);
+        return map;
+    }
+
+    private static void collectFiles(MerkleNode dir, String path, Map<String, byte[]> files) {
+        for (MerkleNode d : dir.getDirectoryList())
+            collectFiles(d, path + d.getName() + "/", files);
+        for (MerkleNode f : dir.getFileList())
+            files.put(path + f.getName(), f.getHash());
+    }
+
+    /**
+     * Load a tree from a sidecar, a ROM or an extracted directory.
+     * The files of an extracted directory which aren't newer than its sidecar aren't hashed again
+     *
+     * @param path The sidecar, .nds file or extracted directory
+     * @return The root node
+     * @throws IOException If something goes wrong
+     */
+    static MerkleNode load(Path path) throws IOException {
+        if (path.toString().endsWith(SIDECAR_EXTENSION))
+            return readSidecar(path);
+        if (Files.isDirectory(path)) {
+            Path sidecar = path.resolve("data" + SIDECAR_EXTENSION);
+            if (!Files.exists(sidecar))
+                return fromDirectory(path.resolve("data"));
+            MerkleNode cached;
+            try {
+                cached = readSidecar(sidecar);
+            } catch (IOException e) {
+                System.out.println("WARNING! " + e.getMessage() + " All the files will be hashed again");
+                return fromDirectory(path.resolve("data"));
+            }
+            return fromDirectory(path.resolve("data"), cached, Files.getLastModifiedTime(sidecar).toMillis());
+        }
+        Path sidecar = Paths.get(path + SIDECAR_EXTENSION);
+        if (Files.exists(sidecar) && Files.getLastModifiedTime(sidecar).compareTo(Files.getLastModifiedTime(path)) >= 0)
+            return readSidecar(sidecar);
+        try (MappedROM rom = MappedROM.open(path)) {
+            return fromROM(rom);
+        }
+    }
+
+    /**
+     * Build the tree of a ROM, hashing its files in parallel through the mapping
+     *
+     * @param rom The mapped ROM
+     * @return The root node
+     * @throws IOException If the FNT is corrupted
+     */
+    static MerkleNode fromROM(MappedROM rom) throws IOException {
+        Map<NitroFile, MerkleNode> files = new LinkedHashMap<>();
+        MerkleNode root = buildNode(rom.getRoot(), files);
+        files.entrySet().parallelStream().forEach(e -> {
+            MessageDigest md = MerkleNode.newFileDigest();
+            md.update(rom.slice(e.getKey().getOffset(), e.getKey().getSize()));
+            e.getValue().hashWith(md);
+        });
+        updateHashes(root);
+        return root;
+    }
+
+    private static MerkleNode buildNode(NitroDirectory dir, Map<NitroFile, MerkleNode> files) {
+        MerkleNode node = new MerkleNode(dir.getName(), true, null);
+        for (NitroDirectory d : dir.getDirectoryList())
+            node.getDirectoryList().add(buildNode(d, files));
+        for (NitroFile f : dir.getFileList()) {
+            MerkleNode n = new MerkleNode(f.getName(), false, null);
+            node.getFileList().add(n);
+            files.put(f, n);
+        }
+        return node;
+    }
+
+    /**
+     * Build the tree of a host directory, hashing its files in parallel
+     *
+     * @param dataPath The data folder of an extracted ROM
+     * @return The root node
+     * @throws IOException If something goes wrong
+     */
+    static MerkleNode fromDirectory(Path dataPath) throws IOException {
+        return fromDirectory(dataPath, null, 0);
+    }
+
+    /**
+     * Build the tree of a host directory, reusing the hashes of a sidecar for the files not modified after it
+     *
+     * @param dataPath    The data folder of an extracted ROM
+     * @param cached      The tree stored in the sidecar, or null to hash every file
+     * @param sidecarTime When the sidecar was last modified, in milliseconds
+     * @return The root node
+     * @throws IOException If something goes wrong
+     */
+    static MerkleNode fromDirectory(Path dataPath, MerkleNode cached, long sidecarTime) throws IOException {
+        if (!Files.isDirectory(dataPath))
+            throw new IOException(dataPath + " is not a directory!");
+        Map<File, MerkleNode> files = new LinkedHashMap<>();
+        MerkleNode root = buildNode(dataPath.toFile(), cached, sidecarTime, files);
+        try {
+            files.entrySet().parallelStream().forEach(e -> {
+                MessageDigest md = MerkleNode.newFileDigest();
+                try (FileChannel c = FileChannel.open(e.getKey().toPath(), StandardOpenOption.READ)) {
+                    md.update(c.map(FileChannel.MapMode.READ_ONLY, 0, c.size()));
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                e.getValue().hashWith(md);
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        updateHashes(root);
+        return root;
+    }
+
+    private static MerkleNode buildNode(File dir, MerkleNode cached, long sidecarTime, Map<File, MerkleNode> files) {
+        MerkleNode node = new MerkleNode(dir.getName(), true, null);
+        Map<String, MerkleNode> cachedDirs = cached == null ? Collections.emptyMap() : byName(cached.getDirectoryList());
+        Map<String, MerkleNode> cachedFiles = cached == null ? Collections.emptyMap() : byName(cached.getFileList());
+        File[] dirList = Objects.requireNonNull(dir.listFiles(File::isDirectory));
+        File[] fileList = Objects.requireNonNull(dir.listFiles(File::isFile));
+        // same ordering used by NitroDirectory.loadDir
+        Arrays.sort(dirList, Comparator.comparing(a -> a.getName().toLowerCase()));
+        Arrays.sort(fileList, Comparator.comparing(a -> a.getName().toLowerCase()));
+        for (File d : dirList)
+            node.getDirectoryList().add(buildNode(d, cachedDirs.get(d.getName()), sidecarTime, files));
+        for (File f : fileList) {
+            MerkleNode old = cachedFiles.get(f.getName());
+            if (old != null && f.lastModified() <= sidecarTime)
+                node.getFileList().add(new MerkleNode(f.getName(), false, old.getHash()));
+            else {
+                // new or modified after the sidecar, hash it again
+                MerkleNode n = new MerkleNode(f.getName(), false, null);
+                node.getFileList().add(n);
+                files.put(f, n);
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Compute the directory hashes bottom-up, once every file is hashed
+     */
+    private static void updateHashes(MerkleNode dir) {
+        for (MerkleNode d : dir.getDirectoryList())
+            updateHashes(d);
+        dir.updateHash();
+    }
+
+    /**
+     * Store a tree in a sidecar file. Nodes are written in pre-order:
+     * flags (0x80 for directories), name length, name, hash and, for directories, the number of subdirectories and files
+     *
+     * @param root        The root node
+     * @param sidecarPath Where to write the tree
+     * @throws IOException If something goes wrong
+     */
+    static void writeSidecar(MerkleNode root, Path sidecarPath) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(6 + getSidecarSize(root)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.put((byte) MerkleNode.HASH_SIZE);
+        writeNode(root, buffer);
+        BinaryWriter w = new BinaryWriter(sidecarPath);
+        w.writeBytes(buffer.array());
+        w.close();
+    }
+
+    private static int getSidecarSize(MerkleNode node) {
+        int n = 2 + node.getName().length() + MerkleNode.HASH_SIZE;
+        if (node.isDirectory()) {
+            n += 4;
+            for (MerkleNode d : node.getDirectoryList())
+                n += getSidecarSize(d);
+            for (MerkleNode f : node.getFileList())
+                n += getSidecarSize(f);
+        }
+        return n;
+    }
+
+    private static void writeNode(MerkleNode node, ByteBuffer buffer) {
+        byte[] name = node.getName().getBytes(StandardCharsets.US_ASCII);
+        buffer.put((byte) (node.isDirectory() ? 0x80 : 0));
+        buffer.put((byte) name.length);
+        buffer.put(name);
+        buffer.put(node.getHash());
+        if (node.isDirectory()) {
+            buffer.putShort((short) node.getDirectoryList().size());
+            buffer.putShort((short) node.getFileList().size());
+            for (MerkleNode d : node.getDirectoryList())
+                writeNode(d, buffer);
+            for (MerkleNode f : node.getFileList())
+                writeNode(f, buffer);
+        }
+    }
+
+    /**
+     * Load a tree from a sidecar file
+     *
+     * @param sidecarPath The sidecar file
+     * @return The root node
+     * @throws IOException If the file isn't a valid sidecar
+     */
+    static MerkleNode readSidecar(Path sidecarPath) throws IOException {
+        BinaryReader r = new BinaryReader(sidecarPath);
+        ByteBuffer buffer = ByteBuffer.wrap(r.readAll()).order(ByteOrder.LITTLE_ENDIAN);
+        r.close();
+        byte[] magic = new byte[4];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || buffer.get() != VERSION || buffer.get() != MerkleNode.HASH_SIZE)
+            throw new IOException(sidecarPath + " is not a valid sidecar file!");
+        try {
+            return readNode(buffer);
+        } catch (RuntimeException e) {
+            throw new IOException(sidecarPath + " is corrupted!", e);
+        }
+    }
+
+    private static MerkleNode readNode(ByteBuffer buffer) {
+        boolean directory = (buffer.get() & 0x80) != 0;
+        byte[] name = new byte[buffer.get() & 0xff];
+        buffer.get(name);
+        byte[] hash = new byte[MerkleNode.HASH_SIZE];
+        buffer.get(hash);
+        MerkleNode node = new MerkleNode(new String(name, StandardCharsets.US_ASCII), directory, hash);
+        if (directory) {
+            int dirs = buffer.getShort() & 0xffff;
+            int files = buffer.getShort() & 0xffff;
+            for (int i = 0; i < dirs; i++)
+                node.getDirectoryList().add(readNode(buffer));
+            for (int i = 0; i < files; i++)
+                node.getFileList().add(readNode(buffer));
+        }
+        return node;
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BinaryWriter;
+import io.IOStats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * This class decodes a NARC archive, the container most games use for the files of their data folder.
+ * A NARC holds a small Nitro file system of its own: a header, a FAT (BTAF), a FNT (BTNF) which is often left without
+ * names, and the file image (GMIF) which the FAT offsets are relative to.
+ * The archive is accessed through a buffer, usually a slice of a mapped ROM, and every entry is a slice of it, so
+ * nothing is copied until it's read
+ */
+public class NARC {
+    public static final String ARCHIVE_FILE = ".narc"; // The original archive, inside the directory of an expanded NARC
+
+    private static final int MAGIC = 0x4352414e; // "NARC"
+    private static final int BTAF = 0x46415442;
+    private static final int BTNF = 0x464e5442;
+    private static final int GMIF = 0x46494d47;
+
+    private final ByteBuffer archive; // The whole archive, little endian
+    private final int fatOffset; // Offset of the first BTAF entry
+    private final int count; // Number of entries
+    private final int fntOffset; // Offset of the BTNF main table
+    private final int fntSize;
+    private final int imageOffset; // Offset of the GMIF data, the origin of the BTAF offsets
+    private final int imageSize;
+    private NitroDirectory root; // Decoded on demand, most lookups go by entry ID
+    private String[] names; // The path of every entry, by ID
+
+    private NARC(ByteBuffer archive) throws IOException {
+        this.archive = archive.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (!isNARC(this.archive))
+            throw new IOException("Not a NARC archive!");
+        int headerSize = this.archive.getShort(0x0c) & 0xffff;
+        int sectionCount = this.archive.getShort(0x0e) & 0xffff;
+        int fat = -1, fatSize = 0, fnt = -1, fntSize = 0, image = -1, imageSize = 0;
+        int position = headerSize;
+        for (int i = 0; i < sectionCount; i++) {
+            if (position < 0 || position + 8 > this.archive.limit())
+                throw new IOException("NARC section " + i + " is outside of the archive!");
+            int magic = this.archive.getInt(position);
+            int size = this.archive.getInt(position + 4);
+            if (size < 8 || size > this.archive.limit() - position)
+                throw new IOException("NARC section " + i + " has an invalid size!");
+            if (magic == BTAF) {
+                fat = position + 8;
+                fatSize = size - 8;
+            } else if (magic == BTNF) {
+                fnt = position + 8;
+                fntSize = size - 8;
+            } else if (magic == GMIF) {
+                image = position + 8;
+                imageSize = size - 8;
+            }
+            position += size;
+        }
+        if (fat < 0 || fnt < 0 || image < 0)
+            throw new IOException("The NARC archive lacks the BTAF, BTNF or GMIF section!");
+        if (fatSize < 4 || 4 + (this.archive.getShort(fat) & 0xffff) * 8L > fatSize)
+            throw new IOException("The NARC BTAF is corrupted!");
+        this.count = this.archive.getShort(fat) & 0xffff;
+        this.fatOffset = fat + 4;
+        this.fntOffset = fnt;
+        this.fntSize = fntSize;
+        this.imageOffset = image;
+        this.imageSize = imageSize;
+    }
+
+    /**
+     * Check if the data starts like a NARC archive
+     *
+     * @param data The data, from its position
+     * @return True if it has the NARC magic
+     */
+    public static boolean isNARC(ByteBuffer data) {
+        return data.remaining() >= 0x10 && data.order(ByteOrder.LITTLE_ENDIAN).getInt(data.position()) == MAGIC;
+    }
+
+    /**
+     * Decode the sections of an archive, the entries and their names are read only when they're requested
+     *
+     * @param archive The archive, from its position to its limit
+     * @return The archive
+     * @throws IOException If it's not a NARC archive or it's corrupted
+     */
+    public static NARC read(ByteBuffer archive) throws IOException {
+        return new NARC(archive);
+    }
+
+    /**
+     * Open an archive of the file system of a ROM, through a mapping of the ROM
+     *
+     * @param romPath The path of the .nds file
+     * @param path    The path of the archive, relative to data
+     * @return The archive
+     * @throws IOException If the file doesn't exist or it's not a NARC archive
+     */
+    public static NARC open(Path romPath, String path) throws IOException {
+        try (MappedROM rom = MappedROM.open(romPath)) {
+            for (NitroFile f : NitroDirectory.listFiles(rom.getRoot()))
+                if (f.getPath().equals(path)) {
+                    if (!rom.contains(f.getOffset(), f.getSize()))
+                        throw new IOException(path + " is outside of the ROM!");
+                    return new NARC(rom.slice(f.getOffset(), f.getSize()));
+                }
+        }
+        throw new IOException(path + " doesn't exist in the ROM!");
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Get an entry of the archive, without copying it
+     *
+     * @param id The entry ID
+     * @return A little endian slice of the archive holding the entry
+     * @throws IOException If the ID or the BTAF entry are invalid
+     */
+    public ByteBuffer getEntry(int id) throws IOException {
+        int start = getStart(id);
+        int end = getEnd(id);
+        if (start < 0 || end < start || end > imageSize)
+            throw new IOException("NARC entry " + id + " is outside of the GMIF!");
+        ByteBuffer d = archive.duplicate();
+        d.limit(imageOffset + end);
+        d.position(imageOffset + start);
+        return d.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Get an entry of the archive by its name, without copying it
+     *
+     * @param path The path of the entry in the BTNF, or its name in an expanded archive
+     * @return A little endian slice of the archive holding the entry
+     * @throws IOException If there's no such entry
+     */
+    public ByteBuffer getEntry(String path) throws IOException {
+        int id = find(path);
+        if (id < 0)
+            throw new IOException(path + " doesn't exist in the archive!");
+        return getEntry(id);
+    }
+
+    /**
+     * Get the offset of an entry, relative to the GMIF data
+     *
+     * @param id The entry ID
+     * @return The start offset
+     * @throws IOException If the ID is invalid
+     */
+    public int getStart(int id) throws IOException {
+        if (id < 0 || id >= count)
+            throw new IOException("NARC entry " + id + " doesn't exist!");
+        return archive.getInt(fatOffset + id * 8);
+    }
+
+    /**
+     * Get the end offset of an entry, relative to the GMIF data
+     *
+     * @param id The entry ID
+     * @return The end offset
+     * @throws IOException If the ID is invalid
+     */
+    public int getEnd(int id) throws IOException {
+        if (id < 0 || id >= count)
+            throw new IOException("NARC entry " + id + " doesn't exist!");
+        return archive.getInt(fatOffset + id * 8 + 4);
+    }
+
+    /**
+     * Get the name of an entry. Entries of archives without a complete BTNF are named after their ID (0000.bin, ...)
+     *
+     * @param id The entry ID
+     * @return The path of the entry, relative to the archive
+     * @throws IOException If the BTNF is corrupted
+     */
+    public synchronized String getName(int id) throws IOException {
+        if (names == null) {
+            String[] n = new String[count];
+            List<NitroFile> files = NitroDirectory.listFiles(getRoot());
+            boolean named = files.size() == count;
+            for (NitroFile f : files)
+                if (f.getId() < count && n[f.getId()] == null)
+                    n[f.getId()] = f.getPath();
+                else
+                    named = false;
+            for (int i = 0; i < count; i++)
+                if (!named)
+                    n[i] = String.format("%04d.bin", i);
+            names = n;
+        }
+        return names[id];
+    }
+
+    /**
+     * Find an entry by its name
+     *
+     * @param path The path of the entry, as returned by getName
+     * @return The entry ID, or -1 if there's no such entry
+     * @throws IOException If the BTNF is corrupted
+     */
+    public int find(String path) throws IOException {
+        for (int i = 0; i < count; i++)
+            if (getName(i).equals(path))
+                return i;
+        return -1;
+    }
+
+    int getSize() {
+        return archive.limit();
+    }
+
+    int getFatOffset() {
+        return fatOffset;
+    }
+
+    int getImageOffset() {
+        return imageOffset;
+    }
+
+    int getImageSize() {
+        return imageSize;
+    }
+
+    /**
+     * Get the tree of the BTNF, its files hold the offsets relative to the GMIF data
+     *
+     * @return The root directory, empty if the archive has no names
+     * @throws IOException If the BTNF is corrupted
+     */
+    synchronized NitroDirectory getRoot() throws IOException {
+        if (root == null) {
+            NitroDirectory r = new NitroDirectory("", 0xf000, null);
+            if (fntSize >= 8)
+                loadDir(r);
+            root = r;
+        }
+        return root;
+    }
+
+    /**
+     * Recursively load the BTNF structure, like NitroDirectory.loadDir does for the FNT
+     */
+    private void loadDir(NitroDirectory parent) throws IOException {
+        int directoryCount = archive.getShort(fntOffset + 6) & 0xffff;
+        if ((parent.getId() & 0xfff) >= directoryCount || (parent.getId() & 0xfff) * 8 + 8 > fntSize)
+            throw new IOException("NARC directory " + parent + " is outside of the BTNF main table!");
+        for (NitroDirectory d = parent.getParent(); d != null; d = d.getParent())
+            if (d.getId() == parent.getId())
+                throw new IOException("NARC directory " + parent + " contains itself!");
+        int entry = fntOffset + 8 * (parent.getId() & 0xfff);
+        int position = archive.getInt(entry);
+        int fileID = archive.getShort(entry + 4) & 0xffff;
+        int header;
+        while (true) {
+            if (position < 0 || position >= fntSize)
+                throw new IOException("NARC directory " + parent + " runs outside of the BTNF!");
+            if (((header = archive.get(fntOffset + position++) & 0xff) & 0x7f) == 0)
+                break;
+            int length = header & 0x7f;
+            if (position + length + (header > 0x7f ? 2 : 0) > fntSize)
+                throw new IOException("NARC directory " + parent + " runs outside of the BTNF!");
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++)
+                bytes[i] = archive.get(fntOffset + position + i);
+            position += length;
+            String name = new String(bytes, StandardCharsets.US_ASCII);
+            if (name.equals(".") || name.equals("..") || name.contains("/") || name.contains("\\"))
+                throw new IOException("NARC directory " + parent + " holds the invalid name " + name);
+            if (header > 0x7f) {
+                int id = archive.getShort(fntOffset + position) & 0xffff;
+                position += 2;
+                NitroDirectory d = new NitroDirectory(name, id, parent);
+                parent.getDirectoryList().add(d);
+                loadDir(d);
+            } else {
+                if (fileID >= count)
+                    throw new IOException(name + " has NARC entry ID " + fileID + " which is outside of the BTAF!");
+                parent.getFileList().add(new NitroFile(name, fileID,
+                        getStart(fileID), getEnd(fileID) - getStart(fileID), parent));
+                fileID++;
+            }
+        }
+    }
+
+    /**
+     * Expand an extracted archive in place: the archive file becomes a directory holding the original archive
+     * (.narc) and every entry as a file. The entries get the modification time of the archive, so that the ones edited
+     * later can be told apart
+     *
+     * @param path The extracted archive
+     * @return The total size of the entries
+     * @throws IOException If something goes wrong, or an entry would take the place of the original archive
+     */
+    private long expand(Path path, IOStats io) throws IOException {
+        for (int i = 0; i < count; i++) { // Check the whole archive first, a corrupted one is left as it is
+            String name = getName(i);
+            if (name.equals(ARCHIVE_FILE) || name.endsWith("/" + ARCHIVE_FILE))
+                throw new IOException("NARC entry " + i + " is named " + name + ", which is reserved for expanded archives");
+            getEntry(i);
+        }
+        Path temporary = path.resolveSibling(path.getFileName() + ARCHIVE_FILE);
+        Files.move(path, temporary);
+        Files.createDirectory(path);
+        Path original = path.resolve(ARCHIVE_FILE);
+        Files.move(temporary, original);
+        FileTime time = Files.getLastModifiedTime(original);
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            Path entry = path.resolve(getName(i));
+            Files.createDirectories(entry.getParent());
+            ByteBuffer data = getEntry(i);
+            bytes += data.remaining();
+            BinaryWriter w = new BinaryWriter(entry);
+            w.setStats(io);
+            w.writeBytes(data);
+            w.close();
+            Files.setLastModifiedTime(entry, time);
+        }
+        return bytes;
+    }
+
+    /**
+     * Expand the extracted NARC archives among the given files, in parallel. The entries are written from slices of
+     * the mapped ROM, so the archives aren't read again from the extracted files. Files which aren't NARC archives,
+     * were extracted decompressed or are already expanded are left as they are, like the corrupted archives
+     *
+     * @param rom     The mapped ROM
+     * @param dirPath The path where the ROM was extracted
+     * @param files   The sections of the files, named data/...
+     * @param io      The counters of the writes
+     * @return The total size of the entries of every NARC archive, -1 for the ones left as they are
+     * @throws IOException If something goes wrong
+     */
+    static List<Long> expand(MappedROM rom, Path dirPath, List<ROMSection> files, IOStats io) throws IOException {
+        List<Callable<Long>> tasks = new ArrayList<>();
+        for (ROMSection s : files) {
+            Path path = dirPath.resolve(s.getName());
+            if (!Files.isRegularFile(path) || Files.size(path) != s.getSize() || !rom.contains(s.getOffset(), s.getSize()))
+                continue;
+            ByteBuffer data = rom.slice(s.getOffset(), s.getSize());
+            if (isNARC(data))
+                tasks.add(() -> {
+                    try {
+                        return new NARC(data).expand(path, io);
+                    } catch (IOException e) {
+                        if (Files.isDirectory(path))
+                            throw e;
+                        System.out.println("WARNING! " + s.getName() + " is left as it is: " + e.getMessage());
+                        return -1L;
+                    }
+                });
+        }
+        return CompressedBinaries.invokeAll(tasks);
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BinaryReader;
+import io.BinaryWriter;
+import io.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * This class packs a NARC archive expanded by the extraction back into an archive, incrementally.
+ * An entry counts as changed when its file has a different size or modification time than the original archive
+ * (.narc); missing entries keep the original content. The archive is the original one up to the first changed entry,
+ * so that part is copied between channels as it is, apart from the archive size, the BTAF entries from the changed one
+ * onward and the GMIF size; the entries from the changed one onward are copied from their files or, when unchanged,
+ * from the original archive. An edit that keeps both the size and the modification time of an entry (like cp -p or
+ * rsync -t from another copy) isn't detected, so the original content is kept
+ */
+class NARCBuilder implements ROMContent {
+    private final Path archivePath; // The original archive
+    private final ByteBuffer data; // The original archive, mapped in memory
+    private final NARC archive;
+    private final int first; // ID of the first changed entry, the entry count if nothing changed
+    private final Path[] changed; // The file of every changed entry from the first one, null for the unchanged ones
+    private final int[] start; // The new offsets of the entries from the first changed one, relative to the GMIF data
+    private final int[] end;
+    private final int alignment; // Alignment of the entries, 4 unless the original archive doesn't align them
+    private final byte padding; // Byte filling the gaps between the entries
+    private final int imageSize; // The new size of the GMIF data
+    private final int size;
+
+    /**
+     * Compare the entries of an expanded archive with the original one and lay out the new archive
+     *
+     * @param dirPath The directory of the expanded archive
+     * @throws IOException If the original archive is missing or corrupted, or an entry is too big
+     */
+    public NARCBuilder(Path dirPath) throws IOException {
+        this(Collections.singletonList(dirPath));
+    }
+
+    /**
+     * Compare the entries of an expanded archive with the original one and lay out the new archive. Directories of
+     * upper layers can supply some entries, shadowing the ones of the expanded archive
+     *
+     * @param dirPaths The directory of the expanded archive, then the ones of the upper layers
+     * @throws IOException If the original archive is missing or corrupted, or an entry is too big
+     */
+    public NARCBuilder(List<Path> dirPaths) throws IOException {
+        this.archivePath = dirPaths.get(0).resolve(NARC.ARCHIVE_FILE);
+        BinaryReader reader = new BinaryReader(archivePath);
+        this.data = reader.map().order(ByteOrder.LITTLE_ENDIAN);
+        this.archive = NARC.read(data);
+        reader.close();
+        if (archive.getFatOffset() > archive.getImageOffset() || archive.getImageOffset() + archive.getImageSize() != archive.getSize())
+            throw new IOException(archivePath + " must have the BTAF before the GMIF, and nothing after it!");
+
+        int count = archive.getCount();
+        FileTime time = Files.getLastModifiedTime(archivePath);
+        Path[] files = new Path[count];
+        int firstChanged = count;
+        boolean aligned = true;
+        int gap = -1;
+        for (int i = 0; i < count; i++) {
+            int s = archive.getStart(i);
+            int e = archive.getEnd(i);
+            if (s < 0 || e < s || e > archive.getImageSize())
+                throw new IOException("NARC entry " + i + " of " + archivePath + " is outside of the GMIF!");
+            aligned &= s % 4 == 0;
+            if (gap < 0 && i + 1 < count && archive.getStart(i + 1) > e)
+                gap = archive.getImageOffset() + e;
+            for (int l = dirPaths.size() - 1; l >= 0; l--) {
+                Path entry = dirPaths.get(l).resolve(archive.getName(i));
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    if (attributes.isRegularFile() && (attributes.size() != e - s || !attributes.lastModifiedTime().equals(time))) {
+                        files[i] = entry;
+                        firstChanged = Math.min(firstChanged, i);
+                    }
+                    break;
+                } catch (NoSuchFileException ex) {
+                    // a missing entry keeps the content of the layer below, or the original one
+                }
+            }
+        }
+        this.first = firstChanged;
+        this.alignment = aligned ? 4 : 1;
+        this.padding = gap < 0 ? (byte) 0xff : data.get(gap);
+        this.changed = new Path[count - first];
+        this.start = new int[count - first];
+        this.end = new int[count - first];
+
+        long offset = first < count ? archive.getStart(first) : 0;
+        for (int i = first; i < count; i++) {
+            changed[i - first] = files[i];
+            long length = files[i] == null ? archive.getEnd(i) - archive.getStart(i) : Files.size(files[i]);
+            offset += pad(offset);
+            start[i - first] = (int) offset;
+            offset += length;
+            end[i - first] = (int) offset;
+            if (offset > Integer.MAX_VALUE - archive.getImageOffset() - 4)
+                throw new IOException(dirPaths.get(0) + " is too big to be packed!");
+        }
+        if (first == count)
+            this.imageSize = archive.getImageSize();
+        else if (archive.getImageSize() > archive.getEnd(count - 1)) // the original archive pads the last entry too
+            this.imageSize = (int) (offset + pad(offset));
+        else
+            this.imageSize = (int) offset;
+        this.size = archive.getImageOffset() + imageSize;
+    }
+
+    /**
+     * Lay out the given expanded archives in parallel, setting the sizes of their files
+     *
+     * @param archives The directories of every expanded archive (the archive, then the upper layers), by file
+     * @return The builder of every archive, by file
+     * @throws IOException If an archive can't be packed
+     */
+    static Map<NitroFile, NARCBuilder> open(Map<NitroFile, List<Path>> archives) throws IOException {
+        List<NitroFile> files = new ArrayList<>(archives.keySet());
+        List<Callable<NARCBuilder>> tasks = new ArrayList<>();
+        for (NitroFile f : files)
+            tasks.add(() -> new NARCBuilder(archives.get(f)));
+        List<NARCBuilder> builders = CompressedBinaries.invokeAll(tasks);
+        Map<NitroFile, NARCBuilder> result = new IdentityHashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            files.get(i).setSize(builders.get(i).getSize());
+            result.put(files.get(i), builders.get(i));
+        }
+        return result;
+    }
+
+    private int pad(long offset) {
+        return (int) ((alignment - offset % alignment) % alignment);
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Check if the archive is the original one
+     *
+     * @return True if no entry changed
+     */
+    public boolean isUnchanged() {
+        return first == archive.getCount();
+    }
+
+    @Override
+    public void writeTo(BinaryWriter rom, BufferPool pool) throws IOException {
+        BinaryReader original = new BinaryReader(archivePath);
+        original.setStats(rom.getStats());
+        int count = archive.getCount();
+        if (isUnchanged()) {
+            rom.copyFrom(original, 0, size);
+            original.close();
+            return;
+        }
+        int fatEnd = archive.getFatOffset() + count * 8;
+        int imageOffset = archive.getImageOffset();
+
+        // The header and the BTAF, patched from the first changed entry
+        rom.copyFrom(original, 0, 8);
+        rom.writeInt(size);
+        rom.copyFrom(original, 12, archive.getFatOffset() + first * 8 - 12);
+        ByteBuffer fat = ByteBuffer.allocate((count - first) * 8).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < count - first; i++)
+            fat.putInt(start[i]).putInt(end[i]);
+        fat.flip();
+        rom.writeBytes(fat);
+
+        // The BTNF, then the GMIF up to the first changed entry
+        rom.copyFrom(original, fatEnd, imageOffset - 4 - fatEnd);
+        rom.writeInt(imageSize + 8);
+        rom.copyFrom(original, imageOffset, start[0]);
+
+        // The entries from the first changed one
+        for (int i = 0; i < count - first; i++) {
+            if (changed[i] == null)
+                rom.copyFrom(original, imageOffset + archive.getStart(first + i), end[i] - start[i]);
+            else {
+                BinaryReader entry = new BinaryReader(changed[i]);
+                entry.setStats(rom.getStats());
+                rom.copyFrom(entry, 0, end[i] - start[i]);
+                entry.close();
+            }
+            int gap = (i + 1 < count - first ? start[i + 1] : imageSize) - end[i];
+            if (gap > 0)
+                rom.writeBytes(filler(gap));
+        }
+        original.close();
+    }
+
+    private byte[] filler(int gap) {
+        byte[] filler = new byte[gap];
+        Arrays.fill(filler, padding);
+        return filler;
+    }
+
+    @Override
+    public byte[] readAll() throws IOException {
+        ByteBuffer packed = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer prefix = data.duplicate();
+        prefix.position(0).limit(isUnchanged() ? size : archive.getImageOffset() + start[0]);
+        packed.put(prefix);
+        if (isUnchanged())
+            return packed.array();
+        packed.putInt(8, size);
+        for (int i = 0; i < start.length; i++) {
+            packed.putInt(archive.getFatOffset() + (first + i) * 8, start[i]);
+            packed.putInt(archive.getFatOffset() + (first + i) * 8 + 4, end[i]);
+        }
+        packed.putInt(archive.getImageOffset() - 4, imageSize + 8);
+        for (int i = 0; i < start.length; i++) {
+            if (changed[i] == null)
+                packed.put(archive.getEntry(first + i));
+            else
+                packed.put(Files.readAllBytes(changed[i]));
+            int gap = (i + 1 < start.length ? start[i + 1] : imageSize) - end[i];
+            if (gap > 0)
+                packed.put(filler(gap));
+        }
+        return packed.array();
+    }
+}
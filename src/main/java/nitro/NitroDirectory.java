@@ -20,12 +20,11 @@ package nitro;
 
 import io.BinaryReader;
 import io.BinaryWriter;
+import io.BufferPool;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.*;
 import java.util.function.Consumer;
 
@@ -39,11 +38,6 @@ class NitroDirectory implements Comparable<NitroDirectory> {
     private final List<NitroFile> fileList; // The list of directory's files
     private final List<NitroDirectory> directoryList; // The list of subdirectories
 
-    //The following variables are used internally by loadDir method
-    private static int currentDirID;
-    private static int fileID;
-    private static int currentOffset;
-
     public NitroDirectory(String name, int id, NitroDirectory parent) {
         this.name = name;
         this.id = id;
@@ -87,16 +81,43 @@ class NitroDirectory implements Comparable<NitroDirectory> {
         return (name.compareToIgnoreCase(nitroDirectory.name));
     }
 
+    /**
+     * List every file of the tree, in the same depth-first order used for the FAT
+     *
+     * @param root The root directory where to start
+     * @return The list of files
+     */
+    public static List<NitroFile> listFiles(NitroDirectory root) {
+        List<NitroFile> files = new ArrayList<>();
+        listFiles(root, files);
+        return files;
+    }
+
+    private static void listFiles(NitroDirectory currentDir, List<NitroFile> files) {
+        for (NitroDirectory d : currentDir.getDirectoryList())
+            listFiles(d, files);
+        files.addAll(currentDir.getFileList());
+    }
+
     /**
      * Recursively load the FNT structure
      *
-     * @param parent The current parent directory
-     * @param stream FNT source stream
-     * @param origin Initial stream offset
+     * @param parent      The current parent directory
+     * @param stream      FNT source stream
+     * @param origin      Initial stream offset
+     * @param startOffset The files start offsets, indexed by file ID
+     * @param endOffset   The files end offsets, indexed by file ID
      * @throws IOException If a file is corrupted or something is wrong
      */
-    public static void loadDir(NitroDirectory parent, BinaryReader stream, long origin, Map<Integer, Integer> startOffset, Map<Integer, Integer> endOffset) throws IOException {
+    public static void loadDir(NitroDirectory parent, BinaryReader stream, long origin, int[] startOffset, int[] endOffset) throws IOException {
         long position = stream.getPosition();
+        stream.seek(origin + 6); // The root entry holds the total number of directories
+        int directoryCount = stream.readShort();
+        if ((parent.id & 0xfff) >= directoryCount)
+            throw new IOException(parent + " is outside of the FNT main table!");
+        for (NitroDirectory d = parent.parent; d != null; d = d.parent)
+            if (d.id == parent.id)
+                throw new IOException(parent + " contains itself!");
         stream.seek(origin + (8 * (parent.id & 0xfff))); // Go the the FNT main table entry
 
         int subTableOffset = stream.readInt();
@@ -114,54 +135,36 @@ class NitroDirectory implements Comparable<NitroDirectory> {
                 parent.directoryList.add(newDirectory);
                 loadDir(newDirectory, stream, origin, startOffset, endOffset);
             } else { // This is a file
-                parent.fileList.add(new NitroFile(name, firstFileID, startOffset.get(firstFileID), endOffset.get(firstFileID) - startOffset.get(firstFileID), parent));
+                if (firstFileID >= startOffset.length)
+                    throw new IOException(name + " has file ID " + firstFileID + " which is outside of the FAT!");
+                parent.fileList.add(new NitroFile(name, firstFileID, startOffset[firstFileID], endOffset[firstFileID] - startOffset[firstFileID], parent));
                 firstFileID++;
             }
         }
         stream.seek(position);
     }
 
-    /**
-     * Recursively construct the NitroDirectory structure
-     *
-     * @param currentPath   The current host file system path
-     * @param parent        The current parent directory
-     * @param firstFileID   First file ID of the current folder
-     * @param currentOffset Current offset from the ROM origin
-     */
-    public static void loadDir(File currentPath, NitroDirectory parent, int currentDirID, int firstFileID, int currentOffset) {
-        // i need this variables to be shared among ALL recursive calls
-        NitroDirectory.currentDirID = currentDirID;
-        NitroDirectory.fileID = firstFileID;
-        // it's better to get 4-byte alignment of the offsets
-        if (currentOffset % 4 != 0)
-            currentOffset += 4 - (currentOffset % 4);
-        NitroDirectory.currentOffset = currentOffset;
-
-        // now the actual recursive loading process
-        loadDir(currentPath, parent);
-    }
-
     /**
      * Recursively construct the NitroDirectory structure
      *
      * @param currentPath The current host file system path
      * @param parent      The current parent directory
+     * @param context     The counters of the build the directory belongs to
      */
-    private static void loadDir(File currentPath, NitroDirectory parent) {
-        File[] dirList = currentPath.listFiles(File::isDirectory); // load the current directory list
-        File[] fileList = currentPath.listFiles(File::isFile); // load the current file list
+    static void loadDir(File currentPath, NitroDirectory parent, BuildContext context) {
+        // expanded NARC archives are directories, but they're packed back into files
+        File[] dirList = currentPath.listFiles(f -> f.isDirectory() && !isExpandedArchive(f)); // load the current directory list
+        File[] fileList = currentPath.listFiles(f -> f.isFile() || isExpandedArchive(f)); // load the current file list
 
         // it's important to sort the file lists alphabetically
         if (dirList != null) {
             Arrays.sort(dirList, Comparator.comparing(a -> a.getName().toLowerCase()));
             for (File dir : dirList) { // for every directory I create the correspondent NitroDirectory
-                currentDirID++;
-                NitroDirectory newDirectory = new NitroDirectory(dir.getName(), currentDirID, parent);
+                NitroDirectory newDirectory = new NitroDirectory(dir.getName(), context.nextDirectoryID(), parent);
                 parent.directoryList.add(newDirectory);
                 if (Objects.requireNonNull(dir.listFiles()).length > 0)
                     // here is the recursive call, whenever we encounter a new directory, we will first explore that path, in a depth-first-search fashion
-                    loadDir(dir, newDirectory);
+                    loadDir(dir, newDirectory, context);
             }
         }
         // remember that this part will be executed for every directory
@@ -169,68 +172,76 @@ class NitroDirectory implements Comparable<NitroDirectory> {
         if (fileList != null) {
             Arrays.sort(fileList, Comparator.comparing(a -> a.getName().toLowerCase()));
             for (File file : fileList) { // for every file I create the correspondent NitroFile
-                parent.fileList.add(new NitroFile(file.getName(), fileID, currentOffset, (int) file.length(), parent));
-                fileID++;
-                currentOffset += (int) file.length();
-                // it's better to get 4-byte alignment of the offsets
-                if (currentOffset % 4 != 0)
-                    currentOffset += (4 - (currentOffset % 4));
+                boolean archive = isExpandedArchive(file);
+                long size = archive ? new File(file, NARC.ARCHIVE_FILE).length() : file.length();
+                NitroFile f = new NitroFile(file.getName(), 0, 0, (int) size, parent);
+                context.place(f);
+                parent.fileList.add(f);
+                if (archive)
+                    context.addArchive(f);
             }
         }
     }
 
     /**
-     * Recursively unpack the files of the ROM
+     * Check if a host directory is a NARC archive expanded by the extraction
      *
-     * @param currentDir The path to use for creating the tree
-     * @param rootDir    The current root directory
-     * @throws IOException If a file is corrupted or something is wrong
+     * @param path The host directory
+     * @return True if it holds the original archive
      */
-    public static void unpackFileTree(BinaryReader rom, Path currentDir, NitroDirectory rootDir) throws IOException {
-        // we scan for directories first, thus exploring a path in depth as in DFS algorithm
-        for (NitroDirectory d : rootDir.directoryList) {
-            if (Files.notExists(currentDir.resolve(d.name)))
-                Files.createDirectory(currentDir.resolve(d.name));
-            unpackFileTree(rom, currentDir.resolve(d.name), d);
-        }
-        // then whenever we reach the end of a path we unpack the files
-        for (NitroFile f : rootDir.fileList) {
-            if (Files.notExists(currentDir.resolve(f.getName()))) {
-                BinaryWriter tmp = new BinaryWriter(currentDir.resolve(f.getName()));
-                rom.seek(f.getOffset());
-                tmp.writeBytes(rom.readBuffer(f.getSize()));
-                tmp.close();
-            }
-        }
+    static boolean isExpandedArchive(File path) {
+        return path.isDirectory() && new File(path, NARC.ARCHIVE_FILE).isFile();
+    }
+
+    /**
+     * Assign file IDs and 4-byte aligned offsets to the files of the tree, in the same depth-first order used for the FAT
+     *
+     * @param root        The root directory
+     * @param firstFileID The ID of the first file (the overlays come before the files)
+     * @param firstOffset Offset of the first file
+     */
+    public static void layout(NitroDirectory root, int firstFileID, int firstOffset) {
+        layout(root, new BuildContext(root.getId(), firstFileID, firstOffset));
+    }
+
+    /**
+     * Assign file IDs and offsets to the files of the tree, continuing from the counters of the given context
+     *
+     * @param currentDir The current root directory
+     * @param context    The counters of the build
+     */
+    static void layout(NitroDirectory currentDir, BuildContext context) {
+        for (NitroDirectory d : currentDir.getDirectoryList())
+            layout(d, context);
+        for (NitroFile f : currentDir.getFileList())
+            context.place(f);
     }
 
     /**
      * Recursively repack the files in the ROM
      *
-     * @param rom        BinaryWriter stream of the .nds ROM
-     * @param currentDir Current path
-     * @param rootDir    The current root directory
+     * @param rom     BinaryWriter stream of the .nds ROM
+     * @param source  The source of the files content
+     * @param rootDir The current root directory
+     * @param stats   The statistics of the build, advanced for every file
+     * @param pool    The buffers to copy the files through, or null to copy every file in one go
      * @throws IOException If a file is corrupted or something is wrong
      */
-    public static void repackFileTree(BinaryWriter rom, Path currentDir, NitroDirectory rootDir) throws IOException {
+    public static void repackFileTree(BinaryWriter rom, ROMSource source, NitroDirectory rootDir, ROMStats stats, BufferPool pool) throws IOException {
         // we scan for directories first, thus exploring a path in depth as in DFS algorithm
         for (NitroDirectory d : rootDir.directoryList)
-            repackFileTree(rom, currentDir.resolve(d.getName()), d);
+            repackFileTree(rom, source, d, stats, pool);
         // then whenever we reach the end of a path we unpack the files
         for (NitroFile f : rootDir.fileList) {
-            if (Files.exists(currentDir.resolve(f.getName()))) {
-                BinaryReader tmp = new BinaryReader(currentDir.resolve(f.getName()));
-                if (f.getOffset() != rom.getPosition()) {
-                    System.out.println("WARNING! " + f + " real offset differs from assumed one! Assumed: "
-                            + f.getOffset() + " Real: " + rom.getPosition());
-                    f.setOffset(rom.getPosition());
-                }
-                rom.writeBytes(tmp.readAll());
-                // padding with 0xff for 4-byte alignment
-                ROM.writePadding(rom);
-                tmp.close();
-            } else
-                throw new IOException(f.getName() + " file does not exist");
+            if (f.getOffset() != rom.getPosition()) {
+                System.out.println("WARNING! " + f + " real offset differs from assumed one! Assumed: "
+                        + f.getOffset() + " Real: " + rom.getPosition());
+                f.setOffset(rom.getPosition());
+            }
+            source.getFile(f).writeTo(rom, pool);
+            // padding with 0xff for 4-byte alignment
+            ROM.writePadding(rom);
+            stats.advance(1, f.getSize());
         }
     }
 }
@@ -76,6 +76,18 @@ class NitroFile implements Comparable<NitroFile> {
         this.name = name;
     }
 
+    /**
+     * Get the path of the file, relative to the root of the Nitro file system
+     *
+     * @return The path, using '/' as separator (for example a/0/0/0)
+     */
+    public String getPath() {
+        StringBuilder path = new StringBuilder(name);
+        for (NitroDirectory d = parent; d != null && d.getParent() != null; d = d.getParent())
+            path.insert(0, d.getName() + "/");
+        return path.toString();
+    }
+
     @Override
     public int compareTo(NitroFile nitroFile) {
         return name.compareToIgnoreCase(nitroFile.name);
@@ -32,6 +32,31 @@ import java.util.Arrays;
  * This class handles the cartdridge header.
  */
 public class NitroHeader {
+    // CRC16 as computed by the DS BIOS (CRC-16/MODBUS)
+    static final CRC.Parameters NITRO_CRC16 = new CRC.Parameters(16, 0x8005, 0xffff, true, true, 0);
+
+    // Name and offset of every header field, the last offset marks the end of the header
+    static final String[] FIELD_NAMES = {"gameTitle", "gameCode", "makerCode", "unitCode", "encryptionSeedSelect",
+            "deviceCapacity", "reserved1", "dsiFlags", "ndsRegion", "romVersion", "autoStart",
+            "arm9RomOffset", "arm9EntryAddress", "arm9RamAddress", "arm9Size",
+            "arm7RomOffset", "arm7EntryAddress", "arm7RamAddress", "arm7Size",
+            "fntOffset", "fntSize", "fatOffset", "fatSize",
+            "arm9OverlayOffset", "arm9OverlaySize", "arm7OverlayOffset", "arm7OverlaySize",
+            "port40001A4hNormalCommand", "port40001A4hKey1Command", "iconOffset",
+            "secureAreaChecksum", "secureAreaDelay", "arm9AutoLoad", "arm7AutoLoad", "secureAreaDisable",
+            "usedRomSize", "headerSize", "reserved2", "reserved3", "logo", "logoChecksum", "headerChecksum",
+            "debugRomOffset", "debugSize", "debugRamAddress", "reserved4", "reserved5"};
+    static final int[] FIELD_OFFSETS = {0x00, 0x0c, 0x10, 0x12, 0x13,
+            0x14, 0x15, 0x1c, 0x1d, 0x1e, 0x1f,
+            0x20, 0x24, 0x28, 0x2c,
+            0x30, 0x34, 0x38, 0x3c,
+            0x40, 0x44, 0x48, 0x4c,
+            0x50, 0x54, 0x58, 0x5c,
+            0x60, 0x64, 0x68,
+            0x6c, 0x6e, 0x70, 0x74, 0x78,
+            0x80, 0x84, 0x88, 0xb0, 0xc0, 0x15c, 0x15e,
+            0x160, 0x164, 0x168, 0x16c, 0x170, 0x200};
+
     private String gameTitle;
     private String gameCode;
     private String makerCode;
@@ -98,6 +123,34 @@ public class NitroHeader {
     private int reserved4;
     private byte[] reserved5;
 
+    /**
+     * Create a header with sensible defaults, the sections offsets and sizes are filled in when the ROM is built
+     *
+     * @param gameTitle The game title, at most 12 characters
+     * @param gameCode  The game code, 4 characters
+     * @return A header
+     */
+    static NitroHeader createHeader(String gameTitle, String gameCode) {
+        NitroHeader header = new NitroHeader();
+        header.gameTitle = gameTitle;
+        header.gameCode = gameCode;
+        header.makerCode = "01";
+        header.reserved1 = new byte[7];
+        header.arm9EntryAddress = 0x02000800;
+        header.arm9RamAddress = 0x02000000;
+        header.arm7EntryAddress = 0x02380000;
+        header.arm7RamAddress = 0x02380000;
+        header.port40001A4hNormalCommand = 0x00586000;
+        header.port40001A4hKey1Command = 0x001808f8;
+        header.secureAreaDelay = 0x051e;
+        header.headerSize = 0x4000;
+        header.reserved2 = new byte[0x28];
+        header.reserved3 = new byte[0x10];
+        header.logo = new byte[0x9c];
+        header.reserved5 = new byte[0x90];
+        return header;
+    }
+
     /**
      * Read the header
      *
@@ -229,11 +282,62 @@ public class NitroHeader {
         rom.writeBytes(header.reserved5);
     }
 
+    /**
+     * Update the header and logo checksums so that they match the header content.
+     * The secure area checksum is left untouched, as it's computed over the encrypted secure area
+     *
+     * @param header The header to update
+     */
     public static void updateHeaderChecksum(NitroHeader header) {
-        ByteBuffer tmpHeader = ByteBuffer.allocate(0x8000).order(ByteOrder.LITTLE_ENDIAN);
-        tmpHeader.put(header.gameCode.getBytes());
-        tmpHeader.put(header.gameTitle.getBytes());
-        tmpHeader.put(header.makerCode.getBytes());
+        ByteBuffer tmpHeader = toByteBuffer(header);
+        header.logoChecksum = calculateCRC16(tmpHeader, 0xc0, 0x15c);
+        tmpHeader.putShort(0x15c, (short) header.logoChecksum);
+        header.headerChecksum = calculateCRC16(tmpHeader, 0, 0x15e);
+    }
+
+    /**
+     * Update the logo and header checksums of a raw header
+     *
+     * @param rawHeader The first 0x200 bytes of a ROM, little endian
+     * @return True if the checksums were changed
+     */
+    static boolean updateHeaderChecksum(ByteBuffer rawHeader) {
+        int logoChecksum = calculateCRC16(rawHeader, 0xc0, 0x15c);
+        boolean changed = logoChecksum != (rawHeader.getShort(0x15c) & 0xffff);
+        rawHeader.putShort(0x15c, (short) logoChecksum);
+        int headerChecksum = calculateCRC16(rawHeader, 0, 0x15e);
+        changed |= headerChecksum != (rawHeader.getShort(0x15e) & 0xffff);
+        rawHeader.putShort(0x15e, (short) headerChecksum);
+        return changed;
+    }
+
+    /**
+     * Calculate the CRC16 used by the cartridge header (initial value 0xffff)
+     *
+     * @param data The buffer holding the data
+     * @param from Absolute offset of the first byte (inclusive)
+     * @param to   Absolute offset of the last byte (exclusive)
+     * @return The CRC16 value
+     */
+    public static int calculateCRC16(ByteBuffer data, int from, int to) {
+        byte[] b = new byte[to - from];
+        ByteBuffer d = data.duplicate();
+        d.position(from);
+        d.get(b);
+        return (int) CRC.calculateCRC(NITRO_CRC16, b);
+    }
+
+    /**
+     * Serialize the header the same way writeHeader does
+     *
+     * @param header The header to serialize
+     * @return A 0x200 bytes little endian buffer
+     */
+    static ByteBuffer toByteBuffer(NitroHeader header) {
+        ByteBuffer tmpHeader = ByteBuffer.allocate(0x200).order(ByteOrder.LITTLE_ENDIAN);
+        tmpHeader.put(Arrays.copyOf(header.gameTitle.getBytes(StandardCharsets.US_ASCII), 12));
+        tmpHeader.put(Arrays.copyOf(header.gameCode.getBytes(StandardCharsets.US_ASCII), 4));
+        tmpHeader.put(Arrays.copyOf(header.makerCode.getBytes(StandardCharsets.US_ASCII), 2));
         tmpHeader.put((byte) header.unitCode);
         tmpHeader.put((byte) header.encryptionSeedSelect);
         tmpHeader.put((byte) header.deviceCapacity);
@@ -278,14 +382,8 @@ public class NitroHeader {
         tmpHeader.putInt(header.debugRamAddress);
         tmpHeader.putInt(header.reserved4);
         tmpHeader.put(header.reserved5);
-
         tmpHeader.flip();
-        byte[] headerBytes = tmpHeader.array();
-        header.headerChecksum = (int) CRC.calculateCRC(CRC.Parameters.CRC16, Arrays.copyOfRange(headerBytes, 0, 0x15e));
-        header.logoChecksum = (int) CRC.calculateCRC(CRC.Parameters.CRC16, Arrays.copyOfRange(headerBytes, 0xc0, 0x15c));
-        header.secureAreaChecksum = (int) CRC.calculateCRC(CRC.Parameters.CRC16, Arrays.copyOfRange(headerBytes, header.getArm9RomOffset(), 0x8000 - header.getArm9RomOffset()));
-
-        tmpHeader.clear();
+        return tmpHeader;
     }
 
     public String getGameTitle() {
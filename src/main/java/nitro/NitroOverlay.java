@@ -18,10 +18,22 @@
  */
 package nitro;
 
+import io.BinaryReader;
+import io.BinaryWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * This class handles the overlays
  */
 class NitroOverlay {
+    public static final int ENTRY_SIZE = 0x20; // Size of an overlay table entry
+    private static final int COMPRESSED_FLAG = 0x01000000; // Set in the reserved word of compressed overlays
+
     private int id;
     private int ramAddress;
     private int ramSize;
@@ -33,6 +45,110 @@ class NitroOverlay {
     private int startOffset;
     private int endOffset;
 
+    /**
+     * Read an overlay table (each entry is 0x20 bytes long)
+     *
+     * @param rom         ROM binary stream
+     * @param tableOffset Absolute offset of the table
+     * @param tableSize   Size in bytes of the table
+     * @param startOffset The files start offsets, indexed by file ID
+     * @param endOffset   The files end offsets, indexed by file ID
+     * @return The overlays, with their start and end offsets taken from the FAT when the file ID is valid
+     * @throws IOException If there's an I/O error
+     */
+    public static List<NitroOverlay> readOverlayTable(BinaryReader rom, int tableOffset, int tableSize, int[] startOffset, int[] endOffset) throws IOException {
+        rom.seek(tableOffset);
+        List<NitroOverlay> overlays = readOverlayTable(ByteBuffer.wrap(rom.readBuffer(tableSize / ENTRY_SIZE * ENTRY_SIZE)));
+        for (NitroOverlay o : overlays)
+            if (o.fileID >= 0 && o.fileID < startOffset.length) {
+                o.startOffset = startOffset[o.fileID];
+                o.endOffset = endOffset[o.fileID];
+            }
+        return overlays;
+    }
+
+    /**
+     * Decode an overlay table, ignoring a trailing incomplete entry
+     *
+     * @param table The table, from its position to its limit
+     * @return The overlays, without offsets
+     */
+    public static List<NitroOverlay> readOverlayTable(ByteBuffer table) {
+        table = table.slice().order(ByteOrder.LITTLE_ENDIAN);
+        List<NitroOverlay> overlays = new ArrayList<>();
+        while (table.remaining() >= ENTRY_SIZE) {
+            NitroOverlay o = new NitroOverlay();
+            o.id = table.getInt();
+            o.ramAddress = table.getInt();
+            o.ramSize = table.getInt();
+            o.bssSize = table.getInt();
+            o.stInitStart = table.getInt();
+            o.stInitEnd = table.getInt();
+            o.fileID = table.getInt();
+            o.reserved = table.getInt();
+            overlays.add(o);
+        }
+        return overlays;
+    }
+
+    /**
+     * Write an overlay table
+     *
+     * @param rom      ROM binary stream
+     * @param overlays The overlays, in table order
+     * @throws IOException If there's an I/O error
+     */
+    public static void writeOverlayTable(BinaryWriter rom, List<NitroOverlay> overlays) throws IOException {
+        ByteBuffer table = ByteBuffer.allocate(overlays.size() * ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (NitroOverlay o : overlays) {
+            table.putInt(o.id);
+            table.putInt(o.ramAddress);
+            table.putInt(o.ramSize);
+            table.putInt(o.bssSize);
+            table.putInt(o.stInitStart);
+            table.putInt(o.stInitEnd);
+            table.putInt(o.fileID);
+            table.putInt(o.reserved);
+        }
+        table.flip();
+        rom.writeBytes(table);
+    }
+
+    /**
+     * Check if the overlay is compressed, as flagged in the reserved word
+     *
+     * @return True if the overlay is compressed
+     */
+    public boolean isCompressed() {
+        return (reserved & COMPRESSED_FLAG) != 0;
+    }
+
+    public void setCompressed(boolean compressed) {
+        if (compressed)
+            reserved |= COMPRESSED_FLAG;
+        else
+            reserved &= ~(COMPRESSED_FLAG | 0xffffff);
+    }
+
+    /**
+     * Get the compressed size kept in the low 24 bits of the reserved word
+     *
+     * @return The size of the compressed overlay file
+     */
+    public int getCompressedSize() {
+        return reserved & 0xffffff;
+    }
+
+    /**
+     * Update the compressed size kept in the low 24 bits of the reserved word, if the overlay is compressed
+     *
+     * @param size The size of the overlay file
+     */
+    public void setCompressedSize(int size) {
+        if (isCompressed())
+            reserved = (reserved & 0xff000000) | (size & 0xffffff);
+    }
+
     public int getId() {
         return this.id;
     }
@@ -112,4 +228,12 @@ class NitroOverlay {
     public void setEndOffset(int endOffset) {
         this.endOffset = endOffset;
     }
+
+    @Override
+    public String toString() {
+        return "NitroOverlay{" +
+                "id=" + id +
+                ", fileID=" + fileID +
+                '}';
+    }
 }
@@ -0,0 +1,184 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class finds the section of a ROM owning an offset: a file, an overlay, an ARM binary, the banner or a table.
+ * The ranges of the FAT and of the header sections are kept sorted by offset, so every lookup is a binary search and
+ * the ROM is never read again after the index is built
+ */
+public class OffsetIndex {
+    private final int[] start; // Sorted
+    private final int[] end;
+    private final int[] maxEnd; // The greatest end of the ranges up to every index, to handle nested ranges
+    private final String[] paths;
+    private final int[] fileIDs;
+
+    /**
+     * The section owning an offset
+     */
+    public static class Match {
+        private final String path;
+        private final int fileID;
+        private final int offset;
+        private final int relativeOffset;
+
+        private Match(String path, int fileID, int offset, int relativeOffset) {
+            this.path = path;
+            this.fileID = fileID;
+            this.offset = offset;
+            this.relativeOffset = relativeOffset;
+        }
+
+        /**
+         * Get the path of the section, relative to the directory it would be extracted in
+         *
+         * @return The path, files are named data/...
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Get the FAT ID of the section
+         *
+         * @return The ID, -1 for the sections which aren't in the FAT
+         */
+        public int getFileID() {
+            return fileID;
+        }
+
+        /**
+         * Get the offset of the section in the ROM
+         *
+         * @return The absolute offset
+         */
+        public int getOffset() {
+            return offset;
+        }
+
+        /**
+         * Get the offset looked up, relative to the section
+         *
+         * @return The relative offset
+         */
+        public int getRelativeOffset() {
+            return relativeOffset;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s+0x%x", path, relativeOffset);
+        }
+    }
+
+    OffsetIndex(List<ROMSection> sections) {
+        List<ROMSection> ranges = new ArrayList<>();
+        for (ROMSection s : sections)
+            if (s.getSize() > 0)
+                ranges.add(s);
+        Collections.sort(ranges); // by offset, stable
+        int n = ranges.size();
+        this.start = new int[n];
+        this.end = new int[n];
+        this.maxEnd = new int[n];
+        this.paths = new String[n];
+        this.fileIDs = new int[n];
+        for (int i = 0; i < n; i++) {
+            start[i] = ranges.get(i).getOffset();
+            end[i] = ranges.get(i).getEnd();
+            maxEnd[i] = i == 0 ? end[i] : Math.max(maxEnd[i - 1], end[i]);
+            paths[i] = ranges.get(i).getName();
+            fileIDs[i] = ranges.get(i).getFileID();
+        }
+    }
+
+    /**
+     * Build the index of a ROM, decoding only its header, FAT, FNT and overlay tables
+     *
+     * @param romPath The path of the .nds file
+     * @return The index
+     * @throws IOException If the tables are corrupted
+     */
+    public static OffsetIndex build(Path romPath) throws IOException {
+        try (MappedROM rom = MappedROM.open(romPath)) {
+            return new OffsetIndex(rom.getSections());
+        }
+    }
+
+    /**
+     * Find the section owning an offset, without allocating anything
+     *
+     * @param offset Absolute offset in the ROM
+     * @return The index of the section, or -1 if the offset is in the padding or outside of the ROM. When sections
+     * overlap, the one starting last wins
+     */
+    public int indexOf(long offset) {
+        int low = 0;
+        int high = start.length - 1;
+        while (low <= high) { // the last section starting at or before the offset
+            int mid = (low + high) >>> 1;
+            if (start[mid] <= offset)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        for (int i = high; i >= 0 && maxEnd[i] > offset; i--)
+            if (end[i] > offset)
+                return i;
+        return -1;
+    }
+
+    /**
+     * Find the section owning an offset
+     *
+     * @param offset Absolute offset in the ROM
+     * @return The section and the offset relative to it, or null if no section owns the offset
+     */
+    public Match whois(long offset) {
+        int i = indexOf(offset);
+        return i < 0 ? null : new Match(paths[i], fileIDs[i], start[i], (int) (offset - start[i]));
+    }
+
+    public int size() {
+        return start.length;
+    }
+
+    public String getPath(int index) {
+        return paths[index];
+    }
+
+    public int getFileID(int index) {
+        return fileIDs[index];
+    }
+
+    public int getStart(int index) {
+        return start[index];
+    }
+
+    public int getEnd(int index) {
+        return end[index];
+    }
+}
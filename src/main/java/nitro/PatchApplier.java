@@ -0,0 +1,318 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * This class applies IPS and BPS patches to raw ROM images.
+ * The patch is mapped, unchanged runs are copied between channels at their position and everything else goes
+ * through a small pool of buffers, so neither the source nor the target are ever loaded in memory
+ */
+public class PatchApplier {
+    private static final int BUFFER_SIZE = 0x10000;
+
+    /**
+     * Apply an IPS or BPS patch (recognized from its magic), then fix the header checksums
+     *
+     * @param sourcePath The path of the original .nds file
+     * @param patchPath  The path of the IPS or BPS patch
+     * @param targetPath Where to write the patched .nds file
+     * @throws IOException If the patch is invalid, doesn't belong to the source or something goes wrong
+     */
+    public static void applyPatch(Path sourcePath, Path patchPath, Path targetPath) throws IOException {
+        applyPatch(sourcePath, patchPath, targetPath, new BufferPool(BUFFER_SIZE, 1));
+    }
+
+    /**
+     * Apply an IPS or BPS patch (recognized from its magic) using the buffers of a shared pool, then fix the header
+     * checksums
+     *
+     * @param sourcePath The path of the original .nds file
+     * @param patchPath  The path of the IPS or BPS patch
+     * @param targetPath Where to write the patched .nds file
+     * @param pool       The pool the copy buffers are taken from
+     * @throws IOException If the patch is invalid, doesn't belong to the source or something goes wrong
+     */
+    public static void applyPatch(Path sourcePath, Path patchPath, Path targetPath, BufferPool pool) throws IOException {
+        try (FileChannel patchChannel = FileChannel.open(patchPath, StandardOpenOption.READ);
+             FileChannel source = FileChannel.open(sourcePath, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(targetPath, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer patch = patchChannel.map(FileChannel.MapMode.READ_ONLY, 0, patchChannel.size());
+            try {
+                if (startsWith(patch, "PATCH"))
+                    applyIPS(source, patch, target, pool);
+                else if (startsWith(patch, "BPS1"))
+                    applyBPS(source, patch, target, pool);
+                else
+                    throw new IOException(patchPath + " is neither an IPS nor a BPS patch!");
+            } catch (RuntimeException e) {
+                throw new IOException(patchPath + " is corrupted!", e);
+            }
+            updateHeaderChecksum(target);
+        }
+    }
+
+    /**
+     * Apply an IPS patch. Records in ascending order are applied while streaming the source into the target,
+     * the others are written in place afterwards
+     */
+    private static void applyIPS(FileChannel source, ByteBuffer patch, FileChannel target, BufferPool pool) throws IOException {
+        patch.position(5);
+        long copied = 0; // Everything before this offset is already in the target
+        while (true) {
+            if (patch.remaining() >= 3 && startsWith(patch, "EOF") && (patch.remaining() == 3 || patch.remaining() == 6))
+                break;
+            long offset = readBigEndian(patch, 3);
+            int size = (int) readBigEndian(patch, 2);
+            ByteBuffer data;
+            boolean pooled = false;
+            if (size == 0) { // RLE record
+                size = (int) readBigEndian(patch, 2);
+                data = fill(pool, patch.get(), size);
+                pooled = size <= pool.getBufferSize();
+            } else {
+                data = patch.duplicate();
+                data.limit(data.position() + size);
+                patch.position(patch.position() + size);
+            }
+            if (offset >= copied) {
+                copyRange(source, copied, Math.min(offset, source.size()) - copied, target, copied);
+                copied = offset;
+            }
+            writeFully(target, data, offset);
+            copied = Math.max(copied, offset + size);
+            if (pooled)
+                pool.release(data);
+        }
+        copyRange(source, copied, source.size() - copied, target, copied);
+        patch.position(patch.position() + 3);
+        if (patch.remaining() == 3) // Truncation extension
+            target.truncate(readBigEndian(patch, 3));
+    }
+
+    /**
+     * Apply a BPS patch, checking the source, target and patch CRC32
+     */
+    private static void applyBPS(FileChannel source, ByteBuffer patch, FileChannel target, BufferPool pool) throws IOException {
+        ByteBuffer footer = patch.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int end = patch.limit() - 12;
+        CRC32 crc = new CRC32();
+        ByteBuffer body = patch.duplicate();
+        body.limit(patch.limit() - 4);
+        crc.update(body);
+        if ((int) crc.getValue() != footer.getInt(end + 8))
+            throw new IOException("BPS patch checksum mismatch!");
+
+        patch.position(4);
+        long sourceSize = readVarInt(patch);
+        long targetSize = readVarInt(patch);
+        int metadataSize = (int) readVarInt(patch);
+        patch.position(patch.position() + metadataSize); // Skip the metadata
+        if (source.size() != sourceSize || checksum(source, source.size(), pool) != footer.getInt(end))
+            throw new IOException("The source ROM doesn't match the one the BPS patch was made for!");
+
+        long outputOffset = 0;
+        long sourceRelativeOffset = 0;
+        long targetRelativeOffset = 0;
+        while (patch.position() < end) {
+            long data = readVarInt(patch);
+            long length = (data >> 2) + 1;
+            switch ((int) (data & 3)) {
+                case 0: // SourceRead
+                    copyRange(source, outputOffset, length, target, outputOffset);
+                    break;
+                case 1: { // TargetRead
+                    ByteBuffer literal = patch.duplicate();
+                    literal.limit(literal.position() + (int) length);
+                    patch.position(patch.position() + (int) length);
+                    writeFully(target, literal, outputOffset);
+                    break;
+                }
+                case 2: // SourceCopy
+                    sourceRelativeOffset += readSignedVarInt(patch);
+                    if (sourceRelativeOffset < 0)
+                        throw new IOException("Invalid BPS SourceCopy!");
+                    copyRange(source, sourceRelativeOffset, length, target, outputOffset);
+                    sourceRelativeOffset += length;
+                    break;
+                default: { // TargetCopy, the ranges may overlap so we never copy more than the distance at once
+                    targetRelativeOffset += readSignedVarInt(patch);
+                    long distance = outputOffset - targetRelativeOffset;
+                    if (targetRelativeOffset < 0 || distance <= 0)
+                        throw new IOException("Invalid BPS TargetCopy!");
+                    ByteBuffer buffer = pool.acquire();
+                    if (distance < length && distance < buffer.capacity())
+                        repeat(target, buffer, targetRelativeOffset, (int) distance, length, outputOffset);
+                    else {
+                        long done = 0;
+                        while (done < length) {
+                            int n = (int) Math.min(Math.min(length - done, distance), buffer.capacity());
+                            buffer.clear().limit(n);
+                            readFully(target, buffer, targetRelativeOffset + done);
+                            buffer.flip();
+                            writeFully(target, buffer, outputOffset + done);
+                            done += n;
+                        }
+                    }
+                    targetRelativeOffset += length;
+                    pool.release(buffer);
+                    break;
+                }
+            }
+            outputOffset += length;
+        }
+        if (outputOffset != targetSize || checksum(target, targetSize, pool) != footer.getInt(end + 4))
+            throw new IOException("The patched ROM doesn't match the BPS target checksum!");
+    }
+
+    /**
+     * Write a TargetCopy shorter-ranged than its length: the output repeats the last distance bytes, so the pattern
+     * is read once and expanded inside the buffer instead of being read back from the target byte after byte
+     */
+    private static void repeat(FileChannel target, ByteBuffer buffer, long patternOffset, int distance, long length, long outputOffset) throws IOException {
+        buffer.clear().limit(distance);
+        readFully(target, buffer, patternOffset);
+        int size = buffer.capacity() / distance * distance; // Whole periods, so every chunk starts on the pattern
+        buffer.limit(size);
+        while (buffer.hasRemaining()) {
+            ByteBuffer pattern = buffer.duplicate();
+            pattern.position(0).limit(Math.min(buffer.position(), buffer.remaining()));
+            buffer.put(pattern);
+        }
+        for (long done = 0; done < length; ) {
+            int n = (int) Math.min(size, length - done);
+            buffer.position(0).limit(n);
+            writeFully(target, buffer, outputOffset + done);
+            done += n;
+        }
+    }
+
+    /**
+     * Recompute the logo and header checksums of the patched ROM, in place
+     */
+    private static void updateHeaderChecksum(FileChannel target) throws IOException {
+        if (target.size() < 0x200)
+            return;
+        ByteBuffer header = ByteBuffer.allocate(0x200).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(target, header, 0);
+        if (NitroHeader.updateHeaderChecksum(header)) {
+            header.clear();
+            writeFully(target, header, 0);
+        }
+    }
+
+    /**
+     * Copy a range between two channels, the target position is absolute and the target channel position is untouched
+     */
+    private static void copyRange(FileChannel source, long sourceOffset, long length, FileChannel target, long targetOffset) throws IOException {
+        if (length <= 0)
+            return;
+        if (sourceOffset < 0 || sourceOffset + length > source.size())
+            throw new IOException("Patch reads past the end of the source ROM!");
+        long done = 0;
+        while (done < length) {
+            long n = target.transferFrom(source.position(sourceOffset + done), targetOffset + done, length - done);
+            if (n <= 0)
+                throw new IOException("Unexpected end of the source ROM!");
+            done += n;
+        }
+    }
+
+    private static int checksum(FileChannel channel, long size, BufferPool pool) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = pool.acquire();
+        for (long position = 0; position < size; ) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), size - position));
+            readFully(channel, buffer, position);
+            position += buffer.position();
+            buffer.flip();
+            crc.update(buffer);
+        }
+        pool.release(buffer);
+        return (int) crc.getValue();
+    }
+
+    private static ByteBuffer fill(BufferPool pool, byte value, int size) throws IOException {
+        ByteBuffer data = size <= pool.getBufferSize() ? pool.acquire() : ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++)
+            data.put(value);
+        data.flip();
+        return data;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of file!");
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long p = position;
+        while (buffer.hasRemaining())
+            p += channel.write(buffer, p);
+    }
+
+    private static boolean startsWith(ByteBuffer patch, String magic) {
+        if (patch.remaining() < magic.length())
+            return false;
+        for (int i = 0; i < magic.length(); i++)
+            if (patch.get(patch.position() + i) != magic.charAt(i))
+                return false;
+        return true;
+    }
+
+    private static long readBigEndian(ByteBuffer patch, int bytes) {
+        long value = 0;
+        for (int i = 0; i < bytes; i++)
+            value = (value << 8) | (patch.get() & 0xff);
+        return value;
+    }
+
+    /**
+     * Read a BPS number (7 bits per byte, the last byte has the high bit set)
+     */
+    private static long readVarInt(ByteBuffer patch) {
+        long data = 0;
+        long shift = 1;
+        while (true) {
+            int x = patch.get() & 0xff;
+            data += (x & 0x7f) * shift;
+            if ((x & 0x80) != 0)
+                break;
+            shift <<= 7;
+            data += shift;
+        }
+        return data;
+    }
+
+    private static long readSignedVarInt(ByteBuffer patch) {
+        long data = readVarInt(patch);
+        return ((data & 1) != 0 ? -1 : 1) * (data >> 1);
+    }
+}
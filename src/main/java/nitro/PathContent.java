@@ -0,0 +1,82 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BinaryReader;
+import io.BinaryWriter;
+import io.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * This class represents a ROM section whose content is a file of the host file system
+ */
+class PathContent implements ROMContent {
+    private final Path path;
+
+    public PathContent(Path path) {
+        this.path = path;
+    }
+
+    @Override
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public int getSize() throws IOException {
+        return (int) Files.size(path);
+    }
+
+    @Override
+    public byte[] readAll() throws IOException {
+        if (Files.notExists(path))
+            throw new IOException(path.getFileName() + " file does not exist");
+        return Files.readAllBytes(path);
+    }
+
+    @Override
+    public void writeTo(BinaryWriter rom, BufferPool pool) throws IOException {
+        if (Files.notExists(path))
+            throw new IOException(path.getFileName() + " file does not exist");
+        BinaryReader reader = new BinaryReader(path);
+        reader.setStats(rom.getStats());
+        try {
+            if (pool == null)
+                rom.writeBytes(reader.readAll());
+            else {
+                ByteBuffer buffer = pool.acquire();
+                try {
+                    while (reader.read(buffer) >= 0) {
+                        buffer.flip();
+                        rom.writeBytes(buffer);
+                        buffer.clear();
+                    }
+                } finally {
+                    pool.release(buffer);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
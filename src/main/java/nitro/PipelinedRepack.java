@@ -0,0 +1,234 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BinaryWriter;
+import io.BufferPool;
+import io.IOStats;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class writes the files of a ROM while reader threads prefetch the following ones, so reading the sources
+ * overlaps with writing the ROM.
+ * The files are split in chunks of the pool buffer size, numbered in layout order. A reader first takes a buffer
+ * from the pool, then claims the next chunk and reads it; the writer writes the chunks in order and gives the
+ * buffers back. Since a chunk is claimed only once it has a buffer, the chunks in flight are never more than the
+ * buffers of the pool, and the one the writer waits for is always being read
+ */
+class PipelinedRepack {
+    private final List<NitroFile> files; // The files, in layout order
+    private final Path[] paths; // The path of every file, null if its content isn't a file of the host
+    private final long[] firstChunk; // The first chunk of every file, followed by the total number of chunks
+    private final BufferPool pool;
+    private final IOStats io; // The counters of the build
+    private final ByteBuffer[] slots; // The chunks read and not written yet, chunk c is in slot c % slots.length
+    private final AtomicLong nextChunk = new AtomicLong(); // The next chunk to be claimed by a reader
+    private volatile boolean stopped;
+    private IOException failure; // The first error of a reader
+
+    private PipelinedRepack(ROMSource source, List<NitroFile> files, BufferPool pool, IOStats io) throws IOException {
+        this.files = files;
+        this.pool = pool;
+        this.io = io;
+        this.paths = new Path[files.size()];
+        this.firstChunk = new long[files.size() + 1];
+        this.slots = new ByteBuffer[pool.getMaxBuffers()];
+        for (int i = 0; i < files.size(); i++) {
+            paths[i] = source.getFile(files.get(i)).getPath();
+            long chunks = paths[i] == null ? 0 : (files.get(i).getSize() + pool.getBufferSize() - 1) / pool.getBufferSize();
+            firstChunk[i + 1] = firstChunk[i] + chunks;
+        }
+    }
+
+    /**
+     * Write the files in the current position of the ROM, prefetching them with the given number of threads
+     *
+     * @param rom     BinaryWriter stream of the .nds ROM
+     * @param source  The source of the files content
+     * @param files   The files, in layout order
+     * @param stats   The statistics of the build, advanced for every file
+     * @param pool    The buffers used for prefetching, possibly shared with other operations
+     * @param threads Number of reader threads
+     * @throws IOException If a file can't be read or something goes wrong
+     */
+    static void repack(BinaryWriter rom, ROMSource source, List<NitroFile> files, ROMStats stats, BufferPool pool, int threads) throws IOException {
+        PipelinedRepack pipeline = new PipelinedRepack(source, files, pool, stats.getIOStats());
+        ExecutorService readers = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < threads; i++)
+                readers.execute(pipeline::read);
+            pipeline.write(rom, source, stats);
+        } finally {
+            pipeline.stopped = true;
+            readers.shutdownNow();
+            try {
+                readers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            pipeline.drain();
+        }
+    }
+
+    /**
+     * The writer side, run by the calling thread
+     */
+    private void write(BinaryWriter rom, ROMSource source, ROMStats stats) throws IOException {
+        for (int i = 0; i < files.size(); i++) {
+            NitroFile f = files.get(i);
+            if (f.getOffset() != rom.getPosition()) {
+                System.out.println("WARNING! " + f + " real offset differs from assumed one! Assumed: "
+                        + f.getOffset() + " Real: " + rom.getPosition());
+                f.setOffset(rom.getPosition());
+            }
+            if (paths[i] == null)
+                source.getFile(f).writeTo(rom, null); // the pool buffers belong to the readers
+            else
+                for (long c = firstChunk[i]; c < firstChunk[i + 1]; c++) {
+                    ByteBuffer buffer = take(c);
+                    try {
+                        rom.writeBytes(buffer);
+                    } finally {
+                        pool.release(buffer);
+                    }
+                }
+            // padding with 0xff for 4-byte alignment
+            ROM.writePadding(rom);
+            stats.advance(1, f.getSize());
+        }
+    }
+
+    /**
+     * The reader side, run by every reader thread until all the chunks are claimed
+     */
+    private void read() {
+        FileChannel channel = null;
+        int open = -1; // The file the channel belongs to
+        ByteBuffer buffer = null; // The buffer of the chunk being read, owned by this reader
+        try {
+            while (!stopped) {
+                buffer = pool.acquire();
+                long c = nextChunk.getAndIncrement();
+                if (c >= firstChunk[files.size()])
+                    break;
+                int i = getFile(c);
+                if (i != open) {
+                    if (channel != null)
+                        channel.close();
+                    channel = FileChannel.open(paths[i], StandardOpenOption.READ);
+                    open = i;
+                }
+                long position = (c - firstChunk[i]) * pool.getBufferSize();
+                buffer.limit((int) Math.min(pool.getBufferSize(), files.get(i).getSize() - position));
+                while (buffer.hasRemaining()) {
+                    int n = channel.read(buffer, position + buffer.position());
+                    if (n < 0)
+                        throw new IOException(paths[i] + " is shorter than expected, has it changed during the build?");
+                    io.countRead(n);
+                }
+                buffer.flip();
+                put(c, buffer);
+                buffer = null;
+            }
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            if (buffer != null)
+                pool.release(buffer);
+            if (channel != null)
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+        }
+    }
+
+    /**
+     * Find the file a chunk belongs to
+     */
+    private int getFile(long chunk) {
+        // the last file starting at or before the chunk, files without chunks start where the next one does
+        int low = 0;
+        int high = files.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (firstChunk[mid] <= chunk)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+
+    /**
+     * Hand a chunk to the writer, or give its buffer back to the pool if the writer has stopped or a reader failed
+     */
+    private synchronized void put(long chunk, ByteBuffer buffer) {
+        if (stopped || failure != null)
+            pool.release(buffer);
+        else
+            slots[(int) (chunk % slots.length)] = buffer;
+        notifyAll();
+    }
+
+    /**
+     * Give back to the pool the buffers of the chunks never written, once the readers are stopped
+     */
+    private synchronized void drain() {
+        for (int i = 0; i < slots.length; i++)
+            if (slots[i] != null) {
+                pool.release(slots[i]);
+                slots[i] = null;
+            }
+    }
+
+    private synchronized ByteBuffer take(long chunk) throws IOException {
+        int slot = (int) (chunk % slots.length);
+        while (slots[slot] == null) {
+            if (failure != null)
+                throw new IOException(failure.getMessage(), failure);
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the readers");
+            }
+        }
+        ByteBuffer buffer = slots[slot];
+        slots[slot] = null;
+        return buffer;
+    }
+
+    private synchronized void fail(IOException e) {
+        if (failure == null && !stopped)
+            failure = e;
+        notifyAll();
+    }
+}
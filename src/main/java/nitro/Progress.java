@@ -0,0 +1,85 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+/**
+ * This class is a snapshot of the progress of a phase of a ROM extraction or build
+ */
+public class Progress {
+    private final String operation;
+    private final String phase;
+    private final int filesDone;
+    private final int filesTotal;
+    private final long bytesDone;
+    private final long bytesTotal;
+    private final long nanos; // Time elapsed since the start of the phase
+
+    Progress(String operation, String phase, int filesDone, int filesTotal, long bytesDone, long bytesTotal, long nanos) {
+        this.operation = operation;
+        this.phase = phase;
+        this.filesDone = filesDone;
+        this.filesTotal = filesTotal;
+        this.bytesDone = bytesDone;
+        this.bytesTotal = bytesTotal;
+        this.nanos = nanos;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public int getFilesDone() {
+        return filesDone;
+    }
+
+    public int getFilesTotal() {
+        return filesTotal;
+    }
+
+    public long getBytesDone() {
+        return bytesDone;
+    }
+
+    public long getBytesTotal() {
+        return bytesTotal;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * Get the throughput of the phase so far
+     *
+     * @return Bytes per second, 0 if no time has elapsed yet
+     */
+    public double getBytesPerSecond() {
+        return nanos > 0 ? bytesDone / (nanos / 1e9) : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s: %d/%d files, %d/%d bytes, %.1f MiB/s", operation, phase, filesDone, filesTotal,
+                bytesDone, bytesTotal, getBytesPerSecond() / (1 << 20));
+    }
+}
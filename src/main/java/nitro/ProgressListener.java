@@ -0,0 +1,83 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import java.io.IOException;
+
+/**
+ * This interface receives the progress of a ROM extraction or build, and can cancel it.
+ * Progress is delivered at most every PROGRESS_INTERVAL milliseconds (plus once at the start and end of every phase),
+ * so the listener is cheap even for ROMs with tens of thousands of files.
+ * Every method is called by the thread running the operation
+ */
+public interface ProgressListener {
+    /**
+     * Minimum interval in milliseconds between two calls of progress within a phase
+     */
+    long PROGRESS_INTERVAL = 100;
+
+    /**
+     * Called when a phase starts
+     *
+     * @param progress The progress, with the totals of the phase
+     */
+    default void phaseStarted(Progress progress) {
+    }
+
+    /**
+     * Called periodically while a phase is running
+     *
+     * @param progress The progress so far
+     */
+    default void progress(Progress progress) {
+    }
+
+    /**
+     * Called when a phase ends
+     *
+     * @param progress The final progress of the phase
+     */
+    default void phaseEnded(Progress progress) {
+    }
+
+    /**
+     * Checked between files, returning true stops the operation with an InterruptedIOException
+     *
+     * @return True if the operation must be cancelled
+     */
+    default boolean isCancelled() {
+        return false;
+    }
+
+    /**
+     * Called by ROMWatcher after the ROM has been built or brought up to date with its directory
+     *
+     * @param result What was done
+     */
+    default void updated(String result) {
+    }
+
+    /**
+     * Called by ROMWatcher when the ROM couldn't be brought up to date, the next burst of changes tries again
+     *
+     * @param e The error
+     */
+    default void updateFailed(IOException e) {
+    }
+}
@@ -20,8 +20,8 @@ package nitro;
 
 import io.BinaryReader;
 import io.BinaryWriter;
+import io.BufferPool;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
@@ -37,104 +37,144 @@ public class ROM {
      *
      * @param romPath The path of the .nds file
      * @param dirPath The path where to extract files
+     * @return The statistics of every phase
      * @throws IOException If something goes wrong
      */
-    public static void extractROM(Path romPath, Path dirPath) throws IOException {
+    public static ROMStats extractROM(Path romPath, Path dirPath) throws IOException {
+        return extractROM(romPath, dirPath, new ExtractOptions());
+    }
+
+    /**
+     * Extract the entire ROM in the host file system, reporting the progress.
+     * A cancelled extraction leaves the files extracted so far, which are skipped by the next extraction
+     *
+     * @param romPath  The path of the .nds file
+     * @param dirPath  The path where to extract files
+     * @param listener The listener receiving the progress, or null
+     * @return The statistics of every phase
+     * @throws IOException If something goes wrong, InterruptedIOException if the listener cancelled the extraction
+     */
+    public static ROMStats extractROM(Path romPath, Path dirPath, ProgressListener listener) throws IOException {
+        ExtractOptions options = new ExtractOptions();
+        options.setProgressListener(listener);
+        return extractROM(romPath, dirPath, options);
+    }
+
+    /**
+     * Extract the entire ROM in the host file system with the given options.
+     * A cancelled extraction leaves the files extracted so far, which are skipped by the next extraction
+     *
+     * @param romPath The path of the .nds file
+     * @param dirPath The path where to extract files
+     * @param options The options of the extraction
+     * @return The statistics of every phase
+     * @throws IOException If something goes wrong, InterruptedIOException if the listener cancelled the extraction
+     */
+    public static ROMStats extractROM(Path romPath, Path dirPath, ExtractOptions options) throws IOException {
+        ROMStats stats = new ROMStats("extract", options.getProgressListener());
         if (Files.notExists(dirPath))
             Files.createDirectory(dirPath);
         if (!Files.isWritable(dirPath)) // If we can't read or write, we don't own the directory
             throw new IOException("Can't write in the directory! Check permissions!");
 
+        stats.begin("header");
         BinaryReader rom = new BinaryReader(romPath);
-        NitroDirectory root = new NitroDirectory("data", 0xf000, null);
-        NitroHeader header = NitroHeader.readHeader(rom);
-        Map<Integer, Integer> startOffset = new HashMap<>(); // The ROM's files start offset
-        Map<Integer, Integer> endOffset = new HashMap<>(); // The ROM's files end offsets
-
-        rom.seek(header.getFatOffset());
-
-        for (int i = 0; i < header.getFatSize() / 8; i++) {
-            startOffset.put(i, rom.readInt());
-            endOffset.put(i, rom.readInt());
-        }
-
-        // Load the directory structure
-        rom.seek(header.getFntOffset());
-        NitroDirectory.loadDir(root, rom, rom.getPosition(), startOffset, endOffset);
-
-        // Let's create the directory tree
-        if (Files.notExists(dirPath.resolve("data")))
-            Files.createDirectory(dirPath.resolve("data"));
-        NitroDirectory.unpackFileTree(rom, dirPath.resolve("data"), root);
-
-        // We also have to extract the header, the ARM binary files and the overlays
-        BinaryWriter w; // The writer for the various files
-
-        // The overlays
-        if (Files.notExists(dirPath.resolve("overlay")))
-            Files.createDirectory(dirPath.resolve("overlay"));
-        for (int i = 0; i < header.getArm9OverlaySize() / 0x20; i++) {
-            if (Files.notExists(dirPath.resolve("overlay").resolve(String.format("overlay_%04d.bin", i)))) {
-                w = new BinaryWriter(dirPath.resolve("overlay").resolve(String.format("overlay_%04d.bin", i)));
-                rom.seek(startOffset.get(i));
-                w.writeBytes(rom.readBuffer(endOffset.get(i) - startOffset.get(i)));
-                w.close();
+        rom.setStats(stats.getIOStats());
+        try {
+            NitroDirectory root = new NitroDirectory("data", 0xf000, null);
+            NitroHeader header = NitroHeader.readHeader(rom);
+            stats.end(0, 0x200);
+
+            stats.begin("fat");
+            int[] startOffset = new int[FAT.getFileCount(header)]; // The ROM's files start offset
+            int[] endOffset = new int[FAT.getFileCount(header)]; // The ROM's files end offsets
+            FAT.readFAT(rom, header, startOffset, endOffset);
+            stats.end(0, header.getFatSize());
+
+            // Load the directory structure
+            stats.begin("fnt");
+            rom.seek(header.getFntOffset());
+            NitroDirectory.loadDir(root, rom, rom.getPosition(), startOffset, endOffset);
+            stats.end(0, header.getFntSize());
+
+            // The overlay tables, the overlays are located through the file IDs of their records
+            stats.begin("overlays");
+            List<NitroOverlay> overlays = new ArrayList<>();
+            overlays.addAll(NitroOverlay.readOverlayTable(rom, header.getArm9OverlayOffset(), header.getArm9OverlaySize(), startOffset, endOffset));
+            overlays.addAll(NitroOverlay.readOverlayTable(rom, header.getArm7OverlayOffset(), header.getArm7OverlaySize(), startOffset, endOffset));
+            for (NitroOverlay o : overlays)
+                if (o.getFileID() < 0 || o.getFileID() >= startOffset.length)
+                    throw new IOException(o + " has an invalid file ID!");
+            stats.end(0, header.getArm9OverlaySize() + header.getArm7OverlaySize());
+
+            // Extract everything in a single forward sweep of the ROM
+            stats.begin("plan");
+            ExtractionPlan plan = new ExtractionPlan(header, root, overlays);
+            stats.end(0, 0);
+
+            if (options.isSelective())
+                plan.select(new SectionFilter(options.getIncludes(), options.getExcludes(), options.getFileIDs()));
+            Set<String> binaries = new HashSet<>();
+            if (options.isDecompressBinaries()) {
+                for (ROMSection s : plan.getSections())
+                    binaries.add(s.getName());
+                binaries.retainAll(CompressedBinaries.getNames(overlays));
+                plan.exclude(binaries);
             }
-        }
-        int arm7OvSize = (header.getArm7OverlaySize() / 0x20);
-        for (int i = 0; i < arm7OvSize; i++) {
-            if (Files.notExists(dirPath.resolve("overlay").resolve(String.format("overlay_%04d.bin", i + arm7OvSize)))) {
-                w = new BinaryWriter(dirPath.resolve("overlay").resolve(String.format("overlay_%04d.bin", i + arm7OvSize)));
-                rom.seek(startOffset.get(i + arm7OvSize));
-                w.writeBytes(rom.readBuffer(endOffset.get(i + arm7OvSize) - startOffset.get(i + arm7OvSize)));
-                w.close();
+            List<ROMSection> archives = new ArrayList<>();
+            for (ROMSection s : plan.getSections())
+                if (s.getName().startsWith("data/"))
+                    archives.add(s);
+            List<ROMSection> files = options.isDecompressFiles() ? plan.takeFiles() : new ArrayList<>();
+
+            stats.begin("sections", plan.getSections().size(), plan.getBytes());
+            if (options.getAsyncRequests() > 0) {
+                BufferPool pool = options.getBufferPool();
+                if (pool == null) {
+                    if (options.getBufferSize() <= 0)
+                        throw new IOException("The buffer size must be positive!");
+                    pool = new BufferPool(options.getBufferSize(), options.getAsyncRequests());
+                }
+                plan.extract(romPath, dirPath, stats, options.getAsyncRequests(), pool);
+            }
+            else
+                plan.extract(rom, dirPath, stats);
+            stats.end(plan.getSections().size(), plan.getBytes());
+
+            if (options.isDecompressBinaries()) {
+                stats.begin("decompress");
+                List<Integer> sizes = CompressedBinaries.extract(rom, dirPath, header, overlays, binaries, stats);
+                stats.end(sizes.size(), sizes.stream().mapToLong(Integer::longValue).sum());
             }
-        }
-
-        // The header and the two arms
-        if (Files.notExists(dirPath.resolve("header.bin"))) {
-            rom.seek(0);
-            w = new BinaryWriter(dirPath.resolve("header.bin"));
-            w.writeBytes(rom.readBuffer(0x200));
-            w.close();
-        }
-
-        if (Files.notExists(dirPath.resolve("arm9.bin"))) {
-            rom.seek(header.getArm9RomOffset());
-            w = new BinaryWriter(dirPath.resolve("arm9.bin"));
-            w.writeBytes(rom.readBuffer(header.getArm9Size()));
-            w.close();
-        }
-
-        if (Files.notExists(dirPath.resolve("arm9ovltable.bin"))) {
-            rom.seek(header.getArm9OverlayOffset());
-            w = new BinaryWriter(dirPath.resolve("arm9ovltable.bin"));
-            w.writeBytes(rom.readBuffer(header.getArm9OverlaySize()));
-            w.close();
-        }
-
-        if (Files.notExists(dirPath.resolve("arm7.bin"))) {
-            rom.seek(header.getArm7RomOffset());
-            w = new BinaryWriter(dirPath.resolve("arm7.bin"));
-            w.writeBytes(rom.readBuffer(header.getArm7Size()));
-            w.close();
-        }
 
-        if (Files.notExists(dirPath.resolve("arm7ovltable.bin"))) {
-            rom.seek(header.getArm7OverlayOffset());
-            w = new BinaryWriter(dirPath.resolve("arm7ovltable.bin"));
-            w.writeBytes(rom.readBuffer(header.getArm7OverlaySize()));
-            w.close();
-        }
+            if (options.isDecompressFiles()) {
+                long bytes = 0;
+                for (ROMSection s : files)
+                    bytes += s.getSize();
+                stats.begin("lz", files.size(), bytes);
+                CompressedFiles.extract(rom, dirPath, files, stats);
+                stats.end(files.size(), bytes);
+            }
 
-        if (Files.notExists(dirPath.resolve("banner.bin"))) {
-            rom.seek(header.getIconOffset());
-            w = new BinaryWriter(dirPath.resolve("banner.bin"));
-            w.writeBytes(rom.readBuffer(0x840));
-            w.close();
+            if (options.isExpandArchives()) {
+                stats.begin("narc");
+                List<Long> sizes;
+                try (MappedROM mapped = MappedROM.open(romPath, stats.getIOStats())) {
+                    sizes = NARC.expand(mapped, dirPath, archives, stats.getIOStats());
+                }
+                int expanded = 0;
+                long bytes = 0;
+                for (long size : sizes)
+                    if (size >= 0) {
+                        expanded++;
+                        bytes += size;
+                    }
+                stats.end(expanded, bytes);
+            }
+        } finally {
+            rom.close();
         }
-
-        rom.close();
+        return stats;
     }
 
     /**
@@ -142,9 +182,40 @@ public class ROM {
      *
      * @param dirPath The path of the directory containing the files
      * @param romPath The path of the .nds file
+     * @return The statistics of every phase
      * @throws IOException If something goes wrong
      */
-    public static void buildROM(Path dirPath, Path romPath) throws IOException {
+    public static ROMStats buildROM(Path dirPath, Path romPath) throws IOException {
+        return buildROM(dirPath, romPath, new BuildOptions());
+    }
+
+    /**
+     * Build the entire ROM from the given directory, reporting the progress.
+     * A failed or cancelled build deletes the partially written ROM
+     *
+     * @param dirPath  The path of the directory containing the files
+     * @param romPath  The path of the .nds file
+     * @param listener The listener receiving the progress, or null
+     * @return The statistics of every phase
+     * @throws IOException If something goes wrong, InterruptedIOException if the listener cancelled the build
+     */
+    public static ROMStats buildROM(Path dirPath, Path romPath, ProgressListener listener) throws IOException {
+        BuildOptions options = new BuildOptions();
+        options.setProgressListener(listener);
+        return buildROM(dirPath, romPath, options);
+    }
+
+    /**
+     * Build the entire ROM from the given directory with the given options.
+     * A failed or cancelled build deletes the partially written ROM
+     *
+     * @param dirPath The path of the directory containing the files
+     * @param romPath The path of the .nds file
+     * @param options The options of the build
+     * @return The statistics of every phase
+     * @throws IOException If something goes wrong, InterruptedIOException if the listener cancelled the build
+     */
+    public static ROMStats buildROM(Path dirPath, Path romPath, BuildOptions options) throws IOException {
         // General check of the files
         if (Files.notExists(dirPath.resolve("data")))
             throw new IOException("data subfolder not found! Please check the given directory!");
@@ -163,128 +234,244 @@ public class ROM {
         if (Files.notExists(dirPath.resolve("banner.bin")))
             throw new IOException("banner file not found! Please check the given directory!");
 
+        return buildROM(new DirectorySource(dirPath), romPath, options);
+    }
+
+    /**
+     * Build the entire ROM from a stack of directories, as if they were merged: the files of the upper layers shadow
+     * the ones of the lower layers, and whiteouts (.wh.NAME) hide the lower files or directories named NAME.
+     * Every file is read from the layer supplying it, so nothing is copied
+     *
+     * @param layers  The directories, the bottom one (usually an extracted ROM) first
+     * @param romPath The path of the .nds file
+     * @param options The options of the build
+     * @return The statistics of every phase
+     * @throws IOException If something goes wrong, InterruptedIOException if the listener cancelled the build
+     */
+    public static ROMStats buildROM(List<Path> layers, Path romPath, BuildOptions options) throws IOException {
+        if (layers.isEmpty())
+            throw new IOException("No directory to build the ROM from!");
+        LayeredSource source = new LayeredSource(layers);
+        // General check of the files, each one may come from any layer
+        for (String name : new String[]{"data", "overlay", "arm9.bin", "arm9ovltable.bin", "arm7.bin", "arm7ovltable.bin", "header.bin", "banner.bin"})
+            source.resolve(name);
+        return buildROM(source, romPath, options);
+    }
+
+    /**
+     * Build the entire ROM from the given source
+     *
+     * @param source  The source of the header, binaries, overlays and files
+     * @param romPath The path of the .nds file
+     * @param options The options of the build
+     * @return The statistics of every phase
+     * @throws IOException If something goes wrong
+     */
+    static ROMStats buildROM(ROMSource source, Path romPath, BuildOptions options) throws IOException {
+        ROMStats stats = new ROMStats("build", options.getProgressListener());
+        if (options.getReadAheadThreads() < 0)
+            throw new IOException("The number of read-ahead threads can't be negative!");
+        BufferPool pool = options.getBufferPool(); // Without a pool or a budget inputs are read whole
+        if (pool == null && options.getBufferBudget() > 0)
+            pool = new BufferPool(options.getBufferSize(), (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                    options.getBufferBudget() / options.getBufferSize())));
+        else if (pool == null && options.getReadAheadThreads() > 0)
+            pool = new BufferPool(options.getBufferSize(), BuildOptions.DEFAULT_READ_AHEAD_BUFFERS);
         BinaryWriter rom = new BinaryWriter(romPath); // The stream for the .nds file
-        BinaryReader reader; // The stream for reading files
+        rom.setStats(stats.getIOStats()); // the inputs count their reads in the same counters
+        boolean built = false;
+        try {
+            writeROM(source, rom, stats, pool, options);
+            built = true;
+        } finally {
+            try {
+                rom.close();
+            } finally {
+                if (!built)
+                    Files.deleteIfExists(romPath);
+            }
+        }
+        return stats;
+    }
 
+    /**
+     * Write the ROM sections in order, then go back to write the header
+     *
+     * @param source  The source of the header, binaries, overlays and files
+     * @param rom     BinaryWriter stream of the .nds ROM
+     * @param stats   The statistics of the build
+     * @param pool    The buffers to copy the inputs through, or null
+     * @param options The options of the build
+     * @throws IOException If something goes wrong
+     */
+    private static void writeROM(ROMSource source, BinaryWriter rom, ROMStats stats, BufferPool pool, BuildOptions options) throws IOException {
         // Loading the actual data and the overlay and pre-calculate offsets
-        File[] overlays = dirPath.resolve("overlay").toFile().listFiles();
-        assert overlays != null;
-        Arrays.sort(overlays);
+        stats.begin("scan");
+        List<ROMContent> overlays = source.getOverlays();
+        List<NitroOverlay> arm9Overlays = source.getArm9Overlays();
+        List<NitroOverlay> arm7Overlays = source.getArm7Overlays();
+        if (overlays.size() != arm9Overlays.size() + arm7Overlays.size())
+            throw new IOException("The overlay tables describe " + (arm9Overlays.size() + arm7Overlays.size())
+                    + " overlays, but there are " + overlays.size() + " overlay files!");
+        NitroDirectory root = source.getRoot();
+        NitroHeader header = source.getHeader(stats.getIOStats());
+        stats.end(0, 0);
+
+        // Compressing the binaries changes their size, so it comes before the sizing
+        stats.begin("compress");
+        ROMContent arm9 = CompressedBinaries.prepareArm9(source.getArm9(), header.getArm9RamAddress(), options.isCompressBinaries());
+        List<NitroOverlay> records = new ArrayList<>(arm9Overlays);
+        records.addAll(arm7Overlays);
+        overlays = CompressedBinaries.prepareOverlays(overlays, records, options.isCompressBinaries());
+        Map<String, Integer> marks = source.getMarkedFiles();
+        if (!marks.isEmpty()) // The game expects the marked files compressed, so they always are
+            source = new TransformedSource(source, root, CompressedFiles.compress(source, root, marks));
+        stats.end(0, 0);
+
+        stats.begin("sizing");
 
-        NitroDirectory root = new NitroDirectory("data", 0xf000, null);
         int fimgOffset = 0;
         fimgOffset += 0x4000;                                                   // header size
-        fimgOffset += (int) Files.size(dirPath.resolve("arm9.bin"));            // arm9 padded size
+        fimgOffset += arm9.getSize();                                           // arm9 padded size
         fimgOffset += addPadding(fimgOffset);
-        fimgOffset += (int) Files.size(dirPath.resolve("arm9ovltable.bin"));    // arm9 overlay table padded size
+        fimgOffset += arm9Overlays.size() * NitroOverlay.ENTRY_SIZE;            // arm9 overlay table padded size
         fimgOffset += addPadding(fimgOffset);
-        for (File overlay : overlays) {                                         // arm9 padded overlays
-            fimgOffset += (int) overlay.length();
+        for (ROMContent overlay : overlays) {                                   // arm9 padded overlays
+            fimgOffset += overlay.getSize();
             fimgOffset += addPadding(fimgOffset);
         }
-        fimgOffset += (int) Files.size(dirPath.resolve("arm7.bin"));            // arm7 padded size
+        fimgOffset += source.getArm7().getSize();                               // arm7 padded size
         fimgOffset += addPadding(fimgOffset);
-        fimgOffset += (int) Files.size(dirPath.resolve("arm7ovltable.bin"));    // arm7 overlay table padded size
+        fimgOffset += arm7Overlays.size() * NitroOverlay.ENTRY_SIZE;            // arm7 overlay table padded size
         fimgOffset += addPadding(fimgOffset);
-        fimgOffset += FNT.calculateFNTSize(dirPath.resolve("data").toFile());   // File Name Table padded size
+        fimgOffset += FNT.calculateFNTSize(root);                               // File Name Table padded size
         fimgOffset += addPadding(fimgOffset);
-        fimgOffset += FAT.calculateFATSize(dirPath.resolve("data").toFile());   // File Allocation Table padded size
-        fimgOffset += (overlays.length * 8);
+        fimgOffset += FAT.calculateFATSize(root);                               // File Allocation Table padded size
+        fimgOffset += (overlays.size() * 8);
         fimgOffset += addPadding(fimgOffset);
         fimgOffset += 0x840;                                                    // banner size
 
-        // Recursively load directories and files, getting the root nitro directory
-        NitroDirectory.loadDir(dirPath.resolve("data").toFile(),
-                root,
-                0xf000,
-                Objects.requireNonNull(dirPath.resolve("overlay").toFile().listFiles()).length,
-                fimgOffset
-        );
-
-        // Reading the header template, but skipping the section for now as we have to adjust some values
-        reader = new BinaryReader(dirPath.resolve("header.bin"));
-        NitroHeader header = NitroHeader.readHeader(reader);
+        // Assign the file IDs (overlays come first) and the offsets of the files
+        NitroDirectory.layout(root, overlays.size(), fimgOffset);
+        stats.end(0, 0);
+
+        // The header template, we skip the section for now as we have to adjust some values
+        stats.begin("binaries");
         ByteBuffer h = ByteBuffer.allocate(0x4000);
         rom.writeBytes(h.array());
 
         // The ARM9
-        reader = new BinaryReader(dirPath.resolve("arm9.bin"));
+        ROMContent content = arm9;
         header.setArm9RomOffset(rom.getPosition());
-        header.setArm9Size(reader.getSize());
-        rom.writeBytes(reader.readAll());
+        header.setArm9Size(content.getSize());
+        content.writeTo(rom, pool);
         writePadding(rom);
 
-        // The ARM9 overlay table
-        reader = new BinaryReader(dirPath.resolve("arm9ovltable.bin"));
+        // The ARM9 overlay table, regenerated with the file IDs the overlays get in the FAT
+        for (int i = 0; i < arm9Overlays.size(); i++) {
+            arm9Overlays.get(i).setFileID(i);
+            arm9Overlays.get(i).setCompressedSize(overlays.get(i).getSize());
+        }
         header.setArm9OverlayOffset(rom.getPosition());
-        header.setArm9OverlaySize(reader.getSize());
-        rom.writeBytes(reader.readAll());
+        header.setArm9OverlaySize(arm9Overlays.size() * NitroOverlay.ENTRY_SIZE);
+        NitroOverlay.writeOverlayTable(rom, arm9Overlays);
         writePadding(rom);
 
         // This will be needed for the FAT
         List<Integer> overlayStartOffsets = new ArrayList<>();
         List<Integer> overlayEndOffsets = new ArrayList<>();
 
+        stats.end(2, rom.getPosition());
+
         // The ARM9 overlays
-        for (int i = 0; i < header.getArm9OverlaySize() / 0x20; i++) {
-            reader = new BinaryReader(overlays[i].toPath());
+        stats.begin("overlays");
+        int start = rom.getPosition();
+        for (int i = 0; i < arm9Overlays.size(); i++) {
             overlayStartOffsets.add(rom.getPosition());
-            overlayEndOffsets.add(rom.getPosition() + reader.getSize());
-            rom.writeBytes(reader.readAll());
+            overlays.get(i).writeTo(rom, pool);
+            overlayEndOffsets.add(rom.getPosition());
             writePadding(rom);
+            stats.advance(1, overlayEndOffsets.get(i) - overlayStartOffsets.get(i));
         }
+        stats.end(arm9Overlays.size(), rom.getPosition() - start);
 
         // The ARM7
-        reader = new BinaryReader(dirPath.resolve("arm7.bin"));
+        stats.begin("binaries");
+        start = rom.getPosition();
+        content = source.getArm7();
         header.setArm7RomOffset(rom.getPosition());
-        header.setArm7Size(reader.getSize());
-        rom.writeBytes(reader.readAll());
+        header.setArm7Size(content.getSize());
+        content.writeTo(rom, pool);
         writePadding(rom);
 
-        // The ARM7 overlay table
-        reader = new BinaryReader(dirPath.resolve("arm7ovltable.bin"));
+        // The ARM7 overlay table, its overlays follow the ARM9 ones in the FAT
+        for (int i = 0; i < arm7Overlays.size(); i++) {
+            arm7Overlays.get(i).setFileID(arm9Overlays.size() + i);
+            arm7Overlays.get(i).setCompressedSize(overlays.get(arm9Overlays.size() + i).getSize());
+        }
         header.setArm7OverlayOffset(rom.getPosition());
-        header.setArm7OverlaySize(reader.getSize());
-        rom.writeBytes(reader.readAll());
+        header.setArm7OverlaySize(arm7Overlays.size() * NitroOverlay.ENTRY_SIZE);
+        NitroOverlay.writeOverlayTable(rom, arm7Overlays);
         writePadding(rom);
 
+        stats.end(2, rom.getPosition() - start);
+
         // The ARM7 overlays
-        for (int i = header.getArm9OverlaySize() / 0x20; i < header.getArm9OverlaySize() / 0x20 + header.getArm7OverlaySize() / 0x20; i++) {
-            reader = new BinaryReader(overlays[i].toPath());
+        stats.begin("overlays");
+        start = rom.getPosition();
+        for (int i = arm9Overlays.size(); i < overlays.size(); i++) {
             overlayStartOffsets.add(rom.getPosition());
-            overlayEndOffsets.add(rom.getPosition() + reader.getSize());
-            rom.writeBytes(reader.readAll());
+            overlays.get(i).writeTo(rom, pool);
+            overlayEndOffsets.add(rom.getPosition());
             writePadding(rom);
+            stats.advance(1, overlayEndOffsets.get(i) - overlayStartOffsets.get(i));
         }
+        stats.end(arm7Overlays.size(), rom.getPosition() - start);
 
         // The File Name Table
+        stats.begin("fnt");
         header.setFntOffset(rom.getPosition());
         FNT.writeFNT(rom, root);
         header.setFntSize(rom.getPosition() - header.getFntOffset());
         writePadding(rom);
 
+        stats.end(0, header.getFntSize());
+
         // The File Allocation Table
+        stats.begin("fat");
         header.setFatOffset(rom.getPosition());
         FAT.writeFAT(rom, root, overlayStartOffsets, overlayEndOffsets);
         header.setFatSize(rom.getPosition() - header.getFatOffset());
         writePadding(rom);
 
+        stats.end(0, header.getFatSize());
+
         // The banner
+        stats.begin("binaries");
         header.setIconOffset(rom.getPosition());
-        reader = new BinaryReader(dirPath.resolve("banner.bin"));
-        rom.writeBytes(reader.readAll());
+        source.getBanner().writeTo(rom, pool);
         writePadding(rom);
+        stats.end(1, rom.getPosition() - header.getIconOffset());
 
         // The actual files
-        NitroDirectory.repackFileTree(rom, dirPath.resolve("data"), root);
+        List<NitroFile> files = NitroDirectory.listFiles(root);
+        long bytes = 0;
+        for (NitroFile f : files)
+            bytes += f.getSize();
+        stats.begin("files", files.size(), bytes);
+        start = rom.getPosition();
+        if (options.getReadAheadThreads() > 0)
+            PipelinedRepack.repack(rom, source, files, stats, pool, options.getReadAheadThreads());
+        else
+            NitroDirectory.repackFileTree(rom, source, root, stats, pool);
+        stats.end(files.size(), rom.getPosition() - start);
 
         // Write updated header
+        stats.begin("checksum");
         rom.seek(0);
         NitroHeader.updateHeaderChecksum(header);
         NitroHeader.writeHeader(header, rom);
-
-        rom.close();
-        reader.close();
+        stats.end(0, 0x200);
     }
 
     /**
@@ -306,7 +493,7 @@ public class ROM {
      * @param offset Current offset
      * @return 4-byte aligned offset
      */
-    private static int addPadding(int offset) {
+    static int addPadding(int offset) {
         int diff = offset;
         if (diff % 4 != 0)
             diff += 4 - (diff % 4);
@@ -0,0 +1,64 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BinaryWriter;
+import io.BufferPool;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * This interface represents the content of a section of a ROM being built (a binary, a table, an overlay or a file)
+ */
+interface ROMContent {
+    /**
+     * Get the size of the content
+     *
+     * @return Size in bytes
+     * @throws IOException If the size can't be determined
+     */
+    int getSize() throws IOException;
+
+    /**
+     * Write the content in the current position of the ROM
+     *
+     * @param rom  BinaryWriter stream of the .nds ROM
+     * @param pool The buffers to copy the content through, or null to copy it in one go
+     * @throws IOException If something goes wrong
+     */
+    void writeTo(BinaryWriter rom, BufferPool pool) throws IOException;
+
+    /**
+     * Read the whole content in memory, used when it has to be transformed (e.g. compressed) before being written
+     *
+     * @return The content
+     * @throws IOException If something goes wrong
+     */
+    byte[] readAll() throws IOException;
+
+    /**
+     * Get the file of the host file system holding the content, so that it can be read ahead by other threads
+     *
+     * @return The path, or null if the content isn't stored in a file
+     */
+    default Path getPath() {
+        return null;
+    }
+}
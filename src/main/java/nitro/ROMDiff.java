@@ -0,0 +1,201 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * This class compares two ROMs file by file, without extracting them.
+ * Both ROMs are mapped in memory, and files are matched by their Nitro path
+ */
+public class ROMDiff {
+    private static final int CHUNK_SIZE = 1 << 20; // Files bigger than this are compared in parallel chunks
+
+    /**
+     * Compare two ROMs
+     *
+     * @param oldRomPath The path of the first .nds file
+     * @param newRomPath The path of the second .nds file
+     * @return The differences between the two ROMs
+     * @throws IOException If something goes wrong
+     */
+    public static DiffReport diffROM(Path oldRomPath, Path newRomPath) throws IOException {
+        DiffReport report = new DiffReport();
+        try (MappedROM a = MappedROM.open(oldRomPath); MappedROM b = MappedROM.open(newRomPath)) {
+            diffHeader(a, b, report);
+            diffBinaries(a, b, report);
+            diffOverlays(a, b, "ARM9", a.getArm9Overlays(), b.getArm9Overlays(), report);
+            diffOverlays(a, b, "ARM7", a.getArm7Overlays(), b.getArm7Overlays(), report);
+            diffFiles(a, b, report);
+        }
+        return report;
+    }
+
+    /**
+     * Compare the headers field by field
+     */
+    private static void diffHeader(MappedROM a, MappedROM b, DiffReport report) {
+        ByteBuffer ha = a.slice(0, 0x200);
+        ByteBuffer hb = b.slice(0, 0x200);
+        for (int i = 0; i < NitroHeader.FIELD_NAMES.length; i++) {
+            int offset = NitroHeader.FIELD_OFFSETS[i];
+            int size = NitroHeader.FIELD_OFFSETS[i + 1] - offset;
+            ByteBuffer fa = slice(ha, offset, size);
+            ByteBuffer fb = slice(hb, offset, size);
+            if (!fa.equals(fb))
+                report.getHeaderChanges().add(NitroHeader.FIELD_NAMES[i] + ": " + format(fa) + " -> " + format(fb));
+        }
+    }
+
+    /**
+     * Compare the ARM binaries and the banner
+     */
+    private static void diffBinaries(MappedROM a, MappedROM b, DiffReport report) {
+        NitroHeader ha = a.getHeader();
+        NitroHeader hb = b.getHeader();
+        if (!sectionEquals(a, ha.getArm9RomOffset(), ha.getArm9Size(), b, hb.getArm9RomOffset(), hb.getArm9Size()))
+            report.getBinaryChanges().add("arm9.bin");
+        if (!sectionEquals(a, ha.getArm7RomOffset(), ha.getArm7Size(), b, hb.getArm7RomOffset(), hb.getArm7Size()))
+            report.getBinaryChanges().add("arm7.bin");
+        if (!sectionEquals(a, ha.getIconOffset(), 0x840, b, hb.getIconOffset(), 0x840))
+            report.getBinaryChanges().add("banner.bin");
+    }
+
+    /**
+     * Compare two overlay tables entry by entry, together with the overlays content
+     */
+    private static void diffOverlays(MappedROM a, MappedROM b, String cpu, List<NitroOverlay> oa, List<NitroOverlay> ob, DiffReport report) {
+        for (int i = 0; i < Math.max(oa.size(), ob.size()); i++) {
+            if (i >= oa.size()) {
+                report.getOverlayChanges().add(cpu + " overlay " + i + " added");
+            } else if (i >= ob.size()) {
+                report.getOverlayChanges().add(cpu + " overlay " + i + " removed");
+            } else {
+                NitroOverlay x = oa.get(i);
+                NitroOverlay y = ob.get(i);
+                if (x.getId() != y.getId() || x.getRamAddress() != y.getRamAddress() || x.getRamSize() != y.getRamSize()
+                        || x.getBssSize() != y.getBssSize() || x.getStInitStart() != y.getStInitStart()
+                        || x.getStInitEnd() != y.getStInitEnd() || x.getFileID() != y.getFileID() || x.getReserved() != y.getReserved())
+                    report.getOverlayChanges().add(cpu + " overlay " + i + " table entry changed");
+                if (!sectionEquals(a, x.getStartOffset(), x.getEndOffset() - x.getStartOffset(),
+                        b, y.getStartOffset(), y.getEndOffset() - y.getStartOffset()))
+                    report.getOverlayChanges().add(cpu + " overlay " + i + " content changed");
+            }
+        }
+    }
+
+    /**
+     * Match the files by path and compare them in parallel, then pair removed and added files with the same content
+     */
+    private static void diffFiles(MappedROM a, MappedROM b, DiffReport report) throws IOException {
+        Map<String, NitroFile> fa = new LinkedHashMap<>();
+        for (NitroFile f : NitroDirectory.listFiles(a.getRoot()))
+            fa.put(f.getPath(), f);
+        Map<String, NitroFile> fb = new LinkedHashMap<>();
+        for (NitroFile f : NitroDirectory.listFiles(b.getRoot()))
+            fb.put(f.getPath(), f);
+
+        List<String> common = fa.keySet().stream().filter(fb::containsKey).collect(Collectors.toList());
+        report.getModified().addAll(common.parallelStream()
+                .filter(p -> !fileEquals(a, fa.get(p), b, fb.get(p)))
+                .collect(Collectors.toList()));
+
+        List<NitroFile> removed = fa.values().stream().filter(f -> !fb.containsKey(f.getPath())).collect(Collectors.toList());
+        List<NitroFile> added = fb.values().stream().filter(f -> !fa.containsKey(f.getPath())).collect(Collectors.toList());
+
+        // A removed file and an added file with the same content are a move, hashes are only needed when the sizes match
+        Map<Integer, List<NitroFile>> removedBySize = removed.stream().collect(Collectors.groupingBy(NitroFile::getSize));
+        Map<NitroFile, Long> hashes = new HashMap<>();
+        Set<NitroFile> matched = new HashSet<>();
+        for (NitroFile n : added) {
+            NitroFile match = null;
+            for (NitroFile o : removedBySize.getOrDefault(n.getSize(), Collections.emptyList())) {
+                if (matched.contains(o))
+                    continue;
+                long ho = hashes.computeIfAbsent(o, f -> a.crc32(f.getOffset(), f.getSize()));
+                long hn = hashes.computeIfAbsent(n, f -> b.crc32(f.getOffset(), f.getSize()));
+                if (ho == hn && fileEquals(a, o, b, n)) {
+                    match = o;
+                    break;
+                }
+            }
+            if (match != null) {
+                matched.add(match);
+                report.addMoved(match.getPath(), n.getPath());
+            } else
+                report.getAdded().add(n.getPath());
+        }
+        for (NitroFile o : removed)
+            if (!matched.contains(o))
+                report.getRemoved().add(o.getPath());
+    }
+
+    private static boolean fileEquals(MappedROM a, NitroFile fa, MappedROM b, NitroFile fb) {
+        return sectionEquals(a, fa.getOffset(), fa.getSize(), b, fb.getOffset(), fb.getSize());
+    }
+
+    /**
+     * Compare two sections of two ROMs, splitting big sections in chunks compared in parallel
+     *
+     * @return True if the two sections have the same size and content
+     */
+    private static boolean sectionEquals(MappedROM a, int offsetA, int sizeA, MappedROM b, int offsetB, int sizeB) {
+        if (sizeA != sizeB)
+            return false;
+        if (!a.contains(offsetA, sizeA) || !b.contains(offsetB, sizeB))
+            return a.contains(offsetA, sizeA) == b.contains(offsetB, sizeB);
+        if (sizeA <= CHUNK_SIZE)
+            return a.slice(offsetA, sizeA).equals(b.slice(offsetB, sizeB));
+        return IntStream.range(0, (sizeA + CHUNK_SIZE - 1) / CHUNK_SIZE).parallel().allMatch(i -> {
+            int length = Math.min(CHUNK_SIZE, sizeA - i * CHUNK_SIZE);
+            return a.slice(offsetA + i * CHUNK_SIZE, length).equals(b.slice(offsetB + i * CHUNK_SIZE, length));
+        });
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int size) {
+        ByteBuffer d = buffer.duplicate();
+        d.limit(offset + size);
+        d.position(offset);
+        return d.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Format a header field for printing
+     */
+    private static String format(ByteBuffer field) {
+        switch (field.remaining()) {
+            case 1:
+                return String.format("0x%02x", field.get(0));
+            case 2:
+                return String.format("0x%04x", field.getShort(0) & 0xffff);
+            case 4:
+                return String.format("0x%08x", field.getInt(0));
+            case 8:
+                return String.format("0x%016x", field.getLong(0));
+            default:
+                return field.remaining() + " bytes";
+        }
+    }
+}
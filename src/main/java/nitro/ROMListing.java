@@ -0,0 +1,152 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class lists the sections of a ROM (header, binaries, tables, overlays and the files of the Nitro file system)
+ * with their file IDs, offsets and sizes, decoding only the header, the FAT, the FNT and the overlay tables.
+ * The content is read only to hash it, through a mapping of the ROM
+ */
+public class ROMListing {
+    /**
+     * A section of the listing
+     */
+    public static class Entry {
+        private final String path;
+        private final int fileID;
+        private final int offset;
+        private final int size;
+        private String hash; // Null unless requested
+
+        private Entry(ROMSection section) {
+            this.path = section.getName();
+            this.fileID = section.getFileID();
+            this.offset = section.getOffset();
+            this.size = section.getSize();
+        }
+
+        /**
+         * Get the path of the section, relative to the directory it would be extracted in
+         *
+         * @return The path, files are named data/...
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Get the FAT ID of the section
+         *
+         * @return The ID, -1 for the sections which aren't in the FAT
+         */
+        public int getFileID() {
+            return fileID;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * Format the entry as a JSON object
+         *
+         * @return The entry on a single line
+         */
+        public String toJSON() {
+            StringBuilder json = new StringBuilder("{\"path\":\"");
+            for (char c : path.toCharArray())
+                if (c == '"' || c == '\\')
+                    json.append('\\').append(c);
+                else if (c < 0x20)
+                    json.append(String.format("\\u%04x", (int) c));
+                else
+                    json.append(c);
+            json.append("\",\"id\":").append(fileID).append(",\"offset\":").append(offset).append(",\"size\":").append(size);
+            if (hash != null)
+                json.append(",\"hash\":\"").append(hash).append('"');
+            return json.append('}').toString();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%5s  0x%08x  %10d  %s%s", fileID < 0 ? "-" : Integer.toString(fileID), offset, size, path,
+                    hash == null ? "" : "  " + hash);
+        }
+    }
+
+    /**
+     * List the sections of a ROM
+     *
+     * @param romPath The path of the .nds file
+     * @param hash    The hash of the content to add: crc32 or a MessageDigest algorithm (e.g. SHA-1), null for none
+     * @return The header, the binaries and the tables, then the overlays, then the files in FNT order, then the FAT
+     * entries nobody refers to
+     * @throws IOException If the tables are corrupted or the algorithm is unknown
+     */
+    public static List<Entry> list(Path romPath, String hash) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (MappedROM rom = MappedROM.open(romPath)) {
+            for (ROMSection s : rom.getSections())
+                entries.add(new Entry(s));
+            if (hash == null)
+                return entries;
+            if (!hash.equals("crc32"))
+                try {
+                    MessageDigest.getInstance(hash);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IOException("Unknown hash algorithm " + hash);
+                }
+            entries.parallelStream().filter(e -> rom.contains(e.offset, e.size)).forEach(e -> {
+                if (hash.equals("crc32"))
+                    e.hash = String.format("%08x", rom.crc32(e.offset, e.size));
+                else
+                    e.hash = hash(rom, e, hash);
+            });
+        }
+        return entries;
+    }
+
+    private static String hash(MappedROM rom, Entry entry, String algorithm) {
+        try {
+            MessageDigest md = MessageDigest.getInstance(algorithm);
+            md.update(rom.slice(entry.offset, entry.size));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : md.digest())
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // checked before hashing
+        }
+    }
+}
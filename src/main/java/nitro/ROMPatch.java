@@ -0,0 +1,324 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BinaryReader;
+import io.BinaryWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * This class creates and applies patches built on the FNT/FAT model.
+ * The target ROM is described as a sequence of pieces in offset order, and every piece is either copied from the
+ * source ROM, encoded as a delta against the matching source section (same path), stored literally or filled.
+ * Applying a patch writes the target in a single forward pass, copying unchanged data straight from the source, then
+ * checks the CRC32 of the whole target, since the source is only recognized from its size, header and FAT
+ */
+public class ROMPatch {
+    private static final byte[] MAGIC = {'N', 'D', 'P', 'T'};
+    private static final int VERSION = 2;
+
+    // Piece types
+    private static final int SOURCE = 0; // Copy a range of the source ROM
+    private static final int DELTA = 1; // Delta against a range of the source ROM
+    private static final int LITERAL = 2; // Bytes stored in the patch
+    private static final int FILL = 3; // The same byte repeated
+
+    /**
+     * Create a patch that turns the source ROM into the target ROM
+     *
+     * @param sourcePath The path of the original .nds file
+     * @param targetPath The path of the modified .nds file
+     * @param patchPath  Where to write the patch
+     * @throws IOException If something goes wrong
+     */
+    public static void createPatch(Path sourcePath, Path targetPath, Path patchPath) throws IOException {
+        try (MappedROM src = MappedROM.open(sourcePath); MappedROM dst = MappedROM.open(targetPath)) {
+            Map<String, ROMSection> sourceSections = new HashMap<>();
+            Map<Integer, List<ROMSection>> sourceBySize = new HashMap<>();
+            for (ROMSection s : src.getSections()) {
+                if (src.contains(s.getOffset(), s.getSize())) {
+                    sourceSections.put(s.getName(), s);
+                    sourceBySize.computeIfAbsent(s.getSize(), k -> new ArrayList<>()).add(s);
+                }
+            }
+
+            // Keep the target sections in offset order, dropping empty or overlapping ones (their bytes become gaps)
+            List<ROMSection> targetSections = dst.getSections().stream()
+                    .filter(s -> s.getSize() > 0 && dst.contains(s.getOffset(), s.getSize()))
+                    .sorted()
+                    .collect(Collectors.toList());
+            List<ROMSection> pieces = new ArrayList<>();
+            int position = 0;
+            for (ROMSection s : targetSections) {
+                if (s.getOffset() < position)
+                    continue;
+                if (s.getOffset() > position)
+                    pieces.add(new ROMSection(null, position, s.getOffset() - position, -1));
+                pieces.add(s);
+                position = s.getEnd();
+            }
+            if (position < dst.getSize())
+                pieces.add(new ROMSection(null, position, dst.getSize() - position, -1));
+
+            // Every piece is encoded independently, so the rolling hash matcher runs in parallel across files
+            List<byte[]> encoded = pieces.parallelStream()
+                    .map(p -> encodePiece(src, dst, p, sourceSections.get(p.getName()), sourceBySize))
+                    .collect(Collectors.toList());
+
+            ByteBuffer patchHeader = ByteBuffer.allocate(29).order(ByteOrder.LITTLE_ENDIAN);
+            patchHeader.put(MAGIC);
+            patchHeader.put((byte) VERSION);
+            patchHeader.putInt(src.getSize());
+            patchHeader.putInt((int) src.crc32(0, 0x200));
+            patchHeader.putInt(getFatCRC(src.getHeader(), src));
+            patchHeader.putInt(dst.getSize());
+            patchHeader.putInt((int) dst.crc32(0, dst.getSize()));
+            patchHeader.putInt(encoded.size());
+            BinaryWriter w = new BinaryWriter(patchPath);
+            w.writeBytes(patchHeader.array());
+            for (byte[] e : encoded)
+                w.writeBytes(e);
+            w.close();
+        }
+    }
+
+    /**
+     * Encode a single piece of the target ROM
+     *
+     * @param src          The source ROM
+     * @param dst          The target ROM
+     * @param piece        The target range
+     * @param source       The source section with the same name, if any
+     * @param sourceBySize The source sections grouped by size, used for finding moved files
+     * @return The encoded piece
+     */
+    private static byte[] encodePiece(MappedROM src, MappedROM dst, ROMSection piece, ROMSection source, Map<Integer, List<ROMSection>> sourceBySize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer target = dst.slice(piece.getOffset(), piece.getSize());
+        if (piece.getName() == null) { // A gap between sections, usually padding
+            byte first = target.get(0);
+            boolean uniform = true;
+            for (int i = 1; i < target.limit() && uniform; i++)
+                uniform = target.get(i) == first;
+            writePieceHeader(out, uniform ? FILL : LITERAL, piece.getSize());
+            if (uniform)
+                out.write(first);
+            else
+                writeBuffer(out, target);
+            return out.toByteArray();
+        }
+        if (source == null) { // Look for a source file with the same content somewhere else
+            for (ROMSection s : sourceBySize.getOrDefault(piece.getSize(), Collections.emptyList()))
+                if (src.slice(s.getOffset(), s.getSize()).equals(target)) {
+                    source = s;
+                    break;
+                }
+        }
+        if (source != null && source.getSize() == piece.getSize() && src.slice(source.getOffset(), source.getSize()).equals(target)) {
+            writePieceHeader(out, SOURCE, piece.getSize());
+            writeInt(out, source.getOffset());
+            return out.toByteArray();
+        }
+        if (source != null) {
+            ByteArrayOutputStream ops = new ByteArrayOutputStream();
+            int n = Delta.encode(src.slice(source.getOffset(), source.getSize()), target, ops);
+            if (ops.size() < piece.getSize()) {
+                writePieceHeader(out, DELTA, piece.getSize());
+                writeInt(out, source.getOffset());
+                writeInt(out, source.getSize());
+                writeInt(out, n);
+                writeInt(out, ops.size());
+                out.write(ops.toByteArray(), 0, ops.size());
+                return out.toByteArray();
+            }
+        }
+        writePieceHeader(out, LITERAL, piece.getSize());
+        writeBuffer(out, target);
+        return out.toByteArray();
+    }
+
+    /**
+     * Apply a patch, writing the target ROM in a single forward pass
+     *
+     * @param sourcePath The path of the original .nds file
+     * @param patchPath  The path of the patch
+     * @param targetPath Where to write the patched .nds file
+     * @throws IOException If the patch doesn't belong to the source ROM, the patched ROM doesn't match the target
+     *                     checksum (it's deleted then) or something goes wrong
+     */
+    public static void applyPatch(Path sourcePath, Path patchPath, Path targetPath) throws IOException {
+        BinaryReader patchReader = new BinaryReader(patchPath);
+        BinaryReader src = new BinaryReader(sourcePath);
+        BinaryWriter rom = null;
+        try {
+            ByteBuffer patch = patchReader.map();
+            byte[] magic = new byte[4];
+            patch.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || patch.get() != VERSION)
+                throw new IOException(patchPath + " is not a valid patch!");
+            int sourceSize = patch.getInt();
+            int headerCRC = patch.getInt();
+            int fatCRC = patch.getInt();
+            int targetSize = patch.getInt();
+            int targetCRC = patch.getInt();
+            int pieces = patch.getInt();
+
+            // Check that this is the right source ROM, without reading all of it
+            NitroHeader header = NitroHeader.readHeader(src);
+            src.seek(0);
+            CRC32 crc = new CRC32();
+            crc.update(src.readBuffer(0x200));
+            src.seek(header.getFatOffset());
+            if (src.getSize() != sourceSize || (int) crc.getValue() != headerCRC || getFatCRC(src.readBuffer(header.getFatSize())) != fatCRC)
+                throw new IOException(sourcePath + " is not the ROM this patch was made for!");
+
+            rom = new BinaryWriter(targetPath);
+            for (int i = 0; i < pieces; i++) {
+                int type = patch.get();
+                int size = patch.getInt();
+                switch (type) {
+                    case SOURCE:
+                        rom.copyFrom(src, patch.getInt() & 0xffffffffL, size);
+                        break;
+                    case DELTA:
+                        applyDelta(src, patch, rom);
+                        break;
+                    case LITERAL:
+                        rom.writeBytes(slice(patch, size));
+                        break;
+                    case FILL:
+                        writeFill(rom, patch.get(), size);
+                        break;
+                    default:
+                        throw new IOException("Unknown piece type " + type + " in " + patchPath);
+                }
+            }
+            if (rom.getPosition() != targetSize)
+                throw new IOException("Patched ROM is " + rom.getPosition() + " bytes long instead of " + targetSize);
+            rom.close();
+            rom = null;
+            if (getCRC(targetPath) != targetCRC) {
+                Files.delete(targetPath);
+                throw new IOException("The patched ROM doesn't match the target checksum, " + sourcePath
+                        + " must differ from the ROM the patch was made for!");
+            }
+        } catch (RuntimeException e) {
+            throw new IOException(patchPath + " is corrupted!", e);
+        } finally {
+            if (rom != null)
+                rom.close();
+            src.close();
+            patchReader.close();
+        }
+    }
+
+    private static int getCRC(Path path) throws IOException {
+        BinaryReader reader = new BinaryReader(path);
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(reader.map());
+            return (int) crc.getValue();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Apply the operations of a DELTA piece
+     */
+    private static void applyDelta(BinaryReader src, ByteBuffer patch, BinaryWriter rom) throws IOException {
+        long sourceOffset = patch.getInt() & 0xffffffffL;
+        int sourceSize = patch.getInt();
+        int ops = patch.getInt();
+        patch.getInt(); // Encoded size of the operations, only needed for skipping them
+        for (int i = 0; i < ops; i++) {
+            int op = patch.get();
+            if (op == Delta.COPY) {
+                int offset = Delta.readVarInt(patch);
+                int length = Delta.readVarInt(patch);
+                if (offset + length > sourceSize)
+                    throw new IOException("Delta copies outside of the source section!");
+                rom.copyFrom(src, sourceOffset + offset, length);
+            } else if (op == Delta.INSERT) {
+                rom.writeBytes(slice(patch, Delta.readVarInt(patch)));
+            } else
+                throw new IOException("Unknown delta operation " + op);
+        }
+    }
+
+    private static void writeFill(BinaryWriter rom, byte value, int size) throws IOException {
+        byte[] fill = new byte[Math.min(size, 0x10000)];
+        Arrays.fill(fill, value);
+        while (size > 0) {
+            int n = Math.min(size, fill.length);
+            rom.writeBytes(fill, n);
+            size -= n;
+        }
+    }
+
+    /**
+     * Take the next n bytes of the patch, advancing its position
+     */
+    private static ByteBuffer slice(ByteBuffer patch, int size) {
+        ByteBuffer s = patch.duplicate();
+        s.limit(s.position() + size);
+        patch.position(patch.position() + size);
+        return s;
+    }
+
+    private static int getFatCRC(NitroHeader header, MappedROM rom) {
+        if (!rom.contains(header.getFatOffset(), header.getFatSize()))
+            return 0;
+        return (int) rom.crc32(header.getFatOffset(), header.getFatSize());
+    }
+
+    private static int getFatCRC(byte[] fat) {
+        CRC32 crc = new CRC32();
+        crc.update(fat);
+        return (int) crc.getValue();
+    }
+
+    private static void writePieceHeader(ByteArrayOutputStream out, int type, int size) {
+        out.write(type);
+        writeInt(out, size);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private static void writeBuffer(ByteArrayOutputStream out, ByteBuffer data) {
+        ByteBuffer d = data.duplicate();
+        byte[] b = new byte[d.remaining()];
+        d.get(b);
+        out.write(b, 0, b.length);
+    }
+}
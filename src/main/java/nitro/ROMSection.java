@@ -0,0 +1,71 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+/**
+ * This class represents a named range of the ROM image (header, ARM binaries, tables, banner, overlays and files).
+ * The name is the path the section gets when the ROM is extracted
+ */
+class ROMSection implements Comparable<ROMSection> {
+    private final String name; // Extraction path, like arm9.bin or data/a/0/0/0
+    private final int offset; // Absolute offset of the section
+    private final int size; // Size of the section
+    private final int fileID; // FAT file ID, -1 if the section isn't in the FAT
+
+    public ROMSection(String name, int offset, int size, int fileID) {
+        this.name = name;
+        this.offset = offset;
+        this.size = size;
+        this.fileID = fileID;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getEnd() {
+        return offset + size;
+    }
+
+    public int getFileID() {
+        return fileID;
+    }
+
+    @Override
+    public int compareTo(ROMSection section) {
+        return Integer.compare(offset, section.offset);
+    }
+
+    @Override
+    public String toString() {
+        return "ROMSection{" +
+                "name='" + name + '\'' +
+                ", offset=" + offset +
+                ", size=" + size +
+                '}';
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.IOStats;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This interface provides everything ROM.buildROM needs: the header template, the binaries, the overlays and the
+ * Nitro file system. File IDs and offsets of the tree are assigned by the build, so only names and sizes matter
+ */
+interface ROMSource {
+    /**
+     * Get the header template
+     *
+     * @param io The counters of the reads, null if they aren't counted
+     * @return The header
+     * @throws IOException If it can't be read
+     */
+    NitroHeader getHeader(IOStats io) throws IOException;
+
+    ROMContent getArm9() throws IOException;
+
+    /**
+     * Get the records of the ARM9 overlay table. The file IDs are reassigned by the build, which regenerates the table
+     *
+     * @return The ARM9 overlays, in table order
+     * @throws IOException If the table can't be read
+     */
+    List<NitroOverlay> getArm9Overlays() throws IOException;
+
+    ROMContent getArm7() throws IOException;
+
+    /**
+     * Get the records of the ARM7 overlay table. The file IDs are reassigned by the build, which regenerates the table
+     *
+     * @return The ARM7 overlays, in table order
+     * @throws IOException If the table can't be read
+     */
+    List<NitroOverlay> getArm7Overlays() throws IOException;
+
+    ROMContent getBanner() throws IOException;
+
+    /**
+     * Get the overlays content, ARM9 ones first, in the order of the tables
+     *
+     * @return The overlays content, one for every table record
+     * @throws IOException If something goes wrong
+     */
+    List<ROMContent> getOverlays() throws IOException;
+
+    /**
+     * Get the root of the Nitro file system
+     *
+     * @return The root directory, with the file sizes set
+     * @throws IOException If something goes wrong
+     */
+    NitroDirectory getRoot() throws IOException;
+
+    /**
+     * Get the content of a file of the tree returned by getRoot
+     *
+     * @param file The file
+     * @return Its content
+     * @throws IOException If something goes wrong
+     */
+    ROMContent getFile(NitroFile file) throws IOException;
+
+    /**
+     * Get the files which the build must compress with LZ, because they were extracted decompressed
+     *
+     * @return The LZ type of every marked file, by path relative to data
+     * @throws IOException If the marks can't be read
+     */
+    default Map<String, Integer> getMarkedFiles() throws IOException {
+        return Collections.emptyMap();
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.IOStats;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class collects the duration, the bytes moved, the files processed and the read/write calls of every phase of
+ * a ROM extraction or build. Every phase is also emitted as a Flight Recorder event and reported to the
+ * ProgressListener, if any, which is also asked for cancellation as the files are processed.
+ * The read/write calls are those of the streams which count them in the counters of the operation
+ */
+public class ROMStats {
+    private final String operation;
+    private final List<Phase> phases = new ArrayList<>();
+    private final ProgressListener listener; // Null if nobody is interested in the progress
+    private final IOStats io = new IOStats(); // The read/write calls of the operation
+    private PhaseEvent event; // The event of the current phase
+    private String current; // The name of the current phase
+    private long start;
+    private long startReads;
+    private long startWrites;
+    private int filesTotal; // The totals of the current phase
+    private long bytesTotal;
+    private int filesDone; // The progress of the current phase
+    private long bytesDone;
+    private long lastProgress; // When the progress was last delivered
+
+    /**
+     * The totals of a phase, phases with the same name are accumulated
+     */
+    public static class Phase {
+        private final String name;
+        private long nanos;
+        private int files;
+        private long bytes;
+        private long reads;
+        private long writes;
+
+        private Phase(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public int getFiles() {
+            return files;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getReads() {
+            return reads;
+        }
+
+        public long getWrites() {
+            return writes;
+        }
+    }
+
+    ROMStats(String operation, ProgressListener listener) {
+        this.operation = operation;
+        this.listener = listener;
+    }
+
+    /**
+     * Start a new phase whose totals aren't known
+     *
+     * @param phase Name of the phase
+     * @throws InterruptedIOException If the operation has been cancelled
+     */
+    void begin(String phase) throws InterruptedIOException {
+        begin(phase, 0, 0);
+    }
+
+    /**
+     * Start a new phase
+     *
+     * @param phase      Name of the phase
+     * @param filesTotal Number of files the phase will process
+     * @param bytesTotal Number of bytes the phase will move
+     * @throws InterruptedIOException If the operation has been cancelled
+     */
+    void begin(String phase, int filesTotal, long bytesTotal) throws InterruptedIOException {
+        checkCancelled();
+        current = phase;
+        this.filesTotal = filesTotal;
+        this.bytesTotal = bytesTotal;
+        filesDone = 0;
+        bytesDone = 0;
+        event = new PhaseEvent();
+        event.begin();
+        startReads = io.getReads();
+        startWrites = io.getWrites();
+        start = System.nanoTime();
+        lastProgress = start;
+        if (listener != null)
+            listener.phaseStarted(getProgress(0));
+    }
+
+    /**
+     * Record the progress of the current phase, the listener is notified at most every PROGRESS_INTERVAL milliseconds
+     *
+     * @param files Number of files processed since the last call
+     * @param bytes Number of bytes moved since the last call
+     * @throws InterruptedIOException If the operation has been cancelled
+     */
+    void advance(int files, long bytes) throws InterruptedIOException {
+        filesDone += files;
+        bytesDone += bytes;
+        if (listener != null) {
+            checkCancelled();
+            long now = System.nanoTime();
+            if (now - lastProgress >= ProgressListener.PROGRESS_INTERVAL * 1000000) {
+                lastProgress = now;
+                listener.progress(getProgress(now - start));
+            }
+        }
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (listener != null && listener.isCancelled())
+            throw new InterruptedIOException("The " + operation + " has been cancelled");
+    }
+
+    private Progress getProgress(long nanos) {
+        return new Progress(operation, current, filesDone, Math.max(filesTotal, filesDone), bytesDone,
+                Math.max(bytesTotal, bytesDone), nanos);
+    }
+
+    /**
+     * End the current phase
+     *
+     * @param files Number of files processed
+     * @param bytes Number of bytes moved
+     */
+    void end(int files, long bytes) {
+        long nanos = System.nanoTime() - start;
+        long reads = io.getReads() - startReads;
+        long writes = io.getWrites() - startWrites;
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.phase = current;
+            event.files = files;
+            event.bytes = bytes;
+            event.reads = reads;
+            event.writes = writes;
+            event.commit();
+        }
+        Phase p = null;
+        for (Phase t : phases)
+            if (t.name.equals(current))
+                p = t;
+        if (p == null) {
+            p = new Phase(current);
+            phases.add(p);
+        }
+        p.nanos += nanos;
+        p.files += files;
+        p.bytes += bytes;
+        p.reads += reads;
+        p.writes += writes;
+        if (listener != null) {
+            filesDone = filesTotal = files;
+            bytesDone = bytesTotal = bytes;
+            listener.phaseEnded(getProgress(nanos));
+        }
+    }
+
+    /**
+     * Get the counters the streams of the operation count their calls in
+     *
+     * @return The read/write counters
+     */
+    IOStats getIOStats() {
+        return io;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public List<Phase> getPhases() {
+        return Collections.unmodifiableList(phases);
+    }
+
+    public long getTotalNanos() {
+        long n = 0;
+        for (Phase p : phases)
+            n += p.nanos;
+        return n;
+    }
+
+    /**
+     * Get the statistics in JSON format
+     *
+     * @return A JSON object with the operation, the total duration and the phases
+     */
+    public String toJSON() {
+        StringBuilder s = new StringBuilder();
+        s.append("{\"operation\":\"").append(operation).append("\",\"nanos\":").append(getTotalNanos()).append(",\"phases\":[");
+        for (int i = 0; i < phases.size(); i++) {
+            Phase p = phases.get(i);
+            if (i > 0)
+                s.append(',');
+            s.append("{\"name\":\"").append(p.name).append("\",\"nanos\":").append(p.nanos)
+                    .append(",\"files\":").append(p.files).append(",\"bytes\":").append(p.bytes)
+                    .append(",\"reads\":").append(p.reads).append(",\"writes\":").append(p.writes).append('}');
+        }
+        return s.append("]}").toString();
+    }
+
+    /**
+     * Get a human readable summary of the statistics
+     *
+     * @return A table with a row for every phase
+     */
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append(String.format("%-10s %10s %8s %12s %10s %8s %8s%n", operation, "ms", "files", "bytes", "MiB/s", "reads", "writes"));
+        for (Phase p : phases)
+            s.append(String.format("%-10s %10.2f %8d %12d %10.1f %8d %8d%n", p.name, p.nanos / 1e6, p.files, p.bytes,
+                    p.nanos > 0 ? p.bytes / (p.nanos / 1e9) / (1 << 20) : 0.0, p.reads, p.writes));
+        s.append(String.format("%-10s %10.2f%n", "total", getTotalNanos() / 1e6));
+        return s.toString();
+    }
+}
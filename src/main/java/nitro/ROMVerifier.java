@@ -0,0 +1,182 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * This class checks the internal consistency of a ROM.
+ * The ROM is mapped in memory and the per-file checks run in parallel
+ */
+public class ROMVerifier {
+    /**
+     * Verify the given ROM
+     *
+     * @param romPath The path of the .nds file
+     * @return The verification report
+     * @throws IOException If the ROM can't be read at all
+     */
+    public static VerifyReport verifyROM(Path romPath) throws IOException {
+        VerifyReport report = new VerifyReport();
+        try (MappedROM rom = MappedROM.map(romPath, null)) {
+            checkHeader(rom, report);
+            checkSections(rom, report);
+            try {
+                rom.decodeTables();
+            } catch (IOException | RuntimeException e) {
+                report.addError("The FAT and overlay tables can't be decoded: " + e.getMessage());
+                return report;
+            }
+            checkFAT(rom, report);
+            BitSet reached = new BitSet(rom.getFileCount()); // The file IDs referenced by the overlay tables or by the FNT
+            checkOverlays(rom, rom.getArm9Overlays(), "ARM9", reached, report);
+            checkOverlays(rom, rom.getArm7Overlays(), "ARM7", reached, report);
+            checkFNT(rom, reached, report);
+            report.setFileCount(rom.getFileCount());
+        }
+        return report;
+    }
+
+    /**
+     * Check the header, logo and secure area checksums
+     */
+    private static void checkHeader(MappedROM rom, VerifyReport report) {
+        NitroHeader header = rom.getHeader();
+        int headerCRC = NitroHeader.calculateCRC16(rom.slice(0, 0x200), 0, 0x15e);
+        if (headerCRC != header.getHeaderChecksum())
+            report.addError(String.format("Header checksum is 0x%04x but should be 0x%04x", header.getHeaderChecksum(), headerCRC));
+        int logoCRC = NitroHeader.calculateCRC16(rom.slice(0, 0x200), 0xc0, 0x15c);
+        if (logoCRC != header.getLogoChecksum())
+            report.addError(String.format("Logo checksum is 0x%04x but should be 0x%04x", header.getLogoChecksum(), logoCRC));
+        if (rom.getSize() >= 0x8000) {
+            // The checksum is calculated over the encrypted secure area, so decrypted dumps never match
+            int secureAreaCRC = NitroHeader.calculateCRC16(rom.slice(0x4000, 0x4000), 0, 0x4000);
+            if (secureAreaCRC != header.getSecureAreaChecksum())
+                report.addWarning(String.format("Secure area checksum is 0x%04x but should be 0x%04x (expected for decrypted ROMs)", header.getSecureAreaChecksum(), secureAreaCRC));
+        }
+    }
+
+    /**
+     * Check that every section described by the header lies inside the ROM
+     */
+    private static void checkSections(MappedROM rom, VerifyReport report) {
+        NitroHeader header = rom.getHeader();
+        checkSection(rom, "ARM9", header.getArm9RomOffset(), header.getArm9Size(), report);
+        checkSection(rom, "ARM7", header.getArm7RomOffset(), header.getArm7Size(), report);
+        checkSection(rom, "FNT", header.getFntOffset(), header.getFntSize(), report);
+        checkSection(rom, "FAT", header.getFatOffset(), header.getFatSize(), report);
+        checkSection(rom, "ARM9 overlay table", header.getArm9OverlayOffset(), header.getArm9OverlaySize(), report);
+        checkSection(rom, "ARM7 overlay table", header.getArm7OverlayOffset(), header.getArm7OverlaySize(), report);
+        if (header.getIconOffset() != 0)
+            checkSection(rom, "Banner", header.getIconOffset(), 0x840, report);
+        if (header.getArm9OverlaySize() % 0x20 != 0 || header.getArm7OverlaySize() % 0x20 != 0)
+            report.addWarning("Overlay table sizes are not a multiple of 0x20");
+    }
+
+    private static void checkSection(MappedROM rom, String name, int offset, int size, VerifyReport report) {
+        if (!rom.contains(offset & 0xffffffffL, size & 0xffffffffL))
+            report.addError(String.format("%s (0x%08x-0x%08x) lies outside the ROM (size 0x%08x)",
+                    name, offset, (offset & 0xffffffffL) + (size & 0xffffffffL), rom.getSize()));
+    }
+
+    /**
+     * Check that every FAT entry lies inside the ROM, and find out-of-order or overlapping entries
+     */
+    private static void checkFAT(MappedROM rom, VerifyReport report) {
+        int n = rom.getFileCount();
+        report.addErrors(IntStream.range(0, n).parallel().mapToObj(i -> {
+            if (rom.getStartOffset(i) > rom.getEndOffset(i) || rom.getStartOffset(i) < 0)
+                return String.format("File %d has an invalid range 0x%08x-0x%08x", i, rom.getStartOffset(i), rom.getEndOffset(i));
+            if (!isInside(rom, i))
+                return String.format("File %d (0x%08x-0x%08x) lies outside the ROM", i, rom.getStartOffset(i), rom.getEndOffset(i));
+            return null;
+        }).filter(Objects::nonNull).collect(Collectors.toList()));
+
+        report.addWarnings(IntStream.range(1, n).parallel()
+                .filter(i -> isInside(rom, i) && isInside(rom, i - 1) && rom.getStartOffset(i) < rom.getStartOffset(i - 1))
+                .mapToObj(i -> String.format("File %d (0x%08x) is placed before file %d (0x%08x)", i, rom.getStartOffset(i), i - 1, rom.getStartOffset(i - 1)))
+                .collect(Collectors.toList()));
+
+        // Sort the non empty entries by start offset, then every entry must end before the next one starts
+        long[] sorted = IntStream.range(0, n)
+                .filter(i -> isInside(rom, i) && rom.getEndOffset(i) > rom.getStartOffset(i))
+                .mapToLong(i -> ((long) rom.getStartOffset(i) << 32) | i)
+                .toArray();
+        Arrays.parallelSort(sorted);
+        report.addErrors(IntStream.range(1, sorted.length).parallel().mapToObj(i -> {
+            int previous = (int) sorted[i - 1];
+            int current = (int) sorted[i];
+            if (rom.getEndOffset(previous) > rom.getStartOffset(current))
+                return String.format("File %d (0x%08x-0x%08x) overlaps file %d (0x%08x-0x%08x)",
+                        previous, rom.getStartOffset(previous), rom.getEndOffset(previous),
+                        current, rom.getStartOffset(current), rom.getEndOffset(current));
+            return null;
+        }).filter(Objects::nonNull).collect(Collectors.toList()));
+    }
+
+    /**
+     * Check that the overlay table entries point to valid FAT entries
+     */
+    private static void checkOverlays(MappedROM rom, List<NitroOverlay> overlays, String cpu, BitSet reached, VerifyReport report) {
+        for (NitroOverlay o : overlays) {
+            if (o.getFileID() < 0 || o.getFileID() >= rom.getFileCount())
+                report.addError(cpu + " overlay " + o.getId() + " has file ID " + o.getFileID() + " which is outside of the FAT");
+            else if (reached.get(o.getFileID()))
+                report.addError(cpu + " overlay " + o.getId() + " uses file ID " + o.getFileID() + " which is already used by another overlay");
+            else
+                reached.set(o.getFileID());
+        }
+    }
+
+    /**
+     * Check that the FNT can be decoded and, together with the overlay tables, reaches every file ID exactly once
+     */
+    private static void checkFNT(MappedROM rom, BitSet reached, VerifyReport report) {
+        NitroDirectory root;
+        try {
+            root = rom.getRoot();
+        } catch (IOException | RuntimeException e) {
+            report.addError("FNT can't be decoded: " + e.getMessage());
+            return;
+        }
+        Deque<NitroDirectory> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            NitroDirectory d = stack.pop();
+            for (NitroFile f : d.getFileList()) {
+                if (reached.get(f.getId()))
+                    report.addError(f + " uses file ID " + f.getId() + " which is already used");
+                reached.set(f.getId());
+            }
+            for (NitroDirectory sub : d.getDirectoryList())
+                stack.push(sub);
+        }
+        for (int i = reached.nextClearBit(0); i < rom.getFileCount(); i = reached.nextClearBit(i + 1))
+            report.addError("File " + i + " is not reachable from the FNT or the overlay tables");
+    }
+
+    private static boolean isInside(MappedROM rom, int fileID) {
+        return rom.getStartOffset(fileID) >= 0 && rom.getStartOffset(fileID) <= rom.getEndOffset(fileID)
+                && rom.contains(rom.getStartOffset(fileID), rom.getEndOffset(fileID) - rom.getStartOffset(fileID));
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BinaryWriter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * This class keeps a ROM up to date with the directory it's built from.
+ * The layout of the last build is kept in memory. A change to the content of some files is patched in place, writing
+ * the files and their FAT entries, when every file keeps its 4-byte aligned size: the ROM is then the same a full build
+ * would produce. Any other change (sizes, new or deleted files, binaries, overlays, tables) rebuilds the whole ROM
+ */
+public class ROMWatcher {
+    // The files outside of data whose changes need a build
+    private static final Set<String> SOURCES = new HashSet<>(Arrays.asList("header.bin", "arm9.bin", "arm9ovltable.bin",
+            "arm7.bin", "arm7ovltable.bin", "banner.bin", CompressedFiles.MARKS_FILE));
+
+    private final Path dirPath;
+    private final Path romPath;
+    private final BuildOptions options;
+    private long debounce = 200; // Milliseconds without changes ending a burst
+    private final Map<Path, NitroFile> files = new HashMap<>(); // The files of the last build, by host path
+    private final Set<Path> directories = new HashSet<>(); // The directories of the last build
+    private Map<String, Integer> marks; // The files stored LZ compressed
+    private int fatOffset;
+    private boolean stale = true; // The layout is unknown, so the next update builds the whole ROM
+    private int builds; // Number of builds, the directories to watch may change with every build
+
+    /**
+     * Class constructor
+     *
+     * @param dirPath The directory to build the ROM from
+     * @param romPath The path of the .nds file
+     * @param options The options of every build
+     */
+    public ROMWatcher(Path dirPath, Path romPath, BuildOptions options) {
+        this.dirPath = dirPath.toAbsolutePath().normalize();
+        this.romPath = romPath;
+        this.options = options;
+    }
+
+    /**
+     * Build the whole ROM and keep its layout
+     *
+     * @return The statistics of every phase
+     * @throws IOException If something goes wrong
+     */
+    public ROMStats build() throws IOException {
+        stale = true;
+        ROMStats stats = ROM.buildROM(dirPath, romPath, options);
+        files.clear();
+        directories.clear();
+        Path data = dirPath.resolve("data");
+        try (MappedROM rom = MappedROM.open(romPath)) {
+            fatOffset = rom.getHeader().getFatOffset();
+            for (NitroFile f : NitroDirectory.listFiles(rom.getRoot()))
+                files.put(data.resolve(f.getPath()), f);
+            addDirectories(rom.getRoot(), data);
+        }
+        marks = CompressedFiles.readMarks(dirPath);
+        stale = false;
+        builds++;
+        return stats;
+    }
+
+    private void addDirectories(NitroDirectory dir, Path path) {
+        directories.add(path);
+        for (NitroDirectory d : dir.getDirectoryList())
+            addDirectories(d, path.resolve(d.getName()));
+    }
+
+    /**
+     * Bring the ROM up to date after some paths changed, patching it in place when possible
+     *
+     * @param changed The paths which changed, created or deleted
+     * @return A description of what was done
+     * @throws IOException If something goes wrong
+     */
+    public String apply(Collection<Path> changed) throws IOException {
+        long start = System.nanoTime();
+        Map<NitroFile, ROMContent> patches = new IdentityHashMap<>();
+        boolean rebuild = stale;
+        for (Path path : changed) {
+            NitroFile f = findFile(path);
+            if (f != null && Files.exists(path))
+                patches.put(f, null);
+            else if (f != null || needsBuild(path))
+                rebuild = true;
+        }
+
+        // Every file must fit its slot, or the layout changes
+        for (Map.Entry<NitroFile, ROMContent> e : patches.entrySet()) {
+            if (rebuild)
+                break;
+            NitroFile f = e.getKey();
+            Path path = dirPath.resolve("data").resolve(f.getPath());
+            ROMContent content = NitroDirectory.isExpandedArchive(path.toFile()) ? new NARCBuilder(path) : new PathContent(path);
+            if (marks.containsKey(f.getPath()))
+                content = new BufferContent(LZ.compress(content.readAll(), marks.get(f.getPath())));
+            int size = content.getSize();
+            if (size + ROM.addPadding(size) != f.getSize() + ROM.addPadding(f.getSize()))
+                rebuild = true;
+            e.setValue(content);
+        }
+
+        if (rebuild) {
+            build();
+            return String.format("Rebuilt the ROM in %d ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        if (patches.isEmpty())
+            return null;
+        BinaryWriter rom = new BinaryWriter(romPath, false);
+        try {
+            for (Map.Entry<NitroFile, ROMContent> e : patches.entrySet()) {
+                NitroFile f = e.getKey();
+                rom.seek(f.getOffset());
+                e.getValue().writeTo(rom, null);
+                ROM.writePadding(rom);
+                f.setSize(e.getValue().getSize());
+                rom.seek(fatOffset + f.getId() * 8 + 4);
+                rom.writeInt(f.getOffset() + f.getSize());
+            }
+        } finally {
+            rom.close();
+        }
+        return String.format("Patched %d files in place in %d ms", patches.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Find the file of the last build a path belongs to, the entries of an expanded NARC archive belong to it
+     *
+     * @param path The host path
+     * @return The file, or null if the path isn't a file of the last build
+     */
+    private NitroFile findFile(Path path) {
+        for (Path p = path; p != null && !directories.contains(p); p = p.getParent())
+            if (files.containsKey(p))
+                return files.get(p);
+        return null;
+    }
+
+    /**
+     * Check if a path which isn't a file of the last build changes the ROM
+     */
+    private boolean needsBuild(Path path) {
+        Path relative = dirPath.relativize(path);
+        if (relative.getNameCount() == 1)
+            return SOURCES.contains(relative.toString());
+        if (relative.getName(0).toString().equals("overlay"))
+            return true;
+        // a new file or directory of data, or a deleted directory, but not the changed content of a directory
+        return relative.getName(0).toString().equals("data") && Files.exists(path) != directories.contains(path);
+    }
+
+    public long getDebounce() {
+        return debounce;
+    }
+
+    public void setDebounce(long debounce) {
+        this.debounce = debounce;
+    }
+
+    /**
+     * Build the ROM, then watch the directory and bring the ROM up to date after every burst of changes, until the
+     * thread is interrupted. Every update is reported to the ProgressListener of the options, if any, and after a
+     * failed one the next burst tries again
+     *
+     * @throws IOException If the first build fails or the directory can't be watched
+     */
+    public void watch() throws IOException {
+        ProgressListener listener = options.getProgressListener();
+        long nanos = build().getTotalNanos();
+        if (listener != null)
+            listener.updated(String.format("Built the ROM in %d ms", TimeUnit.NANOSECONDS.toMillis(nanos)));
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            register(watcher);
+            while (true) {
+                Set<Path> changed = new LinkedHashSet<>();
+                WatchKey key = watcher.take();
+                do { // a burst lasts until nothing changes for the debounce time
+                    for (WatchEvent<?> event : key.pollEvents())
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                            stale = true; // the changes are unknown, so the whole ROM is built
+                        else
+                            changed.add(((Path) key.watchable()).resolve((Path) event.context()));
+                    key.reset();
+                } while ((key = watcher.poll(debounce, TimeUnit.MILLISECONDS)) != null);
+                int before = builds;
+                try {
+                    String result = apply(changed);
+                    if (result != null && listener != null)
+                        listener.updated(result);
+                } catch (IOException e) {
+                    stale = true;
+                    if (listener != null)
+                        listener.updateFailed(e);
+                }
+                if (builds != before) // the build may have new directories
+                    register(watcher);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void register(WatchService watcher) throws IOException {
+        List<Path> dirs = new ArrayList<>();
+        dirs.add(dirPath);
+        dirs.add(dirPath.resolve("overlay"));
+        try (Stream<Path> data = Files.walk(dirPath.resolve("data"))) {
+            data.filter(Files::isDirectory).forEach(dirs::add);
+        }
+        for (Path d : dirs)
+            if (Files.isDirectory(d))
+                d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+}
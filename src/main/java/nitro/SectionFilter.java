@@ -0,0 +1,70 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * This class selects the sections of a ROM to extract, by the path they get when extracted and by file ID.
+ * A section is selected when it matches an include glob or its file ID is listed (every section when there are
+ * neither), unless it matches an exclude glob
+ */
+class SectionFilter implements Predicate<ROMSection> {
+    private final List<PathMatcher> includes = new ArrayList<>();
+    private final List<PathMatcher> excludes = new ArrayList<>();
+    private final Set<Integer> fileIDs;
+
+    /**
+     * Class constructor
+     *
+     * @param includes Globs of the paths to extract (e.g. data/a/0/2/*, ** matches across directories)
+     * @param excludes Globs of the paths to leave out
+     * @param fileIDs  FAT IDs of the files and overlays to extract
+     */
+    public SectionFilter(Collection<String> includes, Collection<String> excludes, Collection<Integer> fileIDs) {
+        for (String glob : includes)
+            this.includes.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+        for (String glob : excludes)
+            this.excludes.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+        this.fileIDs = new HashSet<>(fileIDs);
+    }
+
+    @Override
+    public boolean test(ROMSection section) {
+        Path path = Paths.get(section.getName());
+        boolean selected = includes.isEmpty() && fileIDs.isEmpty();
+        for (int i = 0; i < includes.size() && !selected; i++)
+            selected = includes.get(i).matches(path);
+        if (!selected && (section.getFileID() < 0 || !fileIDs.contains(section.getFileID())))
+            return false;
+        for (PathMatcher exclude : excludes)
+            if (exclude.matches(path))
+                return false;
+        return true;
+    }
+}
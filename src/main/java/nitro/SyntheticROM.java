@@ -0,0 +1,170 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * This class generates valid synthetic ROMs, useful for testing and benchmarking.
+ * The whole content is derived from the seed, so the same parameters always produce the same ROM.
+ * The files are generated while the ROM is written, nothing is stored on disk besides the ROM itself
+ */
+public class SyntheticROM {
+    /**
+     * How the file sizes are distributed between the minimum and the maximum size
+     */
+    public enum SizeDistribution {
+        UNIFORM,
+        LOG_UNIFORM
+    }
+
+    private int depth = 2; // Depth of the directory tree, 0 means only the root
+    private int fanOut = 4; // Subdirectories of every directory above the maximum depth
+    private int files = 1000; // Total number of files
+    private int minFileSize = 0;
+    private int maxFileSize = 0x10000;
+    private SizeDistribution sizeDistribution = SizeDistribution.LOG_UNIFORM;
+    private int overlays = 0; // Number of ARM9 overlays
+    private int minNameLength = 4;
+    private int maxNameLength = 12;
+    private double duplicateRatio = 0; // Fraction of files that share the content of a previous file
+    private long seed = 0;
+
+    /**
+     * Generate the ROM
+     *
+     * @param romPath The path of the .nds file
+     * @return The statistics of every phase of the build
+     * @throws IOException If the parameters are invalid or something goes wrong while writing
+     */
+    public ROMStats generate(Path romPath) throws IOException {
+        return generate(romPath, null);
+    }
+
+    /**
+     * Generate the ROM, reporting the progress
+     *
+     * @param romPath  The path of the .nds file
+     * @param listener The listener receiving the progress, or null
+     * @return The statistics of every phase of the build
+     * @throws IOException If the parameters are invalid or something goes wrong while writing
+     */
+    public ROMStats generate(Path romPath, ProgressListener listener) throws IOException {
+        if (depth < 0 || fanOut < 0 || files < 0 || overlays < 0)
+            throw new IOException("Depth, fan-out, file count and overlay count can't be negative!");
+        if (minFileSize < 0 || maxFileSize < minFileSize)
+            throw new IOException("Invalid file size range " + minFileSize + "-" + maxFileSize);
+        if (minNameLength < 1 || maxNameLength > 127 || maxNameLength < minNameLength)
+            throw new IOException("Invalid name length range " + minNameLength + "-" + maxNameLength + " (allowed 1-127)");
+        if (duplicateRatio < 0 || duplicateRatio > 1)
+            throw new IOException("The duplicate ratio must be between 0 and 1");
+        BuildOptions options = new BuildOptions();
+        options.setProgressListener(listener);
+        return ROM.buildROM(new SyntheticSource(this), romPath, options);
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    public int getFanOut() {
+        return fanOut;
+    }
+
+    public void setFanOut(int fanOut) {
+        this.fanOut = fanOut;
+    }
+
+    public int getFiles() {
+        return files;
+    }
+
+    public void setFiles(int files) {
+        this.files = files;
+    }
+
+    public int getMinFileSize() {
+        return minFileSize;
+    }
+
+    public void setMinFileSize(int minFileSize) {
+        this.minFileSize = minFileSize;
+    }
+
+    public int getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    public void setMaxFileSize(int maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    public SizeDistribution getSizeDistribution() {
+        return sizeDistribution;
+    }
+
+    public void setSizeDistribution(SizeDistribution sizeDistribution) {
+        this.sizeDistribution = sizeDistribution;
+    }
+
+    public int getOverlays() {
+        return overlays;
+    }
+
+    public void setOverlays(int overlays) {
+        this.overlays = overlays;
+    }
+
+    public int getMinNameLength() {
+        return minNameLength;
+    }
+
+    public void setMinNameLength(int minNameLength) {
+        this.minNameLength = minNameLength;
+    }
+
+    public int getMaxNameLength() {
+        return maxNameLength;
+    }
+
+    public void setMaxNameLength(int maxNameLength) {
+        this.maxNameLength = maxNameLength;
+    }
+
+    public double getDuplicateRatio() {
+        return duplicateRatio;
+    }
+
+    public void setDuplicateRatio(double duplicateRatio) {
+        this.duplicateRatio = duplicateRatio;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+}
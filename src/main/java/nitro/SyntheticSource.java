@@ -0,0 +1,266 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.BinaryWriter;
+import io.BufferPool;
+import io.IOStats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * This class provides the content of a synthetic ROM described by a SyntheticROM.
+ * Only the tree and the seeds of the files are kept in memory, the content is generated while it's written
+ */
+class SyntheticSource implements ROMSource {
+    private static final String NAME_CHARS = "abcdefghijklmnopqrstuvwxyz0123456789_";
+    private static final int ARM9_SIZE = 0x10000;
+    private static final int ARM7_SIZE = 0x8000;
+
+    private final SyntheticROM params;
+    private final SplittableRandom random; // Drives the tree shape, the names, the sizes and the file seeds
+    private final List<GeneratedContent> overlays = new ArrayList<>();
+    private final Map<NitroFile, GeneratedContent> contents = new IdentityHashMap<>();
+    private final NitroDirectory root;
+
+    /**
+     * A directory of the tree being generated, before the directory IDs are assigned
+     */
+    private static class Node {
+        private final String name;
+        private final List<Node> directories = new ArrayList<>();
+        private final List<String> files = new ArrayList<>();
+        private final List<GeneratedContent> fileContents = new ArrayList<>();
+        private final Set<String> names = new HashSet<>(); // Lower case names of the children, they must be unique
+
+        private Node(String name) {
+            this.name = name;
+        }
+    }
+
+    public SyntheticSource(SyntheticROM params) throws IOException {
+        this.params = params;
+        this.random = new SplittableRandom(params.getSeed());
+
+        long directories = 1;
+        long level = 1;
+        for (int i = 0; i < params.getDepth() && level > 0; i++) {
+            level *= params.getFanOut();
+            directories += level;
+            if (directories > 0x1000)
+                throw new IOException("Too many directories, the FNT can hold at most 4096 of them!");
+        }
+
+        for (int i = 0; i < params.getOverlays(); i++)
+            overlays.add(new GeneratedContent(random.nextLong(), nextSize()));
+
+        // Create the directories level by level, then spread the files among them
+        Node rootNode = new Node("data");
+        List<Node> all = new ArrayList<>();
+        all.add(rootNode);
+        List<Node> current = all;
+        for (int d = 0; d < params.getDepth(); d++) {
+            List<Node> next = new ArrayList<>();
+            for (Node parent : current)
+                for (int i = 0; i < params.getFanOut(); i++) {
+                    Node n = new Node(nextName(parent));
+                    parent.directories.add(n);
+                    next.add(n);
+                }
+            all.addAll(next);
+            current = next;
+        }
+        List<GeneratedContent> generated = new ArrayList<>();
+        for (int i = 0; i < params.getFiles(); i++) {
+            GeneratedContent content;
+            if (i > 0 && random.nextDouble() < params.getDuplicateRatio())
+                content = generated.get(random.nextInt(i));
+            else
+                content = new GeneratedContent(random.nextLong(), nextSize());
+            generated.add(content);
+            Node parent = all.get(random.nextInt(all.size()));
+            parent.files.add(nextName(parent));
+            parent.fileContents.add(content);
+        }
+
+        // Directory IDs follow the FNT order, so they're assigned depth-first with sorted names
+        this.root = new NitroDirectory("data", 0xf000, null);
+        toNitroDirectory(rootNode, root, new BuildContext(0xf000, 0, 0));
+    }
+
+    private void toNitroDirectory(Node node, NitroDirectory dir, BuildContext context) {
+        node.directories.sort((a, b) -> a.name.compareToIgnoreCase(b.name));
+        for (Node n : node.directories) {
+            NitroDirectory d = new NitroDirectory(n.name, context.nextDirectoryID(), dir);
+            dir.getDirectoryList().add(d);
+            toNitroDirectory(n, d, context);
+        }
+        for (int i = 0; i < node.files.size(); i++) {
+            NitroFile f = new NitroFile(node.files.get(i), 0, 0, node.fileContents.get(i).size, dir);
+            dir.getFileList().add(f);
+            contents.put(f, node.fileContents.get(i));
+        }
+    }
+
+    /**
+     * Generate a random name, unique among the children of the given directory
+     */
+    private String nextName(Node parent) throws IOException {
+        for (int attempt = 0; attempt < 64; attempt++) {
+            int length = params.getMinNameLength() + random.nextInt(params.getMaxNameLength() - params.getMinNameLength() + 1);
+            StringBuilder name = new StringBuilder(length);
+            for (int i = 0; i < length; i++)
+                name.append(NAME_CHARS.charAt(random.nextInt(NAME_CHARS.length())));
+            if (parent.names.add(name.toString()))
+                return name.toString();
+        }
+        throw new IOException("Can't generate unique names in " + parent.name + ", increase the name length!");
+    }
+
+    /**
+     * Draw a file size from the chosen distribution
+     */
+    private int nextSize() {
+        int min = params.getMinFileSize();
+        int max = params.getMaxFileSize();
+        if (params.getSizeDistribution() == SyntheticROM.SizeDistribution.UNIFORM)
+            return min + (int) (random.nextDouble() * (max - min + 1L));
+        double low = Math.log(min + 1.0);
+        double high = Math.log(max + 2.0);
+        return Math.min(max, (int) Math.exp(low + random.nextDouble() * (high - low)) - 1);
+    }
+
+    @Override
+    public NitroHeader getHeader(IOStats io) {
+        return NitroHeader.createHeader("SYNTHETIC", "SYNT");
+    }
+
+    @Override
+    public ROMContent getArm9() {
+        return new GeneratedContent(params.getSeed() ^ 0x39, ARM9_SIZE);
+    }
+
+    @Override
+    public List<NitroOverlay> getArm9Overlays() {
+        List<NitroOverlay> table = new ArrayList<>();
+        int ramAddress = 0x02000000 + ARM9_SIZE;
+        for (int i = 0; i < overlays.size(); i++) {
+            NitroOverlay o = new NitroOverlay();
+            o.setId(i);
+            o.setRamAddress(ramAddress);
+            o.setRamSize(overlays.get(i).size);
+            table.add(o);
+        }
+        return table;
+    }
+
+    @Override
+    public ROMContent getArm7() {
+        return new GeneratedContent(params.getSeed() ^ 0x37, ARM7_SIZE);
+    }
+
+    @Override
+    public List<NitroOverlay> getArm7Overlays() {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public ROMContent getBanner() {
+        ByteBuffer banner = ByteBuffer.allocate(0x840).order(ByteOrder.LITTLE_ENDIAN);
+        banner.putShort(0, (short) 1); // version
+        byte[] title = "Synthetic ROM".getBytes(StandardCharsets.UTF_16LE);
+        for (int i = 0; i < 6; i++) { // the same title in every language
+            banner.position(0x240 + i * 0x100);
+            banner.put(title);
+        }
+        banner.putShort(2, (short) NitroHeader.calculateCRC16(banner, 0x20, 0x840));
+        banner.clear();
+        return new BufferContent(banner);
+    }
+
+    @Override
+    public List<ROMContent> getOverlays() {
+        return new ArrayList<>(overlays);
+    }
+
+    @Override
+    public NitroDirectory getRoot() {
+        return root;
+    }
+
+    @Override
+    public ROMContent getFile(NitroFile file) {
+        return contents.get(file);
+    }
+
+    /**
+     * Pseudo-random content generated from a seed, written in chunks
+     */
+    private static class GeneratedContent implements ROMContent {
+        private final long seed;
+        private final int size;
+
+        private GeneratedContent(long seed, int size) {
+            this.seed = seed;
+            this.size = size;
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public byte[] readAll() {
+            byte[] data = new byte[size];
+            SplittableRandom r = new SplittableRandom(seed);
+            ByteBuffer chunk = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            while (chunk.remaining() >= 8)
+                chunk.putLong(r.nextLong());
+            for (long last = r.nextLong(); chunk.hasRemaining(); last >>>= 8)
+                chunk.put((byte) last);
+            return data;
+        }
+
+        @Override
+        public void writeTo(BinaryWriter rom, BufferPool pool) throws IOException {
+            SplittableRandom r = new SplittableRandom(seed);
+            ByteBuffer chunk = ByteBuffer.allocate(Math.min(size, 0x10000) + 7 & ~7).order(ByteOrder.LITTLE_ENDIAN);
+            for (int left = size; left > 0; ) {
+                chunk.clear();
+                while (chunk.hasRemaining())
+                    chunk.putLong(r.nextLong());
+                chunk.flip();
+                chunk.limit(Math.min(left, chunk.capacity()));
+                left -= chunk.limit();
+                rom.writeBytes(chunk);
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import io.IOStats;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class provides the content of another source, with some files replaced by content computed by the build
+ * (e.g. compressed again). The files are matched by identity, so the tree must be the one returned by getRoot
+ */
+class TransformedSource implements ROMSource {
+    private final ROMSource source;
+    private final NitroDirectory root;
+    private final Map<NitroFile, ROMContent> replaced;
+
+    public TransformedSource(ROMSource source, NitroDirectory root, Map<NitroFile, ROMContent> replaced) {
+        this.source = source;
+        this.root = root;
+        this.replaced = replaced;
+    }
+
+    @Override
+    public NitroHeader getHeader(IOStats io) throws IOException {
+        return source.getHeader(io);
+    }
+
+    @Override
+    public ROMContent getArm9() throws IOException {
+        return source.getArm9();
+    }
+
+    @Override
+    public List<NitroOverlay> getArm9Overlays() throws IOException {
+        return source.getArm9Overlays();
+    }
+
+    @Override
+    public ROMContent getArm7() throws IOException {
+        return source.getArm7();
+    }
+
+    @Override
+    public List<NitroOverlay> getArm7Overlays() throws IOException {
+        return source.getArm7Overlays();
+    }
+
+    @Override
+    public ROMContent getBanner() throws IOException {
+        return source.getBanner();
+    }
+
+    @Override
+    public List<ROMContent> getOverlays() throws IOException {
+        return source.getOverlays();
+    }
+
+    @Override
+    public NitroDirectory getRoot() {
+        return root;
+    }
+
+    @Override
+    public ROMContent getFile(NitroFile file) throws IOException {
+        ROMContent content = replaced.get(file);
+        return content != null ? content : source.getFile(file);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * This file is part of jNdstool.
+ *
+ * jNdstool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jNdstool. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020 JackHack96
+ */
+package nitro;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class holds the outcome of a ROM verification
+ */
+public class VerifyReport {
+    private final List<String> errors = Collections.synchronizedList(new ArrayList<>()); // Problems that make the ROM invalid
+    private final List<String> warnings = Collections.synchronizedList(new ArrayList<>()); // Legal but suspicious things
+    private int fileCount; // Number of FAT entries checked
+
+    void addError(String error) {
+        errors.add(error);
+    }
+
+    void addErrors(Collection<String> errors) {
+        this.errors.addAll(errors);
+    }
+
+    void addWarning(String warning) {
+        warnings.add(warning);
+    }
+
+    void addWarnings(Collection<String> warnings) {
+        this.warnings.addAll(warnings);
+    }
+
+    void setFileCount(int fileCount) {
+        this.fileCount = fileCount;
+    }
+
+    public List<String> getErrors() {
+        return new ArrayList<>(errors);
+    }
+
+    public List<String> getWarnings() {
+        return new ArrayList<>(warnings);
+    }
+
+    /**
+     * Get the number of FAT entries that were checked
+     *
+     * @return The number of files, 0 if the FAT couldn't be decoded
+     */
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * Check if the ROM passed the verification
+     *
+     * @return True if no error was found
+     */
+    public boolean isValid() {
+        return errors.isEmpty();
+    }
+}